@@ -0,0 +1,301 @@
+package de.intranda.goobi.plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.log4j.Logger;
+import org.goobi.beans.Process;
+
+import de.intranda.goobi.plugins.utils.FileScanner;
+import de.intranda.goobi.plugins.utils.IoGovernor;
+import de.sub.goobi.config.ConfigPlugins;
+import de.sub.goobi.helper.Helper;
+import de.sub.goobi.helper.exceptions.DAOException;
+import de.sub.goobi.helper.exceptions.SwapException;
+import de.sub.goobi.persistence.managers.ProcessManager;
+
+/**
+ * Exports the images of many processes in one run, e.g. after a change of the download server. The processes are estimated by the size of
+ * their image folders and exported on a shared pool of workers: half of the workers take the largest remaining processes, the others the
+ * smallest, so a few huge processes neither block all workers nor remain alone at the end of the run. The download links of a process are
+ * saved right after its export.
+ *
+ */
+public class BatchExport {
+
+    private static final Logger log = Logger.getLogger(BatchExport.class);
+
+    private static BatchExport current;
+
+    private final XMLConfiguration config;
+    private final int threads;
+
+    // jobs waiting for a worker, ordered by size
+    private final LinkedList<Job> jobs = new LinkedList<Job>();
+    private long largeJobSize;
+    private int runningLargeJobs;
+
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicInteger succeeded = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicLong exportedBytes = new AtomicLong();
+    private volatile long startTime;
+    private volatile long endTime;
+
+    /**
+     * @param config the configuration of the plugin, shared by all exports of the batch
+     */
+    public BatchExport(XMLConfiguration config) {
+        this.config = config;
+        this.threads = Math.max(config.getInt("batch.threads", 4), 1);
+    }
+
+    /**
+     * Starts a batch export of the processes matching the given filter in the background, unless another batch export is running
+     *
+     * @param filter an SQL condition on the table prozesse, as used by {@link ProcessManager#getProcesses(String, String)}
+     * @return the started batch export, or the running one
+     */
+    public static synchronized BatchExport start(final String filter) {
+        if (current != null && current.isRunning()) {
+            log.warn("A batch export is already running, ignoring filter " + filter);
+            return current;
+        }
+        final BatchExport batch = new BatchExport(ConfigPlugins.getPluginConfig(new ImageDeliveryPlugin()));
+        batch.startTime = System.currentTimeMillis();
+        current = batch;
+        Thread thread = new Thread(IoGovernor.detached(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    batch.export(ProcessManager.getProcesses("prozesse.ProzesseID", filter));
+                } catch (RuntimeException e) {
+                    log.error("Batch export of " + filter + " failed", e);
+                    batch.endTime = System.currentTimeMillis();
+                }
+            }
+        }), "image-export-batch");
+        thread.setDaemon(true);
+        thread.start();
+        return batch;
+    }
+
+    /**
+     * @return the last started batch export, or null
+     */
+    public static synchronized BatchExport getCurrent() {
+        return current;
+    }
+
+    /**
+     * Exports the given processes and waits until all are done
+     *
+     * @param processes
+     * @return true if all processes with images were exported and their links saved
+     */
+    public boolean export(List<Process> processes) {
+        if (startTime == 0) {
+            startTime = System.currentTimeMillis();
+        }
+        total.set(processes.size());
+        ExecutorService executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger counter = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(IoGovernor.detached(runnable), "image-export-batch-" + counter.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        try {
+            schedule(estimate(processes, executor));
+            List<Future<?>> workers = new ArrayList<Future<?>>();
+            for (int i = 0; i < threads; i++) {
+                workers.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        Job job;
+                        while ((job = nextJob()) != null) {
+                            try {
+                                exportJob(job);
+                            } finally {
+                                finishJob(job);
+                            }
+                        }
+                    }
+                }));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Batch export was interrupted", e);
+        } catch (ExecutionException e) {
+            log.error("Batch export failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+            endTime = System.currentTimeMillis();
+        }
+        log.info(getSummary());
+        return failed.get() == 0 && succeeded.get() + skipped.get() == total.get();
+    }
+
+    /**
+     * Lists the image folders of all processes on the workers
+     */
+    private List<Job> estimate(List<Process> processes, ExecutorService executor) throws InterruptedException, ExecutionException {
+        List<Future<Job>> estimates = new ArrayList<Future<Job>>();
+        for (final Process process : processes) {
+            estimates.add(executor.submit(new Callable<Job>() {
+                @Override
+                public Job call() {
+                    return new Job(process, getImageSize(process));
+                }
+            }));
+        }
+        List<Job> estimated = new ArrayList<Job>();
+        for (Future<Job> estimate : estimates) {
+            estimated.add(estimate.get());
+        }
+        return estimated;
+    }
+
+    /**
+     * @return the size of the images of the process, 0 if it has no image folder or -1 if the folder is unknown or unreadable
+     */
+    private static long getImageSize(Process process) {
+        try {
+            File folder = new File(process.getImagesTifDirectory(false));
+            List<FileScanner.ScannedFile> images = FileScanner.listFolder(folder, Helper.dataFilter);
+            if (images == null) {
+                if (folder.exists()) {
+                    log.error("Unable to read the images of " + process.getTitel() + " in " + folder.getAbsolutePath());
+                    return -1;
+                }
+                return 0;
+            }
+            long size = 0;
+            for (FileScanner.ScannedFile image : images) {
+                size += image.getSize();
+            }
+            return size;
+        } catch (SwapException | DAOException | IOException | InterruptedException e) {
+            log.error("Unable to find the images of " + process.getTitel(), e);
+            return -1;
+        }
+    }
+
+    private synchronized void schedule(List<Job> estimated) {
+        for (Job job : estimated) {
+            if (job.size < 0) {
+                failed.incrementAndGet();
+            } else if (job.size == 0) {
+                // the plugin fails on processes without images
+                log.info("Skipping " + job.process.getTitel() + ", it has no images");
+                skipped.incrementAndGet();
+            } else {
+                jobs.add(job);
+                totalBytes.addAndGet(job.size);
+            }
+        }
+        Collections.sort(jobs, new Comparator<Job>() {
+            @Override
+            public int compare(Job a, Job b) {
+                return Long.compare(a.size, b.size);
+            }
+        });
+        // the larger half of the processes
+        largeJobSize = jobs.isEmpty() ? 0 : jobs.get(jobs.size() / 2).size;
+        log.info("Exporting " + jobs.size() + " processes with " + (totalBytes.get() / (1024 * 1024)) + " MB of images on " + threads
+                + " workers");
+    }
+
+    /**
+     * Takes the largest job as long as less than half of the workers export large jobs, otherwise the smallest
+     *
+     * @return the next job or null if all jobs are taken
+     */
+    private synchronized Job nextJob() {
+        if (jobs.isEmpty()) {
+            return null;
+        }
+        Job job = runningLargeJobs < Math.max(threads / 2, 1) ? jobs.removeLast() : jobs.removeFirst();
+        job.large = job.size >= largeJobSize;
+        if (job.large) {
+            runningLargeJobs++;
+        }
+        return job;
+    }
+
+    private synchronized void finishJob(Job job) {
+        if (job.large) {
+            runningLargeJobs--;
+        }
+        exportedBytes.addAndGet(job.size);
+    }
+
+    private void exportJob(Job job) {
+        ImageDeliveryPlugin plugin = new ImageDeliveryPlugin();
+        plugin.initialize(job.process, config);
+        try {
+            if (plugin.export()) {
+                succeeded.incrementAndGet();
+            } else {
+                failed.incrementAndGet();
+            }
+        } catch (RuntimeException e) {
+            failed.incrementAndGet();
+            log.error("Export of " + job.process.getTitel() + " failed", e);
+        }
+    }
+
+    /**
+     * @return true if the batch export was started and is not finished
+     */
+    public boolean isRunning() {
+        return startTime > 0 && endTime == 0;
+    }
+
+    /**
+     * @return the progress of the batch export
+     */
+    public String getSummary() {
+        long end = endTime > 0 ? endTime : System.currentTimeMillis();
+        long seconds = startTime > 0 ? (end - startTime) / 1000 : 0;
+        return (isRunning() ? "Running" : "Finished") + " batch export of " + total.get() + " processes: " + succeeded.get() + " exported, "
+                + failed.get() + " failed, " + skipped.get() + " without images, " + (exportedBytes.get() / (1024 * 1024)) + " of "
+                + (totalBytes.get() / (1024 * 1024)) + " MB, " + seconds + " s";
+    }
+
+    private static class Job {
+        private final Process process;
+        private final long size;
+        private boolean large;
+
+        private Job(Process process, long size) {
+            this.process = process;
+            this.size = size;
+        }
+    }
+}
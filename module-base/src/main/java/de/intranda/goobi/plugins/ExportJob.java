@@ -0,0 +1,138 @@
+package de.intranda.goobi.plugins;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import de.intranda.goobi.plugins.utils.ArchiveUtils;
+
+/**
+ * An export of a single step, run by the {@link ExportJobQueue}. The state of the job is stored in a properties file inside the queue folder
+ * so it survives restarts
+ *
+ */
+public class ExportJob {
+
+    public enum State {
+        QUEUED,
+        RUNNING,
+        DONE,
+        FAILED
+    }
+
+    private final int stepId;
+    private final String processTitle;
+    private State state = State.QUEUED;
+    private long created = System.currentTimeMillis();
+    private long updated = created;
+    private String message = "";
+
+    public ExportJob(int stepId, String processTitle) {
+        this.stepId = stepId;
+        this.processTitle = processTitle;
+    }
+
+    public int getStepId() {
+        return stepId;
+    }
+
+    public String getProcessTitle() {
+        return processTitle;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized long getCreated() {
+        return created;
+    }
+
+    public synchronized long getUpdated() {
+        return updated;
+    }
+
+    public synchronized String getMessage() {
+        return message;
+    }
+
+    /**
+     * Changes the state of the job
+     *
+     * @param state
+     * @param message a description of the reason, e.g. the cause of a failure
+     */
+    public synchronized void setState(State state, String message) {
+        this.state = state;
+        this.message = message == null ? "" : message;
+        this.updated = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the file the job is stored in
+     *
+     * @param queueFolder
+     * @return
+     */
+    public File getFile(File queueFolder) {
+        return new File(queueFolder, "step-" + stepId + ".job");
+    }
+
+    /**
+     * Writes the job into the queue folder. The file is replaced atomically, so a crash never leaves a truncated job behind
+     *
+     * @param queueFolder
+     * @throws IOException
+     */
+    public synchronized void save(File queueFolder) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("stepId", String.valueOf(stepId));
+        properties.setProperty("processTitle", processTitle);
+        properties.setProperty("state", state.name());
+        properties.setProperty("created", String.valueOf(created));
+        properties.setProperty("updated", String.valueOf(updated));
+        properties.setProperty("message", message);
+
+        queueFolder.mkdirs();
+        File file = getFile(queueFolder);
+        File tempFile = new File(queueFolder, file.getName() + ".tmp");
+        OutputStream out = new FileOutputStream(tempFile);
+        try {
+            properties.store(out, "Image export job");
+        } finally {
+            out.close();
+        }
+        ArchiveUtils.replaceFile(tempFile, file);
+    }
+
+    /**
+     * Reads a job from the given file
+     *
+     * @param file
+     * @return
+     * @throws IOException if the file is not readable or contains no valid job
+     */
+    public static ExportJob load(File file) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        try {
+            ExportJob job = new ExportJob(Integer.parseInt(properties.getProperty("stepId")), properties.getProperty("processTitle", ""));
+            job.state = State.valueOf(properties.getProperty("state"));
+            job.created = Long.parseLong(properties.getProperty("created"));
+            job.updated = Long.parseLong(properties.getProperty("updated"));
+            job.message = properties.getProperty("message", "");
+            return job;
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid export job " + file.getAbsolutePath(), e);
+        }
+    }
+}
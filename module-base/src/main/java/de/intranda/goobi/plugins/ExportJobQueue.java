@@ -0,0 +1,254 @@
+package de.intranda.goobi.plugins;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.goobi.beans.Step;
+
+import de.intranda.goobi.plugins.utils.IoGovernor;
+import de.sub.goobi.helper.CloseStepHelper;
+import de.sub.goobi.helper.enums.StepStatus;
+import de.sub.goobi.helper.exceptions.DAOException;
+import de.sub.goobi.persistence.managers.StepManager;
+
+/**
+ * Runs image exports in the background, so the step thread returns immediately. At most the configured number of exports run at the same
+ * time, further jobs wait in the queue. Each job is stored in the queue folder; jobs which were queued or running when the server stopped are
+ * queued again when the queue is started the next time, i.e. when the plugin is loaded.
+ *
+ * When a job is done its step gets closed, when it fails the step is set to the error state. Finished and failed jobs are kept for the
+ * retention time and deleted afterwards.
+ *
+ */
+public class ExportJobQueue {
+
+    private static final Logger log = Logger.getLogger(ExportJobQueue.class);
+
+    private static ExportJobQueue instance;
+
+    private final File queueFolder;
+    private final int capacity;
+    private final long retention;
+    private final ThreadPoolExecutor executor;
+    private final Map<Integer, ExportJob> jobs = new ConcurrentHashMap<Integer, ExportJob>();
+
+    private ExportJobQueue(File queueFolder, int threads, int capacity, long retention) {
+        this.queueFolder = queueFolder;
+        this.capacity = capacity;
+        this.retention = retention;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(IoGovernor.detached(runnable), "image-export-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Returns the queue of this server. It is created by the first call, which also requeues the unfinished jobs of the queue folder
+     *
+     * @param queueFolder the folder the jobs are stored in
+     * @param threads the maximal number of exports running at the same time
+     * @param capacity the maximal number of waiting jobs
+     * @param retention the milliseconds finished and failed jobs are kept
+     * @return
+     */
+    public static synchronized ExportJobQueue getInstance(File queueFolder, int threads, int capacity, long retention) {
+        if (instance == null) {
+            instance = new ExportJobQueue(queueFolder, Math.max(threads, 1), capacity, Math.max(retention, 0));
+            instance.recover();
+        }
+        return instance;
+    }
+
+    /**
+     * Queues the export of the given step
+     *
+     * @param step
+     * @return true if the job was queued or is already queued, false if the queue is full or the job could not be stored
+     */
+    public synchronized boolean submit(Step step) {
+        ExportJob existing = jobs.get(step.getId());
+        if (existing != null && (existing.getState() == ExportJob.State.QUEUED || existing.getState() == ExportJob.State.RUNNING)) {
+            log.info("Export of step " + step.getId() + " is already queued");
+            return true;
+        }
+        if (getWaitingJobs() >= capacity) {
+            return false;
+        }
+        ExportJob job = new ExportJob(step.getId(), step.getProzess().getTitel());
+        try {
+            job.save(queueFolder);
+        } catch (IOException e) {
+            log.error("Unable to store export job for " + job.getProcessTitle() + " in " + queueFolder.getAbsolutePath(), e);
+            return false;
+        }
+        jobs.put(job.getStepId(), job);
+        schedule(job);
+        return true;
+    }
+
+    /**
+     * @return all jobs known to the queue, including finished and failed ones within the retention time
+     */
+    public List<ExportJob> getJobs() {
+        return new ArrayList<ExportJob>(jobs.values());
+    }
+
+    /**
+     * @return the number of jobs waiting to be started
+     */
+    public int getWaitingJobs() {
+        int waiting = 0;
+        for (ExportJob job : jobs.values()) {
+            if (job.getState() == ExportJob.State.QUEUED) {
+                waiting++;
+            }
+        }
+        return waiting;
+    }
+
+    private void schedule(final ExportJob job) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                runJob(job);
+            }
+        });
+    }
+
+    private void runJob(ExportJob job) {
+        update(job, ExportJob.State.RUNNING, null);
+        Step step = null;
+        boolean ended = false;
+        try {
+            step = StepManager.getStepById(job.getStepId());
+            if (step == null) {
+                update(job, ExportJob.State.FAILED, "Step " + job.getStepId() + " doesn't exist anymore");
+                ended = true;
+                return;
+            }
+            ImageDeliveryPlugin plugin = new ImageDeliveryPlugin();
+            plugin.initialize(step, "");
+            if (plugin.export()) {
+                CloseStepHelper.closeStep(step, null);
+                update(job, ExportJob.State.DONE, null);
+            } else {
+                setError(step);
+                update(job, ExportJob.State.FAILED, "Export failed, see the process log");
+            }
+            ended = true;
+        } catch (RuntimeException e) {
+            log.error("Export job for " + job.getProcessTitle() + " failed", e);
+            if (step != null) {
+                // the plugin returned WAIT, so the step would stay open forever
+                setError(step);
+            }
+            update(job, ExportJob.State.FAILED, e.toString());
+            ended = true;
+        } finally {
+            if (!ended) {
+                // an Error like OutOfMemoryError, which is passed on to the executor after the job is failed
+                log.error("Export job for " + job.getProcessTitle() + " was aborted");
+                if (step != null) {
+                    setError(step);
+                }
+                update(job, ExportJob.State.FAILED, "Export aborted, see the server log");
+            }
+            prune();
+        }
+    }
+
+    private void setError(Step step) {
+        step.setBearbeitungsstatusEnum(StepStatus.ERROR);
+        try {
+            StepManager.saveStep(step);
+        } catch (DAOException e) {
+            log.error("Unable to set step " + step.getId() + " to the error state", e);
+        }
+    }
+
+    /**
+     * Forgets the finished and failed jobs whose retention time is over and deletes their files
+     */
+    private synchronized void prune() {
+        long oldest = System.currentTimeMillis() - retention;
+        Iterator<ExportJob> iterator = jobs.values().iterator();
+        while (iterator.hasNext()) {
+            ExportJob job = iterator.next();
+            ExportJob.State state = job.getState();
+            if ((state == ExportJob.State.DONE || state == ExportJob.State.FAILED) && job.getUpdated() <= oldest
+                    && jobs.remove(job.getStepId(), job)) {
+                File file = job.getFile(queueFolder);
+                if (file.exists() && !file.delete()) {
+                    log.warn("Unable to delete export job " + file.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    private void update(ExportJob job, ExportJob.State state, String message) {
+        job.setState(state, message);
+        try {
+            job.save(queueFolder);
+        } catch (IOException e) {
+            log.error("Unable to store state " + state + " of export job for " + job.getProcessTitle(), e);
+        }
+    }
+
+    /**
+     * Loads all stored jobs and queues the ones which were not finished
+     */
+    private void recover() {
+        File[] files = queueFolder.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".job");
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        List<ExportJob> loaded = new ArrayList<ExportJob>();
+        for (File file : files) {
+            try {
+                loaded.add(ExportJob.load(file));
+            } catch (IOException e) {
+                log.warn("Ignoring invalid export job " + file.getAbsolutePath(), e);
+            }
+        }
+        Collections.sort(loaded, new Comparator<ExportJob>() {
+            @Override
+            public int compare(ExportJob o1, ExportJob o2) {
+                return Long.compare(o1.getCreated(), o2.getCreated());
+            }
+        });
+        for (ExportJob job : loaded) {
+            jobs.put(job.getStepId(), job);
+            if (job.getState() == ExportJob.State.QUEUED || job.getState() == ExportJob.State.RUNNING) {
+                log.info("Requeueing export job for " + job.getProcessTitle());
+                update(job, ExportJob.State.QUEUED, "Requeued after restart");
+                schedule(job);
+            }
+        }
+        prune();
+    }
+}
@@ -0,0 +1,151 @@
+package de.intranda.goobi.plugins;
+
+import java.util.Locale;
+
+/**
+ * Measures a single export. The phases of an export follow each other, starting a phase ends the previous one.
+ *
+ * Instances are not thread safe, they are filled by the thread running the export and read by the {@link ExportMonitor} when it is done.
+ *
+ */
+public class ExportMetrics {
+
+    public enum Phase {
+        /** listing the images of the process */
+        LISTING,
+        /** creating the archive or the layout of the streamed archive */
+        COMPRESSION,
+        /** validating the archive */
+        VALIDATION,
+        /** moving the archive from the staging folder to the destination folder */
+        TRANSFER,
+        /** writing the manifests and the export state */
+        MANIFEST,
+        /** saving the download links in the process */
+        SAVE
+    }
+
+    private static final double MB = 1024 * 1024;
+
+    private final long start = System.nanoTime();
+    private final long[] phaseNanos = new long[Phase.values().length];
+    private Phase currentPhase;
+    private long phaseStart;
+    private long duration = -1;
+
+    private long bytesRead;
+    private long bytesWritten;
+    private int entries;
+
+    /**
+     * Ends the current phase and starts the given one
+     *
+     * @param phase
+     */
+    public void startPhase(Phase phase) {
+        long now = System.nanoTime();
+        stopPhase(now);
+        currentPhase = phase;
+        phaseStart = now;
+    }
+
+    /**
+     * Ends the current phase and the whole export
+     */
+    public void finish() {
+        long now = System.nanoTime();
+        stopPhase(now);
+        duration = now - start;
+    }
+
+    private void stopPhase(long now) {
+        if (currentPhase != null) {
+            phaseNanos[currentPhase.ordinal()] += now - phaseStart;
+            currentPhase = null;
+        }
+    }
+
+    public void addBytesRead(long bytes) {
+        bytesRead += bytes;
+    }
+
+    public void addBytesWritten(long bytes) {
+        bytesWritten += bytes;
+    }
+
+    public void addEntries(int count) {
+        entries += count;
+    }
+
+    /**
+     * @param phase
+     * @return the time spent in the given phase in nanoseconds
+     */
+    public long getPhaseNanos(Phase phase) {
+        return phaseNanos[phase.ordinal()];
+    }
+
+    /**
+     * @return the duration of the whole export in nanoseconds, or the time since its start if it is not finished
+     */
+    public long getDuration() {
+        return duration < 0 ? System.nanoTime() - start : duration;
+    }
+
+    /**
+     * @return the size of the exported images in bytes
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return the size of the created archives in bytes
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return the number of archive entries
+     */
+    public int getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return size of the archives divided by the size of the images, 1 if nothing was read
+     */
+    public double getCompressionRatio() {
+        return bytesRead == 0 ? 1 : (double) bytesWritten / bytesRead;
+    }
+
+    /**
+     * @return the number of entries compressed per second
+     */
+    public double getEntriesPerSecond() {
+        long nanos = getPhaseNanos(Phase.COMPRESSION);
+        return nanos == 0 ? 0 : entries / (nanos / 1e9);
+    }
+
+    /**
+     * @return a single line describing the export, for the process log
+     */
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder(String.format(Locale.ENGLISH,
+                "Image export: %d entries, %.1f MB read, %.1f MB written (ratio %.2f), %.1f entries/s in %.1f s", entries, bytesRead / MB,
+                bytesWritten / MB, getCompressionRatio(), getEntriesPerSecond(), getDuration() / 1e9));
+        String separator = " (";
+        for (Phase phase : Phase.values()) {
+            if (getPhaseNanos(phase) > 0) {
+                summary.append(separator).append(phase.name().toLowerCase(Locale.ENGLISH)).append(' ').append(getPhaseNanos(phase) / 1000000)
+                        .append(" ms");
+                separator = ", ";
+            }
+        }
+        if (", ".equals(separator)) {
+            summary.append(')');
+        }
+        return summary.toString();
+    }
+}
@@ -0,0 +1,185 @@
+package de.intranda.goobi.plugins;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Collects the {@link ExportMetrics} of all exports of this web application. The totals are available through JMX and, if Micrometer is
+ * available, through its global registry.
+ *
+ */
+public class ExportMonitor implements ExportMonitorMXBean {
+
+    private static final Logger log = Logger.getLogger(ExportMonitor.class);
+
+    public static final String OBJECT_NAME = "de.intranda.goobi.plugins:type=ImageExport";
+
+    private static ExportMonitor instance;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong entries = new AtomicLong();
+    private final AtomicLongArray phaseNanos = new AtomicLongArray(ExportMetrics.Phase.values().length);
+    private volatile String lastExport = "";
+
+    private MicrometerExportMetrics micrometer;
+
+    private ExportMonitor() {
+    }
+
+    /**
+     * Returns the monitor of this web application, registering it on the first call
+     *
+     * @return
+     */
+    public static synchronized ExportMonitor getInstance() {
+        if (instance == null) {
+            instance = new ExportMonitor();
+            instance.registerMBean();
+            if (isMicrometerAvailable()) {
+                instance.micrometer = new MicrometerExportMetrics(instance);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Starts measuring an export
+     *
+     * @return the metrics to fill during the export
+     */
+    public ExportMetrics begin() {
+        inFlight.incrementAndGet();
+        return new ExportMetrics();
+    }
+
+    /**
+     * Finishes the given export and adds its metrics to the totals
+     *
+     * @param metrics
+     * @param success
+     */
+    public void end(ExportMetrics metrics, boolean success) {
+        metrics.finish();
+        inFlight.decrementAndGet();
+        if (success) {
+            succeeded.incrementAndGet();
+        } else {
+            failed.incrementAndGet();
+        }
+        bytesRead.addAndGet(metrics.getBytesRead());
+        bytesWritten.addAndGet(metrics.getBytesWritten());
+        entries.addAndGet(metrics.getEntries());
+        for (ExportMetrics.Phase phase : ExportMetrics.Phase.values()) {
+            phaseNanos.addAndGet(phase.ordinal(), metrics.getPhaseNanos(phase));
+        }
+        lastExport = metrics.getSummary();
+        if (micrometer != null) {
+            micrometer.record(metrics);
+        }
+    }
+
+    /**
+     * Checks for Micrometer without loading {@link MicrometerExportMetrics}, which cannot be loaded without it
+     */
+    private static boolean isMicrometerAvailable() {
+        try {
+            Class.forName("io.micrometer.core.instrument.Metrics", false, ExportMonitor.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    private void registerMBean() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            try {
+                server.registerMBean(this, name);
+            } catch (InstanceAlreadyExistsException e) {
+                // left over from a previous deployment of the plugin
+                server.unregisterMBean(name);
+                server.registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            log.warn("Unable to register export metrics as " + OBJECT_NAME, e);
+        }
+    }
+
+    @Override
+    public int getExportsInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public long getExportsSucceeded() {
+        return succeeded.get();
+    }
+
+    @Override
+    public long getExportsFailed() {
+        return failed.get();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    @Override
+    public long getEntries() {
+        return entries.get();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        long read = bytesRead.get();
+        return read == 0 ? 1 : (double) bytesWritten.get() / read;
+    }
+
+    @Override
+    public Map<String, Long> getPhaseMillis() {
+        Map<String, Long> millis = new LinkedHashMap<String, Long>();
+        for (ExportMetrics.Phase phase : ExportMetrics.Phase.values()) {
+            millis.put(phase.name().toLowerCase(Locale.ENGLISH), phaseNanos.get(phase.ordinal()) / 1000000);
+        }
+        return millis;
+    }
+
+    @Override
+    public String getLastExport() {
+        return lastExport;
+    }
+
+    @Override
+    public String getBatchExport() {
+        BatchExport batch = BatchExport.getCurrent();
+        return batch == null ? "" : batch.getSummary();
+    }
+
+    @Override
+    public String startBatchExport(String filter) {
+        return BatchExport.start(filter).getSummary();
+    }
+}
@@ -0,0 +1,62 @@
+package de.intranda.goobi.plugins;
+
+import java.util.Map;
+
+/**
+ * Totals of all image exports since the start of the web application, registered as <code>de.intranda.goobi.plugins:type=ImageExport</code>
+ *
+ */
+public interface ExportMonitorMXBean {
+
+    /**
+     * @return the number of exports currently running
+     */
+    int getExportsInFlight();
+
+    long getExportsSucceeded();
+
+    long getExportsFailed();
+
+    /**
+     * @return the size of all exported images in bytes
+     */
+    long getBytesRead();
+
+    /**
+     * @return the size of all created archives in bytes
+     */
+    long getBytesWritten();
+
+    /**
+     * @return the number of all archive entries
+     */
+    long getEntries();
+
+    /**
+     * @return size of all archives divided by the size of all images
+     */
+    double getCompressionRatio();
+
+    /**
+     * @return the time spent in each phase of all exports, in milliseconds
+     */
+    Map<String, Long> getPhaseMillis();
+
+    /**
+     * @return the summary of the last finished export
+     */
+    String getLastExport();
+
+    /**
+     * @return the progress of the last started batch export
+     */
+    String getBatchExport();
+
+    /**
+     * Starts a {@link BatchExport} of the processes matching the filter, unless one is running
+     *
+     * @param filter an SQL condition on the table prozesse, e.g. <code>prozesse.ProjekteID = 3</code>
+     * @return the progress of the started or running batch export
+     */
+    String startBatchExport(String filter);
+}
@@ -2,19 +2,44 @@ package de.intranda.goobi.plugins;
 
 import java.io.File;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.Deflater;
 
 import net.xeoh.plugins.base.annotations.PluginImplementation;
 
+import org.apache.commons.configuration.XMLConfiguration;
 import org.apache.log4j.Logger;
 import org.goobi.production.cli.helper.WikiFieldHelper;
 import org.goobi.production.enums.PluginGuiType;
+import org.goobi.production.enums.PluginReturnValue;
 import org.goobi.production.enums.PluginType;
 import org.goobi.production.enums.StepReturnValue;
 import org.goobi.production.plugin.interfaces.IPlugin;
-import org.goobi.production.plugin.interfaces.IStepPlugin;
+import org.goobi.production.plugin.interfaces.IStepPluginVersion2;
 
+import de.intranda.goobi.plugins.utils.ArchiveFormat;
+import de.intranda.goobi.plugins.utils.ArchiveFormats;
+import de.intranda.goobi.plugins.utils.ArchiveManifest;
 import de.intranda.goobi.plugins.utils.ArchiveUtils;
+import de.intranda.goobi.plugins.utils.BlockGzipIndex;
+import de.intranda.goobi.plugins.utils.BufferPool;
+import de.intranda.goobi.plugins.utils.CacheFolder;
+import de.intranda.goobi.plugins.utils.CompressionPolicy;
+import de.intranda.goobi.plugins.utils.CompressionStatistics;
+import de.intranda.goobi.plugins.utils.EntryCache;
+import de.intranda.goobi.plugins.utils.FileScanner;
+import de.intranda.goobi.plugins.utils.FileTransfer;
+import de.intranda.goobi.plugins.utils.ImageDerivatives;
+import de.intranda.goobi.plugins.utils.IncrementalZipExport;
+import de.intranda.goobi.plugins.utils.IoGovernor;
+import de.intranda.goobi.plugins.utils.StreamingZipLayout;
+import de.intranda.goobi.plugins.utils.VolumeZipExport;
+import de.intranda.goobi.plugins.utils.ZipVerifier;
 
 import org.goobi.beans.Process;
 import org.goobi.beans.Processproperty;
@@ -25,20 +50,45 @@ import de.sub.goobi.helper.Helper;
 import de.sub.goobi.helper.exceptions.DAOException;
 import de.sub.goobi.helper.exceptions.SwapException;
 import de.sub.goobi.persistence.managers.ProcessManager;
+import de.sub.goobi.persistence.managers.PropertyManager;
 import dubious.sub.goobi.helper.encryption.MD5;
 
 @PluginImplementation
-public class ImageDeliveryPlugin implements IStepPlugin, IPlugin {
+public class ImageDeliveryPlugin implements IStepPluginVersion2, IPlugin {
 
     private static final Logger log = Logger.getLogger(ImageDeliveryPlugin.class);
     
     private String pluginname = "plugin_intranda_imageDelivery";
 
+    private Step step;
     private Process process;
     private String returnPath;
+    private XMLConfiguration config;
+    // a batch export saves only the changed download links instead of the whole process
+    private boolean batch = false;
 
     private static final String PROPERTYTITLE = "DOWNLOADURL";
 
+    // compression ratios learned from all exports of this server
+    private static final CompressionStatistics compressionStatistics = new CompressionStatistics();
+    private static File compressionStatisticsFile;
+    private static EntryCache entryCache;
+    private static CacheFolder derivativeCache;
+    // bandwidth and IOPS limits shared by all exports of this server
+    private static IoGovernor ioGovernor;
+
+    static {
+        // jobs queued before a restart continue when the plugin is loaded, not only when the next export is queued
+        try {
+            XMLConfiguration config = ConfigPlugins.getPluginConfig(ImageDeliveryPlugin.class.getSimpleName());
+            if (config != null) {
+                startServices(config);
+            }
+        } catch (RuntimeException e) {
+            log.warn("Unable to start the services of the image export", e);
+        }
+    }
+
     @Override
     public PluginType getType() {
         return PluginType.Step;
@@ -56,13 +106,129 @@ public class ImageDeliveryPlugin implements IStepPlugin, IPlugin {
 
     @Override
     public void initialize(Step step, String returnPath) {
+        this.step = step;
         this.process = step.getProzess();
         this.returnPath = returnPath;
     }
 
+    /**
+     * Prepares the export of a process without a step, as part of a {@link BatchExport}
+     * 
+     * @param process
+     * @param config the configuration shared by the exports of the batch
+     */
+    void initialize(Process process, XMLConfiguration config) {
+        this.process = process;
+        this.config = config;
+        this.batch = true;
+    }
+
+    private XMLConfiguration getConfig() {
+        if (config == null) {
+            config = ConfigPlugins.getPluginConfig(this);
+        }
+        return config;
+    }
+
     @Override
     public boolean execute() {
+        return run() != PluginReturnValue.ERROR;
+    }
+
+    /**
+     * Exports the images of the process. If asynchronous exports are enabled, the export is queued and the step gets closed by the
+     * {@link ExportJobQueue} when it is done
+     */
+    @Override
+    public PluginReturnValue run() {
+        XMLConfiguration config = getConfig();
+        if (config.getBoolean("async.enabled", false)) {
+            ExportJobQueue queue = getJobQueue(config);
+            if (queue.submit(step)) {
+                log.info("Queued image export for " + process.getTitel());
+                return PluginReturnValue.WAIT;
+            }
+            log.warn("Export queue is full, exporting " + process.getTitel() + " on the step thread");
+        }
+        return export() ? PluginReturnValue.FINISH : PluginReturnValue.ERROR;
+    }
+
+    /**
+     * Starts the services of the configured features, which have to run before the first export after a restart
+     * 
+     * @param config
+     */
+    private static void startServices(XMLConfiguration config) {
+        if (config.getBoolean("async.enabled", false)) {
+            getJobQueue(config);
+        }
+        if ("stream".equals(config.getString("deliveryMode", "archive"))) {
+            try {
+                getDeliveryServer(config);
+            } catch (IOException e) {
+                log.error("Unable to start the zip delivery server", e);
+            }
+        }
+    }
+
+    /**
+     * Returns the zip delivery server of this server, started with the settings of the section delivery
+     * 
+     * @param config
+     * @return
+     * @throws IOException if the server cannot be started
+     */
+    private static ZipDeliveryServer getDeliveryServer(XMLConfiguration config) throws IOException {
+        return ZipDeliveryServer.getInstance(config.getString("delivery.address", "localhost"), config.getInt("delivery.port", 8085), new File(
+                config.getString("delivery.layoutFolder", "/opt/digiverso/goobi/export/.layouts/")), config.getInt("delivery.threads", 4));
+    }
+
+    /**
+     * Returns the export queue of this server, created with the settings of the section async and requeueing the unfinished jobs
+     * 
+     * @param config
+     * @return
+     */
+    private static ExportJobQueue getJobQueue(XMLConfiguration config) {
+        return ExportJobQueue.getInstance(new File(config.getString("async.queueFolder", "/opt/digiverso/goobi/export/.queue/")), config.getInt(
+                "async.threads", 2), config.getInt("async.capacity", 100), config.getLong("async.retention", 24) * 60 * 60 * 1000);
+    }
+
+    @Override
+    public int getInterfaceVersion() {
+        return 0;
+    }
 
+    /**
+     * Zips, validates and publishes the images of the process on the calling thread
+     * 
+     * @return true if the export was successful
+     */
+    boolean export() {
+        ExportMonitor monitor = ExportMonitor.getInstance();
+        ExportMetrics metrics = monitor.begin();
+        XMLConfiguration config = getConfig();
+        BufferPool.configure(config.getInt("buffers.size", BufferPool.DEFAULT_BUFFER_SIZE / 1024) * 1024,
+                config.getInt("buffers.pooled", BufferPool.DEFAULT_MAX_IDLE));
+        IoGovernor.Budget budget = openIoBudget(config);
+        // inherited by the threads writing and validating the archive
+        budget.attach();
+        boolean success = false;
+        try {
+            success = export(metrics);
+            return success;
+        } finally {
+            budget.close();
+            monitor.end(metrics, success);
+            logMetrics(metrics, success);
+            if (budget.getWaitTime() > 0) {
+                log.debug(process.getTitel() + ": waited " + budget.getWaitTime() + " ms for the I/O budget");
+            }
+        }
+    }
+
+    private boolean export(ExportMetrics metrics) {
+        metrics.startPhase(ExportMetrics.Phase.LISTING);
         MD5 md5 = new MD5(process.getTitel());
         String imagesFolderName = "";
 
@@ -72,26 +238,87 @@ public class ImageDeliveryPlugin implements IStepPlugin, IPlugin {
             log.error(e1);
         }
 
-        File compressedFile =
-                new File(ConfigPlugins.getPluginConfig(this).getString("destinationFolder", "/opt/digiverso/goobi/export/"), md5.getMD5() + "_"
-                        + process.getTitel() + ".zip");
+        XMLConfiguration config = getConfig();
+        boolean streaming = "stream".equals(config.getString("deliveryMode", "archive"));
+        ArchiveFormat format = ArchiveFormats.getInstance(streaming ? ArchiveFormats.ZIP : config.getString("archive.format", ArchiveFormats.ZIP));
+        if (format == null) {
+            log.error(process.getTitel() + ": " + "Archive format " + config.getString("archive.format") + " is not available, use one of "
+                    + ArchiveFormats.getNames() + ". Aborting.");
+            return false;
+        }
+        // derivatives are rendered while a single archive is written, streaming exports always deliver the masters
+        boolean derivatives = !streaming && config.getBoolean("derivatives.enabled", false);
+        if (streaming && config.getBoolean("derivatives.enabled", false)) {
+            log.warn("Derivatives are not created for streaming exports, delivering the masters of " + process.getTitel());
+        }
+        // volumes and incremental exports are only supported for zip archives of the masters
+        boolean zip = ArchiveFormats.ZIP.equals(format.getName());
+        boolean incremental = zip && !derivatives && config.getBoolean("incremental", false);
+        if ((!zip || derivatives) && (config.getBoolean("incremental", false) || config.getLong("volumes.maxSize", 0) > 0)) {
+            log.warn("Volumes and incremental exports need zip archives of the masters, exporting " + process.getTitel() + " as a single "
+                    + format.getName() + " archive");
+        }
+        File destFile = new File(config.getString("destinationFolder", "/opt/digiverso/goobi/export/"), md5.getMD5() + "_" + process.getTitel()
+                + format.getExtension());
+        // incremental exports read the previous archive, so their new archive is written next to it and replaces it once it is valid
+        String stagingFolder = config.getString("stagingFolder", "");
+        File compressedFile = stagingFolder.isEmpty() || incremental ? destFile : new File(stagingFolder, destFile.getName());
 
         File imageFolder = new File(imagesFolderName);
-        File[] filenames = imageFolder.listFiles(Helper.dataFilter);
-        if ((filenames == null) || (filenames.length == 0)) {
+        // sorted by name, so every export of the same images has the same layout
+        List<FileScanner.ScannedFile> images = FileScanner.listFolder(imageFolder, Helper.dataFilter);
+        if ((images == null) || images.isEmpty()) {
             return false;
         }
-//        File destFile =
-//                new File(ConfigPlugins.getPluginConfig(this).getString("destinationFolder", "/opt/digiverso/goobi/export/"), compressedFile.getName());
 
-        log.debug("Found " + filenames.length + " files.");
+        log.debug("Found " + images.size() + " files.");
+        for (FileScanner.ScannedFile image : images) {
+            metrics.addBytesRead(image.getSize());
+        }
+
+        metrics.startPhase(ExportMetrics.Phase.COMPRESSION);
+        if (streaming) {
+            return exportStreamingLayout(config, images, destFile.getName(), metrics);
+        }
 
+        int zipThreads = config.getInt("zipThreads", 0);
+        CompressionPolicy compressionPolicy = createCompressionPolicy(config);
+        ArchiveManifest manifest = new ArchiveManifest(config.getString("manifest.algorithm", "SHA-256"));
+        long maxVolumeSize = config.getLong("volumes.maxSize", 0) * 1024 * 1024;
+        if (maxVolumeSize > 0 && zip && !incremental && !derivatives) {
+            VolumeZipExport volumeExport = new VolumeZipExport(compressedFile, maxVolumeSize, zipThreads, manifest.getAlgorithm());
+            volumeExport.setCompressionPolicy(compressionPolicy);
+            volumeExport.setConcurrentVolumes(config.getInt("volumes.parallel", 2));
+            return exportVolumes(config, volumeExport, images, imageFolder, destFile, metrics);
+        }
+        IncrementalZipExport incrementalExport = null;
         try {
-            ArchiveUtils.zipFiles(filenames, compressedFile);
+            if (incremental) {
+                incrementalExport = new IncrementalZipExport(compressedFile, zipThreads, manifest);
+                incrementalExport.setCompressionPolicy(compressionPolicy);
+                if (!incrementalExport.export(images)) {
+                    log.info("Images of " + process.getTitel() + " didn't change since the last export. Skipping export.");
+                    return true;
+                }
+                compressedFile = incrementalExport.getTempFile();
+            } else if (derivatives) {
+                ImageDerivatives imageDerivatives = createDerivatives(config);
+                if (imageDerivatives == null) {
+                    return false;
+                }
+                format.writeEntries(imageDerivatives.createEntries(images), compressedFile, zipThreads, compressionPolicy, manifest);
+                log.info("Packaged derivatives of " + process.getTitel() + ": " + imageDerivatives.getRendered() + " rendered, "
+                        + imageDerivatives.getCacheHits() + " from the cache");
+            } else {
+                format.writeFiles(images, compressedFile, zipThreads, compressionPolicy, manifest);
+            }
         } catch (IOException e) {
-            log.error("Failed to zip files to archive for " + process.getTitel() + ". Aborting.");
+            log.error("Failed to write " + format.getName() + " archive for " + process.getTitel() + ". Aborting.", e);
             return false;
         }
+        saveCompressionStatistics();
+        metrics.addEntries(manifest.size());
+        metrics.addBytesWritten(compressedFile.length());
 
 //        log.info("Validating zip-archive");
 //        byte[] origArchiveAfterZipChecksum = null;
@@ -102,54 +329,289 @@ public class ImageDeliveryPlugin implements IStepPlugin, IPlugin {
 //            return false;
 //        }
 
-        if (ArchiveUtils.validateZip(compressedFile, true, imageFolder, filenames.length)) {
-            log.info("Zip archive for " + process.getTitel() + " is valid");
+        metrics.startPhase(ExportMetrics.Phase.VALIDATION);
+        // the manifest only holds the entries which were written, so an archive missing files would match it
+        int expectedFiles;
+        try {
+            expectedFiles = countFiles(images, !derivatives);
+        } catch (IOException e) {
+            log.error(process.getTitel() + ": " + "Failed to count the images. Aborting.", e);
+            return false;
+        }
+        if (manifest.size() != expectedFiles) {
+            log.error(process.getTitel() + ": " + "Archive for " + process.getTitel() + " contains " + manifest.size() + " of " + expectedFiles
+                    + " files. Aborting.");
+            return false;
+        }
+        boolean valid;
+        ZipVerifier.Level level = getValidationLevel(config);
+        // derivatives differ from the masters, so they are validated against the manifest instead
+        if (derivatives && level == ZipVerifier.Level.FULL) {
+            level = ZipVerifier.Level.MANIFEST;
+        }
+        if (zip) {
+            valid = verifyZip(compressedFile, manifest, imageFolder, zipThreads, level);
+        } else if (level == ZipVerifier.Level.FULL) {
+            valid = format.validate(compressedFile, imageFolder, images.size(), zipThreads);
         } else {
-            log.error(process.getTitel() + ": " + "Zip archive for " + process.getTitel() + " is corrupted. Aborting.");
+            // tar entries have no CRC, their structure and content are checked against the manifest
+            valid = format.validate(compressedFile, manifest, zipThreads);
+        }
+        if (valid) {
+            log.info("Archive for " + process.getTitel() + " is valid");
+        } else {
+            log.error(process.getTitel() + ": " + "Archive for " + process.getTitel() + " is corrupted. Aborting.");
+            if (incrementalExport != null) {
+                // the previous archive is still published
+                compressedFile.delete();
+            }
             return false;
         }
         // ////////Done validating archive
 
         // ////////copying archive file and validating copy
-        log.info("Copying zip archive for " + process.getTitel() + " to archive");
-//        try {
-//            ArchiveUtils.copyFile(compressedFile, destFile);
-//            // validation
-//            if (!MessageDigest.isEqual(origArchiveAfterZipChecksum, ArchiveUtils.createChecksum(destFile))) {
-//                log.error(process.getTitel() + ": " + "Error copying archive file to archive: Copy is not valid. Aborting.");
-//                return false;
-//            }
-//        } catch (IOException | NoSuchAlgorithmException e) {
-//            log.error(process.getTitel() + ": " + "Error validating copied archive. Aborting.");
-//            return false;
-//        }
-//        log.info("Zip archive copied to " + destFile.getAbsolutePath() + " and found to be valid.");
+        if (!compressedFile.equals(destFile)) {
+            metrics.startPhase(ExportMetrics.Phase.TRANSFER);
+            log.info("Copying archive for " + process.getTitel() + " to archive");
+            FileTransfer transfer = new FileTransfer();
+            transfer.setDigestAlgorithm(manifest.getAlgorithm());
+            try {
+                byte[] copyChecksum = transfer.move(compressedFile, destFile);
+                // null if the archive was renamed within the same file system
+                if (copyChecksum != null && !MessageDigest.isEqual(copyChecksum, manifest.getArchiveDigest())) {
+                    log.error(process.getTitel() + ": " + "Error copying archive file to archive: Copy is not valid. Aborting.");
+                    destFile.delete();
+                    return false;
+                }
+                // the index of a block compressed archive only speeds up reading, so it is not verified
+                File index = BlockGzipIndex.getIndexFile(compressedFile);
+                if (index.isFile()) {
+                    transfer.move(index, BlockGzipIndex.getIndexFile(destFile));
+                }
+            } catch (IOException e) {
+                log.error(process.getTitel() + ": " + "Error copying archive file to archive. Aborting.", e);
+                return false;
+            }
+            log.info("Archive copied to " + destFile.getAbsolutePath() + " and found to be valid.");
+        }
+
+        metrics.startPhase(ExportMetrics.Phase.MANIFEST);
+        if (config.getBoolean("manifest.write", true)) {
+            try {
+                manifest.write(destFile);
+            } catch (IOException e) {
+                log.error(process.getTitel() + ": " + "Failed to write manifest for zip archive. Aborting.", e);
+                return false;
+            }
+        }
+        if (incrementalExport != null) {
+            try {
+                incrementalExport.saveState();
+            } catch (IOException e) {
+                log.warn(process.getTitel() + ": " + "Failed to save export state, the next export will compress all files again.", e);
+            }
+        }
+
+        ArchiveFormats.deleteOtherFormats(destFile, format);
 
         //
         //        // - an anderen Ort kopieren
         //        String destination = ConfigPlugins.getPluginConfig(this).getString("destinationFolder", "/opt/digiverso/pdfexport/");
-        String donwloadServer = ConfigPlugins.getPluginConfig(this).getString("downloadServer", "http://amsterdam01.intranda.com/");
-        String downloadUrl = donwloadServer + compressedFile.getName();
+        metrics.startPhase(ExportMetrics.Phase.SAVE);
+        String donwloadServer = getConfig().getString("downloadServer", "http://amsterdam01.intranda.com/");
+        return saveDownloadUrl(donwloadServer + destFile.getName());
+    }
 
+    /**
+     * Splits the archive into volumes, validates and publishes them. The DOWNLOADURL property links to the index of the volumes, the volumes
+     * are linked by the properties DOWNLOADURL_1, DOWNLOADURL_2, ...
+     * 
+     * @param config
+     * @param volumeExport
+     * @param images
+     * @param imageFolder the folder containing the images
+     * @param destFile the archive the volumes are named after in the destination folder
+     * @param metrics
+     * @return true if the export was successful
+     */
+    private boolean exportVolumes(XMLConfiguration config, VolumeZipExport volumeExport, List<FileScanner.ScannedFile> images,
+            File imageFolder, File destFile, ExportMetrics metrics) {
+        List<VolumeZipExport.Volume> volumes;
+        try {
+            volumes = volumeExport.export(images);
+        } catch (IOException e) {
+            log.error("Failed to zip files to volumes for " + process.getTitel() + ". Aborting.", e);
+            return false;
+        }
+        saveCompressionStatistics();
+        for (VolumeZipExport.Volume volume : volumes) {
+            metrics.addEntries(volume.getEntries());
+            metrics.addBytesWritten(volume.getTempFile().length());
+        }
+
+        // every volume is validated and transferred before the first one is published, so a failure keeps the previous export complete
+        metrics.startPhase(ExportMetrics.Phase.VALIDATION);
+        ZipVerifier.Level level = getValidationLevel(config);
+        for (VolumeZipExport.Volume volume : volumes) {
+            if (!verifyZip(volume.getTempFile(), volume.getManifest(), imageFolder, config.getInt("zipThreads", 0), level)) {
+                log.error(process.getTitel() + ": " + "Volume " + volume.getFile().getName() + " is corrupted. Aborting.");
+                VolumeZipExport.discard(volumes);
+                return false;
+            }
+        }
+
+        File destinationFolder = destFile.getParentFile();
+        // the validated volumes under their temporary names in the destination folder
+        List<File> transferred = new ArrayList<File>();
+        for (VolumeZipExport.Volume volume : volumes) {
+            File target = new File(destinationFolder, volume.getTempFile().getName());
+            if (!volume.getTempFile().equals(target)) {
+                metrics.startPhase(ExportMetrics.Phase.TRANSFER);
+                FileTransfer transfer = new FileTransfer();
+                transfer.setDigestAlgorithm(volume.getManifest().getAlgorithm());
+                try {
+                    byte[] copyChecksum = transfer.move(volume.getTempFile(), target);
+                    if (copyChecksum != null && !MessageDigest.isEqual(copyChecksum, volume.getManifest().getArchiveDigest())) {
+                        log.error(process.getTitel() + ": " + "Error copying volume " + volume.getFile().getName() + ": Copy is not valid. Aborting.");
+                        target.delete();
+                        discardVolumes(volumes, transferred);
+                        return false;
+                    }
+                } catch (IOException e) {
+                    log.error(process.getTitel() + ": " + "Error copying volume " + volume.getFile().getName() + ". Aborting.", e);
+                    discardVolumes(volumes, transferred);
+                    return false;
+                }
+            }
+            transferred.add(target);
+        }
+
+        metrics.startPhase(ExportMetrics.Phase.MANIFEST);
+        List<String> downloadUrls = new ArrayList<String>();
+        String donwloadServer = config.getString("downloadServer", "http://amsterdam01.intranda.com/");
+        for (int i = 0; i < volumes.size(); i++) {
+            VolumeZipExport.Volume volume = volumes.get(i);
+            File volumeFile = new File(destinationFolder, volume.getFile().getName());
+            try {
+                ArchiveUtils.replaceFile(transferred.get(i), volumeFile);
+                if (config.getBoolean("manifest.write", true)) {
+                    volume.getManifest().write(volumeFile);
+                }
+            } catch (IOException e) {
+                log.error(process.getTitel() + ": " + "Failed to publish volume " + volumeFile.getName() + ". Aborting.", e);
+                discardVolumes(volumes, transferred);
+                return false;
+            }
+            downloadUrls.add(donwloadServer + volumeFile.getName());
+        }
+
+        String indexName = VolumeZipExport.getIndexName(destFile.getName());
+        try {
+            VolumeZipExport.writeIndex(volumes, new File(destinationFolder, indexName));
+        } catch (IOException e) {
+            log.error(process.getTitel() + ": " + "Failed to write volume index. Aborting.", e);
+            return false;
+        }
+        // volumes of the previous export beyond the new ones are not listed anymore
+        VolumeZipExport.deleteVolumes(destinationFolder, destFile.getName(), volumes.size() + 1);
+        // the single archive of an earlier export would stay downloadable next to the volumes
+        ArchiveFormats.deleteAllFormats(destFile, ArchiveFormats.getInstance(ArchiveFormats.ZIP), indexName);
+        log.info("Exported " + process.getTitel() + " as " + volumes.size() + " volumes");
+        metrics.startPhase(ExportMetrics.Phase.SAVE);
+        return saveDownloadUrls(donwloadServer + indexName, downloadUrls);
+    }
+
+    /**
+     * Deletes the temporary files of volumes which were not published
+     * 
+     * @param volumes
+     * @param transferred the temporary files of the volumes in the destination folder
+     */
+    private static void discardVolumes(List<VolumeZipExport.Volume> volumes, List<File> transferred) {
+        VolumeZipExport.discard(volumes);
+        for (File file : transferred) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Stores the layout of the archive instead of the archive itself. The archive is generated from the images by the
+     * {@link ZipDeliveryServer} when it is downloaded
+     * 
+     * @param config
+     * @param images
+     * @param archiveName
+     * @param metrics
+     * @return true if the export was successful
+     */
+    private boolean exportStreamingLayout(XMLConfiguration config, List<FileScanner.ScannedFile> images, String archiveName, ExportMetrics metrics) {
+        try {
+            ZipDeliveryServer server = getDeliveryServer(config);
+            StreamingZipLayout layout = StreamingZipLayout.create(images, config.getInt("zipThreads", 0));
+            layout.write(server.getLayoutFile(archiveName));
+            metrics.addEntries(images.size());
+            metrics.addBytesWritten(layout.getLength());
+            log.info("Stored zip layout for " + process.getTitel() + ", the archive has " + layout.getLength() + " bytes");
+        } catch (IOException e) {
+            log.error(process.getTitel() + ": " + "Failed to create zip layout. Aborting.", e);
+            return false;
+        }
+        metrics.startPhase(ExportMetrics.Phase.SAVE);
+        String deliveryUrl = config.getString("delivery.url", "http://localhost:8085" + ZipDeliveryServer.CONTEXT);
+        return saveDownloadUrl(deliveryUrl + archiveName);
+    }
+
+    /**
+     * Saves the link to the archive as process property
+     * 
+     * @param downloadUrl
+     * @return false if the process could not be saved
+     */
+    private boolean saveDownloadUrl(String downloadUrl) {
+        return saveDownloadUrls(downloadUrl, new ArrayList<String>());
+    }
+
+    /**
+     * Saves the link to the archive and the links to its volumes as process properties. Volume links of a previous export which has more
+     * volumes are cleared. Within a batch export only the changed properties are saved
+     * 
+     * @param downloadUrl
+     * @param volumeUrls
+     * @return false if the process could not be saved
+     */
+    private boolean saveDownloadUrls(String downloadUrl, List<String> volumeUrls) {
         // - Name/Link als Property speichern
 
-        boolean matched = false;
+        List<Processproperty> changed = new ArrayList<Processproperty>();
+        changed.add(setProperty(PROPERTYTITLE, downloadUrl));
+        for (int i = 0; i < volumeUrls.size(); i++) {
+            changed.add(setProperty(PROPERTYTITLE + "_" + (i + 1), volumeUrls.get(i)));
+        }
         for (Processproperty pe : process.getEigenschaftenList()) {
-            if (pe.getTitel().equals(PROPERTYTITLE)) {
-                pe.setWert(downloadUrl);
-                matched = true;
-                break;
+            if (pe.getTitel().startsWith(PROPERTYTITLE + "_")) {
+                try {
+                    if (Integer.parseInt(pe.getTitel().substring(PROPERTYTITLE.length() + 1)) > volumeUrls.size() && !"".equals(pe.getWert())) {
+                        pe.setWert("");
+                        changed.add(pe);
+                    }
+                } catch (NumberFormatException e) {
+                    // not a volume link
+                }
             }
         }
 
-        if (!matched) {
-            Processproperty pe = new Processproperty();
-            pe.setTitel(PROPERTYTITLE);
-            pe.setWert(downloadUrl);
-            process.getEigenschaften().add(pe);
-            pe.setProzess(process);
+        if (batch) {
+            // saved right away, so an interrupted batch leaves no exported process with a stale link
+            for (Processproperty property : changed) {
+                try {
+                    PropertyManager.saveProcessProperty(property);
+                } catch (RuntimeException e) {
+                    log.error(process.getTitel() + ": " + "Unable to save property " + property.getTitel(), e);
+                    return false;
+                }
+            }
+            return true;
         }
-
         try {
             ProcessManager.saveProcess(process);
         } catch (DAOException e) {
@@ -187,6 +649,259 @@ public class ImageDeliveryPlugin implements IStepPlugin, IPlugin {
         return PluginGuiType.NONE;
     }
 
+    /**
+     * Returns the validation level configured for the project of the process in the section validation, or the default level. The former
+     * setting validation.mode is still read: streaming corresponds to the level manifest, paranoid to the level full
+     * 
+     * @param config
+     * @return
+     */
+    private ZipVerifier.Level getValidationLevel(XMLConfiguration config) {
+        String level = getProjectSetting(config, "validation", config.getString("validation.level",
+                "paranoid".equals(config.getString("validation.mode", "streaming")) ? "full" : "manifest"));
+        ZipVerifier.Level parsed = ZipVerifier.Level.parse(level);
+        if (parsed == null) {
+            log.warn("Unknown validation level " + level + ", validating " + process.getTitel() + " against the manifest");
+            return ZipVerifier.Level.MANIFEST;
+        }
+        return parsed;
+    }
+
+    /**
+     * Returns the value of the element project in the given section whose attribute name is the project of the process
+     * 
+     * @param config
+     * @param section
+     * @param defaultValue the value if the project has no element of its own
+     * @return
+     */
+    private String getProjectSetting(XMLConfiguration config, String section, String defaultValue) {
+        String value = defaultValue;
+        String project = process.getProjekt() == null ? null : process.getProjekt().getTitel();
+        for (int i = 0; project != null && i <= config.getMaxIndex(section + ".project"); i++) {
+            if (project.equals(config.getString(section + ".project(" + i + ")[@name]"))) {
+                value = config.getString(section + ".project(" + i + ")", value);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Opens the I/O budget of this export with the limits and the priority configured in the section io
+     * 
+     * @param config
+     * @return
+     */
+    private IoGovernor.Budget openIoBudget(XMLConfiguration config) {
+        String name = getProjectSetting(config, "io", config.getString("io.priority", "interactive"));
+        IoGovernor.Priority priority = IoGovernor.Priority.parse(name);
+        if (priority == null) {
+            log.warn("Unknown I/O priority " + name + ", exporting " + process.getTitel() + " as interactive");
+            priority = IoGovernor.Priority.INTERACTIVE;
+        }
+        return getIoGovernor(config).open(priority, config.getLong("io.exportBandwidth", 0) * 1024 * 1024, config.getLong("io.exportIops", 0));
+    }
+
+    /**
+     * Returns the governor with the global limits configured in the section io, shared by all exports
+     * 
+     * @param config
+     * @return
+     */
+    private static synchronized IoGovernor getIoGovernor(XMLConfiguration config) {
+        long bandwidth = config.getLong("io.bandwidth", 0) * 1024 * 1024;
+        long iops = config.getLong("io.iops", 0);
+        if (ioGovernor == null || ioGovernor.getBandwidth() != bandwidth || ioGovernor.getIops() != iops) {
+            ioGovernor = new IoGovernor(bandwidth, iops);
+        }
+        return ioGovernor;
+    }
+
+    /**
+     * Counts the files among the scanned images
+     * 
+     * @param images
+     * @param recursive true to count the content of directories as well, as the archives of the masters contain it
+     * @return
+     * @throws IOException if a directory can't be read
+     */
+    private static int countFiles(List<FileScanner.ScannedFile> images, boolean recursive) throws IOException {
+        final int[] count = new int[1];
+        if (!recursive) {
+            for (FileScanner.ScannedFile image : images) {
+                if (!image.isDirectory()) {
+                    count[0]++;
+                }
+            }
+            return count[0];
+        }
+        FileScanner.scan(images, new FileScanner.Visitor() {
+            @Override
+            public void visit(FileScanner.ScannedFile file) {
+                if (!file.isDirectory()) {
+                    count[0]++;
+                }
+            }
+        });
+        return count[0];
+    }
+
+    /**
+     * Verifies a zip archive at the given level
+     * 
+     * @param zipFile
+     * @param manifest the manifest filled while the archive was written
+     * @param originals the folder containing the original files
+     * @param threads
+     * @param level
+     * @return
+     */
+    private boolean verifyZip(File zipFile, ArchiveManifest manifest, File originals, int threads, ZipVerifier.Level level) {
+        long start = System.currentTimeMillis();
+        ZipVerifier verifier = new ZipVerifier(zipFile);
+        verifier.setThreads(threads);
+        verifier.setManifest(manifest);
+        verifier.setOriginals(originals);
+        boolean valid = verifier.verify(level);
+        log.debug("Verified " + zipFile.getName() + " at level " + level + " in " + (System.currentTimeMillis() - start) + " ms");
+        return valid;
+    }
+
+    /**
+     * Creates the renderer of the derivatives configured in the section derivatives
+     * 
+     * @param config
+     * @return the renderer, or null if the format can't be written
+     */
+    private ImageDerivatives createDerivatives(XMLConfiguration config) {
+        ImageDerivatives imageDerivatives;
+        try {
+            imageDerivatives = new ImageDerivatives(config.getInt("derivatives.maxSize", 2000), config.getFloat("derivatives.quality", 0.85f),
+                    config.getString("derivatives.format", "jpg"));
+        } catch (IllegalArgumentException e) {
+            log.error(process.getTitel() + ": " + e.getMessage() + ". Aborting.");
+            return null;
+        }
+        imageDerivatives.setCache(getDerivativeCache(config));
+        return imageDerivatives;
+    }
+
+    /**
+     * Returns the cache of rendered derivatives configured in the section derivatives, shared by all exports of this server
+     * 
+     * @param config
+     * @return the cache, or null if it is disabled
+     */
+    private static synchronized CacheFolder getDerivativeCache(XMLConfiguration config) {
+        String cacheFolder = config.getString("derivatives.cacheFolder", "");
+        if (cacheFolder.isEmpty()) {
+            return null;
+        }
+        long cacheSize = config.getLong("derivatives.cacheSize", 10240) * 1024 * 1024;
+        if (derivativeCache == null || !derivativeCache.getFolder().equals(new File(cacheFolder)) || derivativeCache.getMaxSize() != cacheSize) {
+            // the extension of the derivatives depends on the configured format
+            derivativeCache = new CacheFolder(new File(cacheFolder), cacheSize, "");
+        }
+        return derivativeCache;
+    }
+
+    /**
+     * Creates the compression policy configured in the section compression, or null if adaptive compression is disabled
+     * 
+     * @param config
+     * @return
+     */
+    private CompressionPolicy createCompressionPolicy(XMLConfiguration config) {
+        if (!config.getBoolean("compression.adaptive", true)) {
+            return null;
+        }
+        CompressionPolicy policy = new CompressionPolicy();
+        String[] storedExtensions = config.getStringArray("compression.store");
+        if (storedExtensions != null && storedExtensions.length > 0) {
+            policy.setStoredExtensions(new HashSet<String>(Arrays.asList(storedExtensions)));
+        }
+        policy.setLevel(config.getInt("compression.level", Deflater.DEFAULT_COMPRESSION));
+        policy.setSampleSize(config.getInt("compression.sampleSize", policy.getSampleSize()));
+        policy.setMinSavings(config.getDouble("compression.minSavings", policy.getMinSavings()));
+        policy.setLearningThreshold(config.getInt("compression.learningThreshold", policy.getLearningThreshold()));
+        policy.setStatistics(compressionStatistics);
+        policy.setEntryCache(getEntryCache(config));
+        policy.setReadAheadThreads(config.getInt("compression.readAheadThreads", policy.getReadAheadThreads()));
+
+        String statisticsFile = config.getString("compression.statisticsFile", "");
+        synchronized (compressionStatistics) {
+            if (!statisticsFile.isEmpty() && compressionStatisticsFile == null) {
+                compressionStatisticsFile = new File(statisticsFile);
+                try {
+                    compressionStatistics.load(compressionStatisticsFile);
+                } catch (IOException e) {
+                    log.warn("Unable to read compression statistics from " + statisticsFile, e);
+                }
+            }
+        }
+        return policy;
+    }
+
+    /**
+     * Returns the cache of deflated entries configured in the section compression, shared by all exports using the same folder
+     * 
+     * @param config
+     * @return the cache, or null if no cache folder is configured
+     */
+    private static synchronized EntryCache getEntryCache(XMLConfiguration config) {
+        String cacheFolder = config.getString("compression.cacheFolder", "");
+        if (cacheFolder.isEmpty()) {
+            return null;
+        }
+        long cacheSize = config.getLong("compression.cacheSize", 10240) * 1024 * 1024;
+        if (entryCache == null || !entryCache.getFolder().equals(new File(cacheFolder)) || entryCache.getMaxSize() != cacheSize) {
+            entryCache = new EntryCache(new File(cacheFolder), cacheSize);
+        }
+        return entryCache;
+    }
+
+    private void saveCompressionStatistics() {
+        synchronized (compressionStatistics) {
+            if (compressionStatisticsFile != null) {
+                try {
+                    compressionStatistics.save(compressionStatisticsFile);
+                } catch (IOException e) {
+                    log.warn("Unable to write compression statistics to " + compressionStatisticsFile.getAbsolutePath(), e);
+                }
+            }
+        }
+    }
+
+    private Processproperty setProperty(String title, String value) {
+        for (Processproperty pe : process.getEigenschaftenList()) {
+            if (pe.getTitel().equals(title)) {
+                pe.setWert(value);
+                return pe;
+            }
+        }
+
+        Processproperty pe = new Processproperty();
+        pe.setTitel(title);
+        pe.setWert(value);
+        process.getEigenschaften().add(pe);
+        pe.setProzess(process);
+        return pe;
+    }
+
+    /**
+     * Writes the metrics of the export to the log and, if configured, to the process log
+     * 
+     * @param metrics
+     * @param success
+     */
+    private void logMetrics(ExportMetrics metrics, boolean success) {
+        String summary = metrics.getSummary() + (success ? "" : ", failed");
+        log.info(process.getTitel() + ": " + summary);
+        if (getConfig().getBoolean("metrics.processLog", true)) {
+            ProcessManager.addLogfile(WikiFieldHelper.getWikiMessage(process.getWikifield(), "info", summary), process.getId());
+        }
+    }
+
     private void createMessages(String message, Exception e) {
         if (e != null) {
             Helper.setFehlerMeldung(message, e);
@@ -0,0 +1,110 @@
+package de.intranda.goobi.plugins;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Publishes the export metrics in the global Micrometer registry, so they reach every registry the web application adds to it. Micrometer
+ * is optional, this class is only loaded if it is on the class path.
+ *
+ */
+class MicrometerExportMetrics {
+
+    private static final String PREFIX = "goobi.imageexport.";
+
+    private final Timer[] phaseTimers = new Timer[ExportMetrics.Phase.values().length];
+    private final Timer exportTimer;
+    private final DistributionSummary compressionRatio;
+
+    MicrometerExportMetrics(ExportMonitor monitor) {
+        MeterRegistry registry = Metrics.globalRegistry;
+        removeMeters(registry);
+        Gauge.builder(PREFIX + "inflight", monitor, new ToDoubleFunction<ExportMonitor>() {
+            @Override
+            public double applyAsDouble(ExportMonitor value) {
+                return value.getExportsInFlight();
+            }
+        }).description("exports currently running").register(registry);
+        FunctionCounter.builder(PREFIX + "exports", monitor, new ToDoubleFunction<ExportMonitor>() {
+            @Override
+            public double applyAsDouble(ExportMonitor value) {
+                return value.getExportsSucceeded();
+            }
+        }).tag("result", "success").register(registry);
+        FunctionCounter.builder(PREFIX + "exports", monitor, new ToDoubleFunction<ExportMonitor>() {
+            @Override
+            public double applyAsDouble(ExportMonitor value) {
+                return value.getExportsFailed();
+            }
+        }).tag("result", "failure").register(registry);
+        FunctionCounter.builder(PREFIX + "bytes.read", monitor, new ToDoubleFunction<ExportMonitor>() {
+            @Override
+            public double applyAsDouble(ExportMonitor value) {
+                return value.getBytesRead();
+            }
+        }).baseUnit("bytes").register(registry);
+        FunctionCounter.builder(PREFIX + "bytes.written", monitor, new ToDoubleFunction<ExportMonitor>() {
+            @Override
+            public double applyAsDouble(ExportMonitor value) {
+                return value.getBytesWritten();
+            }
+        }).baseUnit("bytes").register(registry);
+        FunctionCounter.builder(PREFIX + "entries", monitor, new ToDoubleFunction<ExportMonitor>() {
+            @Override
+            public double applyAsDouble(ExportMonitor value) {
+                return value.getEntries();
+            }
+        }).register(registry);
+
+        for (ExportMetrics.Phase phase : ExportMetrics.Phase.values()) {
+            phaseTimers[phase.ordinal()] = Timer.builder(PREFIX + "phase").tag("phase", phase.name().toLowerCase(Locale.ENGLISH)).register(
+                    registry);
+        }
+        exportTimer = Timer.builder(PREFIX + "duration").publishPercentiles(0.5, 0.95, 0.99).register(registry);
+        compressionRatio = DistributionSummary.builder(PREFIX + "compression.ratio").register(registry);
+    }
+
+    /**
+     * Removes the meters left over from a previous deployment of the plugin. Registering them again would return the old meters, which
+     * still report the monitor of the previous deployment
+     */
+    private static void removeMeters(MeterRegistry registry) {
+        List<Meter> previous = new ArrayList<Meter>();
+        for (Meter meter : registry.getMeters()) {
+            if (meter.getId().getName().startsWith(PREFIX)) {
+                previous.add(meter);
+            }
+        }
+        for (Meter meter : previous) {
+            registry.remove(meter);
+        }
+    }
+
+    /**
+     * Records the durations and the compression ratio of a finished export
+     *
+     * @param metrics
+     */
+    void record(ExportMetrics metrics) {
+        for (ExportMetrics.Phase phase : ExportMetrics.Phase.values()) {
+            if (metrics.getPhaseNanos(phase) > 0) {
+                phaseTimers[phase.ordinal()].record(metrics.getPhaseNanos(phase), TimeUnit.NANOSECONDS);
+            }
+        }
+        exportTimer.record(metrics.getDuration(), TimeUnit.NANOSECONDS);
+        if (metrics.getBytesRead() > 0) {
+            compressionRatio.record(metrics.getCompressionRatio());
+        }
+    }
+}
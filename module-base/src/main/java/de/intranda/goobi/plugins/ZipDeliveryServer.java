@@ -0,0 +1,206 @@
+package de.intranda.goobi.plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import de.intranda.goobi.plugins.utils.IoGovernor;
+import de.intranda.goobi.plugins.utils.StreamingZipLayout;
+
+/**
+ * A small HTTP server delivering zip archives which are generated from the images while they are downloaded. For every exported process the
+ * layout folder contains a {@link StreamingZipLayout}; a request for <code>/download/&lt;name&gt;</code> streams the archive described by
+ * <code>&lt;name&gt;.layout</code>.
+ *
+ * The length of the archive is known in advance, so responses have a Content-Length and single byte ranges are supported, which allows
+ * download managers to resume interrupted downloads. If the images changed since the export, the request fails with 409 Conflict and the
+ * process has to be exported again.
+ *
+ * The server does not authenticate requests, anybody who can reach it can download every exported archive. It therefore listens on localhost
+ * by default and has to be published through a reverse proxy which authenticates the users.
+ *
+ */
+public class ZipDeliveryServer {
+
+    private static final Logger log = Logger.getLogger(ZipDeliveryServer.class);
+
+    public static final String CONTEXT = "/download/";
+
+    private static ZipDeliveryServer instance;
+
+    private final File layoutFolder;
+    private final HttpServer server;
+
+    private ZipDeliveryServer(String address, int port, File layoutFolder, int threads) throws IOException {
+        this.layoutFolder = layoutFolder;
+        this.server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        server.createContext(CONTEXT, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    deliver(exchange);
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Delivery of " + exchange.getRequestURI() + " failed: " + e.toString());
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(IoGovernor.detached(runnable), "zip-delivery-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }));
+        // the dispatcher thread serves all downloads, it must not inherit the budget of the export starting the server
+        IoGovernor.Budget budget = IoGovernor.detach();
+        try {
+            server.start();
+        } finally {
+            if (budget != null) {
+                budget.attach();
+            }
+        }
+        log.info("Zip delivery listening on " + address + ":" + port + ", serving layouts from " + layoutFolder.getAbsolutePath());
+    }
+
+    /**
+     * Returns the delivery server of this web application, starting it on the first call
+     *
+     * @param address the host name or IP address to listen on
+     * @param port
+     * @param layoutFolder the folder containing the layouts of all delivered archives
+     * @param threads the maximal number of downloads served at the same time
+     * @return
+     * @throws IOException if the server cannot be started
+     */
+    public static synchronized ZipDeliveryServer getInstance(String address, int port, File layoutFolder, int threads) throws IOException {
+        if (instance == null) {
+            instance = new ZipDeliveryServer(address, port, layoutFolder, Math.max(threads, 1));
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the file the layout of the given archive is stored in
+     *
+     * @param archiveName
+     * @return
+     */
+    public File getLayoutFile(String archiveName) {
+        return new File(layoutFolder, archiveName + StreamingZipLayout.SUFFIX);
+    }
+
+    private void deliver(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        boolean head = "HEAD".equals(method);
+        if (!head && !"GET".equals(method)) {
+            exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+        String archiveName = exchange.getRequestURI().getPath().substring(CONTEXT.length());
+        File layoutFile = getLayoutFile(archiveName);
+        if (archiveName.isEmpty() || archiveName.contains("/") || archiveName.startsWith(".") || !layoutFile.isFile()) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        StreamingZipLayout layout = StreamingZipLayout.read(layoutFile);
+        if (!layout.isCurrent()) {
+            log.warn("Images of " + archiveName + " changed since the export, the archive cannot be delivered");
+            exchange.sendResponseHeaders(409, -1);
+            return;
+        }
+
+        long length = layout.getLength();
+        String etag = "\"" + Long.toHexString(layoutFile.lastModified()) + "-" + Long.toHexString(length) + "\"";
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", "application/zip");
+        headers.set("Content-Disposition", "attachment; filename=\"" + archiveName + "\"");
+        headers.set("Accept-Ranges", "bytes");
+        headers.set("ETag", etag);
+
+        long start = 0;
+        long end = length - 1;
+        int status = 200;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        if (range != null && (ifRange == null || ifRange.equals(etag))) {
+            long[] bounds = parseRange(range, length);
+            if (bounds == null) {
+                headers.set("Content-Range", "bytes */" + length);
+                exchange.sendResponseHeaders(416, -1);
+                return;
+            }
+            if (bounds.length == 2) {
+                start = bounds[0];
+                end = bounds[1];
+                status = 206;
+                headers.set("Content-Range", "bytes " + start + "-" + end + "/" + length);
+            }
+        }
+
+        long count = end - start + 1;
+        if (head) {
+            headers.set("Content-Length", String.valueOf(count));
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, count);
+        layout.transferTo(Channels.newChannel(exchange.getResponseBody()), start, count);
+    }
+
+    /**
+     * Parses a Range header
+     *
+     * @return the first and last byte of a single satisfiable range, an empty array if the header is ignored, or null if the range is not
+     *         satisfiable
+     */
+    static long[] parseRange(String range, long length) {
+        if (!range.startsWith("bytes=") || range.contains(",")) {
+            // other units and multiple ranges are answered with the whole archive
+            return new long[0];
+        }
+        String spec = range.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return new long[0];
+        }
+        try {
+            long start;
+            long end;
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1));
+                if (suffix <= 0) {
+                    return null;
+                }
+                start = Math.max(length - suffix, 0);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                end = dash == spec.length() - 1 ? length - 1 : Math.min(Long.parseLong(spec.substring(dash + 1)), length - 1);
+            }
+            if (start >= length || start > end) {
+                return null;
+            }
+            return new long[] { start, end };
+        } catch (NumberFormatException e) {
+            return new long[0];
+        }
+    }
+}
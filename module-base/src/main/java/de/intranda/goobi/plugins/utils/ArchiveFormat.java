@@ -0,0 +1,82 @@
+package de.intranda.goobi.plugins.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A format the images can be exported in. Formats are found with {@link java.util.ServiceLoader} or registered with
+ * {@link ArchiveFormats#register(ArchiveFormat)}
+ *
+ */
+public interface ArchiveFormat {
+
+    /**
+     * @return the name of the format, as used in the configuration
+     */
+    String getName();
+
+    /**
+     * @return the file extension of the archives, including the leading dot
+     */
+    String getExtension();
+
+    /**
+     * Creates an archive of the given files. An existing archive gets replaced
+     *
+     * @param files files and directories to add to the archive under their names, e.g. listed by
+     *            {@link FileScanner#listFolder(File, java.io.FilenameFilter)}. Their attributes are not read again
+     * @param archive the archive to create
+     * @param threads number of compression threads. Values below 1 use one thread per available processor
+     * @param policy the compression settings, may be null
+     * @param manifest receives size, CRC32 and digest of the entries and the digest of the archive
+     * @throws IOException
+     */
+    void writeFiles(List<FileScanner.ScannedFile> files, File archive, int threads, CompressionPolicy policy, ArchiveManifest manifest)
+            throws IOException;
+
+    /**
+     * Creates an archive of entries whose content is created by the threads writing the archive, without storing it in files first. An
+     * existing archive gets replaced
+     *
+     * @param entries the entries in archive order
+     * @param archive the archive to create
+     * @param threads number of threads creating and compressing the entries. Values below 1 use one thread per available processor
+     * @param policy the compression settings, may be null
+     * @param manifest receives size, CRC32 and digest of the entries and the digest of the archive
+     * @throws IOException
+     */
+    void writeEntries(List<EntrySource> entries, File archive, int threads, CompressionPolicy policy, ArchiveManifest manifest) throws IOException;
+
+    /**
+     * Validates the archive against the digests captured while it was written
+     *
+     * @param archive
+     * @param manifest
+     * @param threads number of validating threads, if the format can be read in parallel
+     * @return
+     */
+    boolean validate(File archive, ArchiveManifest manifest, int threads);
+
+    /**
+     * Validates the archive by extracting all entries and comparing them with the original files
+     *
+     * @param archive
+     * @param origFilesParent the folder containing the original files
+     * @param supposedFiles the number of files the archive has to contain
+     * @param threads number of validating threads, if the format can be read in parallel
+     * @return
+     */
+    boolean validate(File archive, File origFilesParent, int supposedFiles, int threads);
+
+    /**
+     * Extracts all entries of the archive
+     *
+     * @param archive
+     * @param destDir
+     * @param threads number of extracting threads, if the format can be read in parallel
+     * @return the extracted files
+     * @throws IOException
+     */
+    List<File> extract(File archive, File destDir, int threads) throws IOException;
+}
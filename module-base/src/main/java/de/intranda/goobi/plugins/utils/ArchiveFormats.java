@@ -0,0 +1,129 @@
+package de.intranda.goobi.plugins.utils;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.compress.compressors.zstandard.ZstdUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * The formats the images can be exported in:
+ * <ul>
+ * <li>zip: entries compressed individually according to the {@link CompressionPolicy}</li>
+ * <li>tar: uncompressed, for exports at the speed of the disks</li>
+ * <li>tar.gz: compressed in parallel blocks, see {@link BlockGzipOutputStream}</li>
+ * <li>tar.zst: Zstandard compressed, only available if zstd-jni is on the class path</li>
+ * </ul>
+ * Further formats can be added with an {@link ArchiveFormat}.
+ *
+ */
+public class ArchiveFormats {
+
+    private static final Logger logger = Logger.getLogger(ArchiveFormats.class);
+
+    public static final String ZIP = "zip";
+    public static final String TAR = "tar";
+    public static final String TAR_GZ = "tar.gz";
+    public static final String TAR_ZST = "tar.zst";
+
+    private static final Map<String, ArchiveFormat> formats = new ConcurrentHashMap<String, ArchiveFormat>();
+
+    static {
+        register(new ZipFormat());
+        register(new TarFormat(TAR));
+        register(new TarFormat(TAR_GZ));
+        if (ZstdUtils.isZstdCompressionAvailable()) {
+            register(new ZstdTarFormat());
+        }
+        try {
+            for (ArchiveFormat format : ServiceLoader.load(ArchiveFormat.class, ArchiveFormats.class.getClassLoader())) {
+                register(format);
+            }
+        } catch (ServiceConfigurationError e) {
+            logger.error("Unable to load archive formats", e);
+        }
+    }
+
+    private ArchiveFormats() {
+    }
+
+    /**
+     * Adds a format, replacing a format of the same name
+     *
+     * @param format
+     */
+    public static void register(ArchiveFormat format) {
+        formats.put(format.getName().toLowerCase(Locale.ENGLISH), format);
+    }
+
+    /**
+     * Returns the format of the given name
+     *
+     * @param name
+     * @return the format, or null if it is unknown or not available
+     */
+    public static ArchiveFormat getInstance(String name) {
+        return formats.get(name.toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * @return the names of the available formats
+     */
+    public static Set<String> getNames() {
+        return new TreeSet<String>(formats.keySet());
+    }
+
+    /**
+     * Deletes the archives of all other formats next to the given archive, with their manifests and indexes. They are left behind by earlier
+     * exports when the configured format changes
+     *
+     * @param archive
+     * @param format the format of the archive
+     */
+    public static void deleteOtherFormats(File archive, ArchiveFormat format) {
+        deleteArchives(archive, format, archive, archive.getName());
+    }
+
+    /**
+     * Deletes the archives of all formats named like the given archive, including the archive itself, with their manifests and indexes.
+     * They are left behind by earlier exports when the export is split into volumes
+     *
+     * @param archive
+     * @param format the format of the archive
+     * @param replacement the name of the file replacing the archives, for the log
+     */
+    public static void deleteAllFormats(File archive, ArchiveFormat format, String replacement) {
+        deleteArchives(archive, format, null, replacement);
+    }
+
+    private static void deleteArchives(File archive, ArchiveFormat format, File keep, String replacement) {
+        String baseName = archive.getName().substring(0, archive.getName().length() - format.getExtension().length());
+        for (ArchiveFormat other : formats.values()) {
+            File stale = new File(archive.getParentFile(), baseName + other.getExtension());
+            if (stale.equals(keep) || !stale.isFile()) {
+                continue;
+            }
+            logger.info("Deleting " + stale.getAbsolutePath() + ", it was replaced by " + replacement);
+            stale.delete();
+            ArchiveManifest.delete(stale);
+            BlockGzipIndex.getIndexFile(stale).delete();
+        }
+    }
+
+    /**
+     * Returns the file an archive is written to before it replaces the given archive. The name keeps the extension, as some writers choose
+     * the compression by the extension
+     *
+     * @param archive
+     * @return
+     */
+    static File getTempFile(File archive) {
+        return new File(archive.getParentFile(), "." + archive.getName());
+    }
+}
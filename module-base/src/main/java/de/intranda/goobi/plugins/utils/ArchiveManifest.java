@@ -0,0 +1,322 @@
+package de.intranda.goobi.plugins.utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Size, CRC32 and digest of the archive entries, captured while the archive is written. Allows to validate an archive by reading it once,
+ * without extracting the entries or reading the original files again, and to verify copies of the archive without hashing it again.
+ *
+ * The manifest is stored next to the archive in two BagIt style files: <code>&lt;archive&gt;.manifest-&lt;algorithm&gt;.txt</code> contains a
+ * line <code>&lt;digest&gt;  &lt;path&gt;</code> per entry like a BagIt payload manifest, <code>&lt;archive&gt;.bag-info.txt</code> contains
+ * the Payload-Oxum, size and digest of the archive and an <code>Entry: &lt;size&gt; &lt;crc32&gt; &lt;path&gt;</code> line per entry.
+ *
+ */
+public class ArchiveManifest {
+
+    private static final String ENTRY_LABEL = "Entry";
+    private static final String OXUM_LABEL = "Payload-Oxum";
+    private static final String ARCHIVE_SIZE_LABEL = "Archive-Size";
+    private static final String ARCHIVE_DIGEST_LABEL = "Archive-Digest";
+    private static final String ALGORITHM_LABEL = "Digest-Algorithm";
+
+    private final String algorithm;
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    private long archiveSize = -1;
+    private byte[] archiveDigest;
+
+    /**
+     * Creates a manifest using MD5 digests
+     */
+    public ArchiveManifest() {
+        this("MD5");
+    }
+
+    /**
+     * Creates a manifest using the given {@link MessageDigest} algorithm
+     *
+     * @param algorithm
+     */
+    public ArchiveManifest(String algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Returns a new digest instance of the algorithm of this manifest
+     *
+     * @return
+     * @throws IOException if the algorithm is not available
+     */
+    public MessageDigest createDigest() throws IOException {
+        try {
+            return Digests.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("No checksum algorithm \"" + algorithm + "\"", e);
+        }
+    }
+
+    /**
+     * Adds an entry. Entries are kept in the order they were added, which is the order in the archive
+     *
+     * @param name the name of the entry inside the archive
+     * @param size the uncompressed size
+     * @param crc the CRC32 of the uncompressed content
+     * @param digest the digest of the uncompressed content
+     */
+    public synchronized void add(String name, long size, long crc, byte[] digest) {
+        entries.put(name, new Entry(name, size, crc, digest));
+    }
+
+    /**
+     * Returns the entry with the given name, or null if there is none
+     *
+     * @param name
+     * @return
+     */
+    public synchronized Entry getEntry(String name) {
+        return entries.get(name);
+    }
+
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Removes all entries and the archive, e.g. before the archive is written again from the start
+     */
+    public synchronized void clear() {
+        entries.clear();
+        archiveSize = -1;
+        archiveDigest = null;
+    }
+
+    /**
+     * Sets size and digest of the complete archive file
+     *
+     * @param size
+     * @param digest
+     */
+    public synchronized void setArchive(long size, byte[] digest) {
+        this.archiveSize = size;
+        this.archiveDigest = digest;
+    }
+
+    /**
+     * @return the size of the archive file, or -1 if unknown
+     */
+    public synchronized long getArchiveSize() {
+        return archiveSize;
+    }
+
+    /**
+     * @return the digest of the archive file, or null if unknown
+     */
+    public synchronized byte[] getArchiveDigest() {
+        return archiveDigest;
+    }
+
+    /**
+     * Returns the file name suffix of the payload manifest, e.g. <code>.manifest-sha256.txt</code> for SHA-256
+     *
+     * @param algorithm
+     * @return
+     */
+    public static String getManifestSuffix(String algorithm) {
+        return ".manifest-" + algorithm.replace("-", "").toLowerCase(Locale.ENGLISH) + ".txt";
+    }
+
+    /**
+     * Writes the manifest files next to the given archive
+     *
+     * @param archive
+     * @throws IOException
+     */
+    public synchronized void write(File archive) throws IOException {
+        long payloadSize = 0;
+        Writer manifestWriter = createWriter(new File(archive.getParentFile(), archive.getName() + getManifestSuffix(algorithm)));
+        try {
+            for (Entry entry : entries.values()) {
+                manifestWriter.write(ArchiveUtils.convertChecksumToHex(entry.getDigest()) + "  " + entry.getName() + "\n");
+                payloadSize += entry.getSize();
+            }
+        } finally {
+            manifestWriter.close();
+        }
+
+        Writer infoWriter = createWriter(new File(archive.getParentFile(), archive.getName() + ".bag-info.txt"));
+        try {
+            infoWriter.write(OXUM_LABEL + ": " + payloadSize + "." + entries.size() + "\n");
+            infoWriter.write(ALGORITHM_LABEL + ": " + algorithm + "\n");
+            if (archiveDigest != null) {
+                infoWriter.write(ARCHIVE_SIZE_LABEL + ": " + archiveSize + "\n");
+                infoWriter.write(ARCHIVE_DIGEST_LABEL + ": " + ArchiveUtils.convertChecksumToHex(archiveDigest) + "\n");
+            }
+            for (Entry entry : entries.values()) {
+                infoWriter.write(ENTRY_LABEL + ": " + entry.getSize() + " " + String.format("%08x", entry.getCrc()) + " " + entry.getName() + "\n");
+            }
+        } finally {
+            infoWriter.close();
+        }
+    }
+
+    /**
+     * Deletes the manifest files written next to the given archive, whatever algorithm they were written with
+     *
+     * @param archive
+     */
+    public static void delete(final File archive) {
+        new File(archive.getParentFile(), archive.getName() + ".bag-info.txt").delete();
+        File[] manifests = archive.getParentFile().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(archive.getName() + ".manifest-") && name.endsWith(".txt");
+            }
+        });
+        if (manifests != null) {
+            for (File manifest : manifests) {
+                manifest.delete();
+            }
+        }
+    }
+
+    /**
+     * Reads the manifest written next to the given archive, or returns null if there is none
+     *
+     * @param archive
+     * @return
+     * @throws IOException if the manifest files are not readable or don't match
+     */
+    public static ArchiveManifest read(File archive) throws IOException {
+        File infoFile = new File(archive.getParentFile(), archive.getName() + ".bag-info.txt");
+        if (!infoFile.isFile()) {
+            return null;
+        }
+
+        String algorithm = null;
+        long archiveSize = -1;
+        byte[] archiveDigest = null;
+        List<String[]> entryInfos = new ArrayList<String[]>();
+        BufferedReader infoReader = createReader(infoFile);
+        try {
+            String line;
+            while ((line = infoReader.readLine()) != null) {
+                int index = line.indexOf(": ");
+                if (index < 0) {
+                    continue;
+                }
+                String label = line.substring(0, index);
+                String value = line.substring(index + 2);
+                if (ALGORITHM_LABEL.equals(label)) {
+                    algorithm = value;
+                } else if (ARCHIVE_SIZE_LABEL.equals(label)) {
+                    archiveSize = Long.parseLong(value);
+                } else if (ARCHIVE_DIGEST_LABEL.equals(label)) {
+                    archiveDigest = ArchiveUtils.convertHexToChecksum(value);
+                } else if (ENTRY_LABEL.equals(label)) {
+                    entryInfos.add(value.split(" ", 3));
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid manifest " + infoFile.getAbsolutePath(), e);
+        } finally {
+            infoReader.close();
+        }
+        if (algorithm == null) {
+            throw new IOException("No digest algorithm in manifest " + infoFile.getAbsolutePath());
+        }
+
+        Map<String, byte[]> digests = new HashMap<String, byte[]>();
+        BufferedReader manifestReader = createReader(new File(archive.getParentFile(), archive.getName() + getManifestSuffix(algorithm)));
+        try {
+            String line;
+            while ((line = manifestReader.readLine()) != null) {
+                int index = line.indexOf("  ");
+                if (index > 0) {
+                    digests.put(line.substring(index + 2), ArchiveUtils.convertHexToChecksum(line.substring(0, index)));
+                }
+            }
+        } finally {
+            manifestReader.close();
+        }
+
+        ArchiveManifest manifest = new ArchiveManifest(algorithm);
+        for (String[] info : entryInfos) {
+            if (info.length != 3 || !digests.containsKey(info[2])) {
+                throw new IOException("Manifest files of " + archive.getAbsolutePath() + " don't match");
+            }
+            try {
+                manifest.add(info[2], Long.parseLong(info[0]), Long.parseLong(info[1], 16), digests.get(info[2]));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid manifest entry " + info[2], e);
+            }
+        }
+        manifest.setArchive(archiveSize, archiveDigest);
+        return manifest;
+    }
+
+    private static Writer createWriter(File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+    }
+
+    private static BufferedReader createReader(File file) throws IOException {
+        return new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * A single file inside the archive
+     */
+    public static class Entry {
+        private final String name;
+        private final long size;
+        private final long crc;
+        private final byte[] digest;
+
+        public Entry(String name, long size, long crc, byte[] digest) {
+            this.name = name;
+            this.size = size;
+            this.crc = crc;
+            this.digest = digest;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public byte[] getDigest() {
+            return digest;
+        }
+    }
+}
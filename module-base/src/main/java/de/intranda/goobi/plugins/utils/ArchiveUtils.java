@@ -19,27 +19,54 @@ package de.intranda.goobi.plugins.utils;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 
 import org.apache.log4j.Logger;
 
@@ -63,23 +90,25 @@ public class ArchiveUtils {
      */
     public static File unGzipFile(File source, File dest) throws IOException {
 
-        FileInputStream fis = null;
+        InputStream fis = null;
         BufferedInputStream bis = null;
         GZIPInputStream gis = null;
-        FileOutputStream fos = null;
+        OutputStream fos = null;
+        BufferPool pool = BufferPool.getShared();
+        byte[] buf = pool.acquireArray();
 
         try {
-            fis = new FileInputStream(source);
+            fis = IoGovernor.openInput(source);
             bis = new BufferedInputStream(fis);
             gis = new GZIPInputStream(bis);
-            fos = new FileOutputStream(dest);
+            fos = IoGovernor.openOutput(dest);
 
-            byte[] buf = new byte[1024];
             int len;
             while ((len = gis.read(buf)) > 0) {
                 fos.write(buf, 0, len);
             }
         } finally {
+            pool.release(buf);
             if (fis != null) {
                 fis.close();
             }
@@ -104,50 +133,121 @@ public class ArchiveUtils {
      * @throws IOException
      */
     public static ArrayList<File> unzipFile(File source, File destDir) throws IOException {
+        return unzipFile(source, destDir, 0);
+    }
+
+    /**
+     * Unzip a zip archive with the given number of threads. The entries are found in the central directory and read at their offsets, each
+     * thread decompressing different entries
+     * 
+     * @param source
+     * @param destDir
+     * @param threads number of extracting threads. Values below 1 use one thread per available processor
+     * @return the extracted files in archive order
+     * @throws IOException
+     */
+    public static ArrayList<File> unzipFile(File source, File destDir, int threads) throws IOException {
         ArrayList<File> fileList = new ArrayList<File>();
 
         if (!destDir.isDirectory())
             destDir.mkdirs();
 
-        ZipInputStream in = null;
+        final ZipFile zip = new ZipFile(source);
+        ExecutorService executor = Executors.newFixedThreadPool(ParallelZipCreator.getThreadCount(threads));
         try {
-            in = new ZipInputStream((new BufferedInputStream(new FileInputStream(source))));
-            ZipEntry entry;
-            while ((entry = in.getNextEntry()) != null) {
-                File tempFile = new File(destDir, entry.getName());
+            List<Future<?>> results = new ArrayList<Future<?>>();
+            for (final ZipArchiveEntry entry : Collections.list(zip.getEntriesInPhysicalOrder())) {
+                final File tempFile = getExtractedFile(destDir, entry.getName());
+                if (tempFile == null) {
+                    continue;
+                }
+                // folders are created in archive order, before their files are written
+                if (entry.isDirectory()) {
+                    tempFile.mkdirs();
+                    continue;
+                }
                 fileList.add(tempFile);
                 tempFile.getParentFile().mkdirs();
-                tempFile.createNewFile();
                 logger.debug("Unzipping file " + entry.getName() + " from archive " + source.getName() + " to " + tempFile.getAbsolutePath());
-                BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile));
-
-                int size;
-                byte[] buffer = new byte[2048];
-                while ((size = in.read(buffer, 0, buffer.length)) != -1) {
-                    out.write(buffer, 0, size);
-                }
-                // for (int c = in.read(); c != -1; c = in.read()) {
-                // out.write(c);
-                // }
-                if (entry != null)
-                    in.closeEntry();
-                if (out != null) {
-                    out.flush();
-                    out.close();
-                }
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        // entries are read at their offsets, so their compressed data is charged at once
+                        IoGovernor.acquire(entry.getCompressedSize());
+                        InputStream in = zip.getInputStream(entry);
+                        try {
+                            writeEntry(in, tempFile);
+                        } finally {
+                            in.close();
+                        }
+                        return null;
+                    }
+                }));
             }
-        } catch (FileNotFoundException e) {
-            logger.debug("Encountered FileNotFound Exception, probably due to trying to extract a directory. Ignoring");
-        } catch (IOException e) {
-            logger.error(e.toString(), e);
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while extracting " + source.getName());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
         } finally {
-            if (in != null)
-                in.close();
+            executor.shutdownNow();
+            zip.close();
         }
 
         return fileList;
     }
 
+    /**
+     * Returns the file an entry is extracted to. Names leading outside of the destination are refused
+     * 
+     * @return the file, or null if the entry is the destination itself, like ./ written by tar
+     */
+    private static File getExtractedFile(File destDir, String name) throws IOException {
+        Path dest = destDir.toPath().toAbsolutePath().normalize();
+        Path target = dest.resolve(name).normalize();
+        if (!target.startsWith(dest)) {
+            throw new IOException("Entry " + name + " points outside of " + destDir.getAbsolutePath());
+        }
+        if (target.equals(dest)) {
+            logger.debug("Skipping entry " + name + ", it is the destination folder");
+            return null;
+        }
+        return target.toFile();
+    }
+
+    /**
+     * Writes the content of an entry to the given file, replacing the content of an existing file
+     * 
+     * @param in the content of the entry
+     * @param target
+     * @throws IOException
+     */
+    private static void writeEntry(InputStream in, File target) throws IOException {
+        BufferPool pool = BufferPool.getShared();
+        byte[] buffer = pool.acquireArray();
+        RandomAccessFile out = new RandomAccessFile(target, "rw");
+        try {
+            long written = 0;
+            int read;
+            while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+                IoGovernor.acquire(read);
+                out.write(buffer, 0, read);
+                written += read;
+            }
+            // an existing file may be longer
+            out.setLength(written);
+        } finally {
+            out.close();
+            pool.release(buffer);
+        }
+    }
+
     /**
      * Create a tar archive and write results into Array of Strings. Returns the MD5 checksum as byte-Array
      * 
@@ -156,111 +256,164 @@ public class ArchiveUtils {
      * @throws IOException
      */
     public static byte[] tarFiles(HashMap<File, String> fileMap, File tarFile) throws IOException {
+        return tarFiles(fileMap, tarFile, null);
+    }
 
-        MessageDigest checksum = null;
-        boolean gzip = false;
-        if (tarFile.getName().endsWith(".gz")) {
-            gzip = true;
-        }
+    /**
+     * Create a tar archive and add size, CRC32 and digest of every file entry and the digest of the archive to the given manifest. An existing
+     * archive gets replaced. Returns the MD5 checksum over the content of all entries as byte-Array
+     * 
+     * @param fileMap files and directories to add, mapped to their path inside the archive
+     * @param tarFile the archive to create. Gets gzip compressed by one thread per available processor if the name ends with .gz
+     * @param manifest receives the digests of the entries, may be null
+     * @return
+     * @throws IOException
+     */
+    public static byte[] tarFiles(HashMap<File, String> fileMap, File tarFile, ArchiveManifest manifest) throws IOException {
+        return tarFiles(fileMap, tarFile, manifest, 0);
+    }
 
+    /**
+     * Create a tar archive and add size, CRC32 and digest of every file entry and the digest of the archive to the given manifest. An existing
+     * archive gets replaced. Returns the MD5 checksum over the content of all entries as byte-Array
+     * 
+     * If the name ends with .gz, the archive is compressed in independent blocks by a {@link BlockGzipOutputStream} and a
+     * {@link BlockGzipIndex} of the entries is written next to it, which allows {@link #untarFile(File, File, int)} and
+     * {@link #validateTar(File, ArchiveManifest, int)} to decompress it in parallel
+     * 
+     * @param fileMap files and directories to add, mapped to their path inside the archive
+     * @param tarFile the archive to create. Gets gzip compressed if the name ends with .gz
+     * @param manifest receives the digests of the entries, may be null
+     * @param threads number of compression threads. Values below 1 use one thread per available processor
+     * @return
+     * @throws IOException
+     */
+    public static byte[] tarFiles(HashMap<File, String> fileMap, File tarFile, ArchiveManifest manifest, int threads) throws IOException {
         if (tarFile == null || fileMap == null || fileMap.size() == 0) {
             return null;
         }
+        return tarFiles(FileScanner.read(fileMap), tarFile, manifest, threads);
+    }
 
+    /**
+     * Create a tar archive of files whose attributes were read before, e.g. by {@link FileScanner#listFolder(File, FilenameFilter)}, as
+     * {@link #tarFiles(HashMap, File, ArchiveManifest, int)} does
+     * 
+     * @param files files and directories to add under their names
+     * @param tarFile the archive to create. Gets gzip compressed if the name ends with .gz
+     * @param manifest receives the digests of the entries, may be null
+     * @param threads number of compression threads. Values below 1 use one thread per available processor
+     * @return
+     * @throws IOException
+     */
+    public static byte[] tarFiles(List<FileScanner.ScannedFile> files, File tarFile, ArchiveManifest manifest, int threads) throws IOException {
+        if (tarFile == null || files == null || files.isEmpty()) {
+            return null;
+        }
         tarFile.getParentFile().mkdirs();
 
-        TarArchiveOutputStream tos = null;
-        FileOutputStream fos = null;
-        BufferedOutputStream bos = null;
-        GZIPOutputStream zip = null;
+        MessageDigest checksum;
         try {
-            fos = new FileOutputStream(tarFile, true);
-            bos = new BufferedOutputStream(fos);
-            if (gzip) {
-                zip = new GZIPOutputStream(bos);
-            }
-            try {
-                checksum = MessageDigest.getInstance("MD5");
-            } catch (NoSuchAlgorithmException e) {
-                logger.error("No checksum algorithm \"MD5\". Disabling checksum creation");
-                checksum = null;
-            }
-            if (gzip) {
-                tos = new TarArchiveOutputStream(zip);
-            } else {
-                tos = new TarArchiveOutputStream(bos);
-            }
-            for (File file : fileMap.keySet()) {
-                logger.debug("Adding file " + file.getAbsolutePath() + " to tarfile " + tarFile.getAbsolutePath());
-                tarFile(file, fileMap.get(file), tos, checksum);
-            }
-        } catch (FileNotFoundException e) {
-            logger.debug("Encountered FileNotFound Exception, probably due to trying to archive a directory. Ignoring");
-        } catch (IOException e) {
-            logger.error(e.toString(), e);
+            checksum = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            logger.error("No checksum algorithm \"MD5\". Disabling checksum creation");
+            checksum = null;
+        }
+        // fails before the archive is opened if the algorithm is unknown
+        MessageDigest archiveDigest = manifest == null ? null : manifest.createDigest();
+        OutputStream out = IoGovernor.openOutput(tarFile);
+        if (archiveDigest != null) {
+            out = new DigestOutputStream(out, archiveDigest);
+        }
+        out = new BufferedOutputStream(out);
+        BlockGzipOutputStream zip = null;
+        TarArchiveOutputStream tos;
+        if (tarFile.getName().endsWith(".gz")) {
+            zip = new BlockGzipOutputStream(out, threads);
+            out = zip;
+            // every record is passed on immediately, so the positions of the entries in the index are exact
+            tos = new TarArchiveOutputStream(zip, TarConstants.DEFAULT_RCDSIZE);
+        } else {
+            tos = new TarArchiveOutputStream(out);
+        }
+        try {
+            // files over 8 GB and long paths are stored in PAX headers
+            tos.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+            tos.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            logger.debug("Adding " + files.size() + " files to tarfile " + tarFile.getAbsolutePath());
+            // a file which can't be read fails the archive, like a zip archive, instead of leaving it out
+            tarFiles(files, tos, checksum, manifest, zip);
+            tos.finish();
         } finally {
-            if (tos != null) {
-                tos.close();
-            }
-            if (fos != null) {
-                tos.close();
-            }
-            if (bos != null) {
-                tos.close();
-            }
-            if (zip != null) {
-                tos.close();
-            }
+            out.close();
+        }
+        if (archiveDigest != null) {
+            manifest.setArchive(tarFile.length(), archiveDigest.digest());
+        }
+        if (zip != null) {
+            zip.getIndex().write(tarFile);
         }
 
-        return checksum.digest();
+        return checksum == null ? null : checksum.digest();
+    }
+
+    private static void tarFiles(List<FileScanner.ScannedFile> files, final TarArchiveOutputStream tos, final MessageDigest checksum,
+            final ArchiveManifest manifest, final BlockGzipOutputStream gzip) throws IOException {
+        FileScanner.scan(files, new FileScanner.Visitor() {
+            @Override
+            public void visit(FileScanner.ScannedFile scanned) throws IOException {
+                tarEntry(scanned, tos, checksum, manifest, gzip);
+            }
+        });
     }
 
-    private static void tarFile(File file, String path, TarArchiveOutputStream tos, MessageDigest checksum) throws IOException {
+    private static void tarEntry(FileScanner.ScannedFile scanned, TarArchiveOutputStream tos, MessageDigest checksum, ArchiveManifest manifest,
+            BlockGzipOutputStream gzip) throws IOException {
 
-        if (file == null) {
-            logger.error("Attempting to add nonexisting file to zip archive. Ignoring entry.");
+        // the attributes are taken from the scan, the entry doesn't probe the file again
+        TarArchiveEntry entry = new TarArchiveEntry(scanned.getName());
+        entry.setModTime(scanned.getLastModified());
+        if (scanned.isDirectory()) {
+            if (gzip != null) {
+                gzip.markEntry(entry.getName());
+            }
+            tos.putArchiveEntry(entry);
+            tos.closeArchiveEntry();
             return;
         }
 
-        if (file.isFile()) {
-
-            FileInputStream fis = new FileInputStream(file);
-            BufferedInputStream bis = new BufferedInputStream(fis);
-
-            TarArchiveEntry entry = new TarArchiveEntry(file, path);
-            //			ArchiveEntry entry = tos.createArchiveEntry(file, path);
-
-            if (tos != null) {
-                tos.putArchiveEntry(entry);
-                int size;
-                byte[] buffer = new byte[2048];
-                while ((size = bis.read(buffer, 0, buffer.length)) != -1) {
-                    tos.write(buffer, 0, size);
-                    if (checksum != null && size > 0) {
-                        checksum.update(buffer, 0, size);
-                    }
-                }
-                tos.closeArchiveEntry();
+        entry.setSize(scanned.getSize());
+        // large reads straight into a pooled buffer, without copying through a BufferedInputStream
+        BufferPool pool = BufferPool.getShared();
+        byte[] buffer = pool.acquireArray();
+        ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+        ReadableByteChannel channel = IoGovernor.openChannel(scanned.getFile());
+        try {
+            MessageDigest entryDigest = manifest == null ? null : manifest.createDigest();
+            CRC32 crc = new CRC32();
+            if (gzip != null) {
+                gzip.markEntry(entry.getName());
             }
-
-            bis.close();
-        } else if (file.isDirectory()) {
-            if (tos != null) {
-                ArchiveEntry dirEntry = tos.createArchiveEntry(file, path + File.separator);
-                if (dirEntry != null) {
-                    tos.putArchiveEntry(dirEntry);
-                    tos.closeArchiveEntry();
+            tos.putArchiveEntry(entry);
+            int size;
+            while ((size = channel.read(wrapped)) != -1) {
+                wrapped.clear();
+                tos.write(buffer, 0, size);
+                if (checksum != null && size > 0) {
+                    checksum.update(buffer, 0, size);
                 }
-            }
-            File[] subfiles = file.listFiles();
-            if (subfiles != null && subfiles.length > 0) {
-                for (File subFile : subfiles) {
-                    tarFile(subFile, path + File.separator + subFile.getName(), tos, checksum);
+                if (entryDigest != null && size > 0) {
+                    entryDigest.update(buffer, 0, size);
+                    crc.update(buffer, 0, size);
                 }
             }
-        } else {
-            logger.warn("File " + file.getAbsolutePath() + " doesn't seem to exist and cannot be added to zip archive.");
+            tos.closeArchiveEntry();
+            if (manifest != null) {
+                manifest.add(entry.getName(), entry.getSize(), crc.getValue(), entryDigest.digest());
+            }
+        } finally {
+            channel.close();
+            pool.release(buffer);
         }
     }
 
@@ -272,7 +425,21 @@ public class ArchiveUtils {
      * @throws IOException
      */
     public static ArrayList<File> untarFile(File source, File destDir) throws IOException {
-        ArrayList<File> fileList = new ArrayList<File>();
+        return untarFile(source, destDir, 0);
+    }
+
+    /**
+     * Unzip a tar archive and write results into Array of Strings. A gzip compressed archive with a {@link BlockGzipIndex} is extracted by the
+     * given number of threads, each starting to decompress at a different entry
+     * 
+     * @param source
+     * @param destDir
+     * @param threads number of extracting threads. Values below 1 use one thread per available processor
+     * @return the extracted files in archive order
+     * @throws IOException
+     */
+    public static ArrayList<File> untarFile(final File source, final File destDir, int threads) throws IOException {
+        final ArrayList<File> fileList = new ArrayList<File>();
 
         if (!destDir.isDirectory())
             destDir.mkdirs();
@@ -282,12 +449,28 @@ public class ArchiveUtils {
             isGzip = true;
         }
 
+        BlockGzipIndex index = isGzip ? BlockGzipIndex.read(source) : null;
+        if (index != null && ParallelZipCreator.getThreadCount(threads) > 1 && index.size() > 1) {
+            List<List<File>> extracted = processEntryRanges(source, index, threads, new EntryRangeTask<List<File>>() {
+                @Override
+                public List<File> process(TarArchiveInputStream in, int count, int range) throws IOException {
+                    List<File> files = new ArrayList<File>();
+                    extractEntries(in, count, source, destDir, files);
+                    return files;
+                }
+            });
+            for (List<File> files : extracted) {
+                fileList.addAll(files);
+            }
+            return fileList;
+        }
+
         GZIPInputStream zip = null;
         TarArchiveInputStream in = null;
         BufferedInputStream bis = null;
-        FileInputStream fis = null;
+        InputStream fis = null;
         try {
-            fis = new FileInputStream(source);
+            fis = IoGovernor.openInput(source);
             bis = new BufferedInputStream(fis);
             if (isGzip) {
                 zip = new GZIPInputStream(bis);
@@ -295,29 +478,7 @@ public class ArchiveUtils {
             } else {
                 in = new TarArchiveInputStream(bis);
             }
-            ArchiveEntry entry;
-            while ((entry = in.getNextEntry()) != null) {
-                File tempFile = new File(destDir, entry.getName());
-                if (entry.isDirectory()) {
-                    tempFile.mkdirs();
-                    continue;
-                }
-                fileList.add(tempFile);
-                tempFile.getParentFile().mkdirs();
-                //				tempFile.createNewFile();
-                logger.debug("Untaring file " + entry.getName() + " from archive " + source.getName() + " to " + tempFile.getAbsolutePath());
-                BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile));
-
-                int size;
-                byte[] buffer = new byte[2048];
-                while ((size = in.read(buffer, 0, buffer.length)) != -1) {
-                    out.write(buffer, 0, size);
-                }
-                if (out != null) {
-                    out.flush();
-                    out.close();
-                }
-            }
+            extractEntries(in, -1, source, destDir, fileList);
         } catch (FileNotFoundException e) {
             logger.debug("Encountered FileNotFound Exception, probably due to trying to extract a directory. Ignoring");
         } finally {
@@ -329,26 +490,189 @@ public class ArchiveUtils {
     }
 
     /**
-     * Crude Tar-Archive validator which extracts all archive entries to check their validity
+     * Extracts the given number of entries, or all remaining entries if the number is negative
+     */
+    private static void extractEntries(TarArchiveInputStream in, int count, File source, File destDir, List<File> fileList) throws IOException {
+        ArchiveEntry entry;
+        int read = 0;
+        while ((count < 0 || read < count) && (entry = in.getNextEntry()) != null) {
+            read++;
+            File tempFile = getExtractedFile(destDir, entry.getName());
+            if (tempFile == null) {
+                continue;
+            }
+            if (entry.isDirectory()) {
+                tempFile.mkdirs();
+                continue;
+            }
+            fileList.add(tempFile);
+            tempFile.getParentFile().mkdirs();
+            //				tempFile.createNewFile();
+            logger.debug("Untaring file " + entry.getName() + " from archive " + source.getName() + " to " + tempFile.getAbsolutePath());
+            writeEntry(in, tempFile);
+        }
+    }
+
+    /**
+     * Reads a consecutive range of the entries of a block compressed tar archive
+     */
+    private interface EntryRangeTask<T> {
+
+        /**
+         * @param in the archive, positioned before the first entry of the range
+         * @param count the number of entries in the range
+         * @param range the number of the range
+         * @return
+         * @throws IOException
+         */
+        T process(TarArchiveInputStream in, int count, int range) throws IOException;
+    }
+
+    /**
+     * Splits the entries of a block compressed tar archive into ranges of about the same size and processes them in parallel
+     * 
+     * @return the results of the ranges in archive order
+     */
+    private static <T> List<T> processEntryRanges(final File archive, final BlockGzipIndex index, int threads, final EntryRangeTask<T> task)
+            throws IOException {
+        List<List<BlockGzipIndex.Entry>> ranges = index.split(ParallelZipCreator.getThreadCount(threads));
+        ExecutorService executor = Executors.newFixedThreadPool(ranges.size());
+        List<Future<T>> results = new ArrayList<Future<T>>();
+        try {
+            for (int i = 0; i < ranges.size(); i++) {
+                final BlockGzipIndex.Entry first = ranges.get(i).get(0);
+                final int count = ranges.get(i).size();
+                final int range = i;
+                results.add(executor.submit(new Callable<T>() {
+                    @Override
+                    public T call() throws IOException {
+                        TarArchiveInputStream in = openTarAt(archive, index, first);
+                        try {
+                            return task.process(in, count, range);
+                        } finally {
+                            in.close();
+                        }
+                    }
+                }));
+            }
+            List<T> values = new ArrayList<T>();
+            for (Future<T> result : results) {
+                values.add(result.get());
+            }
+            return values;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading " + archive.getName());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Opens a block compressed tar archive at the given entry. Decompression starts at the gzip member containing the first header of the
+     * entry
+     */
+    private static TarArchiveInputStream openTarAt(File archive, BlockGzipIndex index, BlockGzipIndex.Entry entry) throws IOException {
+        BlockGzipIndex.Block block = index.getBlock(entry.getOffset());
+        FileInputStream fis = new FileInputStream(archive);
+        try {
+            fis.getChannel().position(block.getCompressedOffset());
+            InputStream in = new GZIPInputStream(new BufferedInputStream(IoGovernor.current().limit(fis), 65536), 65536);
+            long remaining = entry.getOffset() - block.getUncompressedOffset();
+            while (remaining > 0) {
+                long skipped = in.skip(remaining);
+                if (skipped <= 0) {
+                    throw new EOFException("Entry " + entry.getName() + " is missing in " + archive.getName());
+                }
+                remaining -= skipped;
+            }
+            return new TarArchiveInputStream(in);
+        } catch (IOException e) {
+            fis.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Crude Tar-Archive validator which reads all archive entries to check their validity. This paranoid mode reads every original file
+     * again, {@link #validateTar(File, ArchiveManifest)} validates against the digests captured while writing instead
      * 
      * @param tarFile
-     * @param createTempFile
+     * @param createTempFile compares every entry with its original file. The entry is hashed while it is read, no temporary file is written
      * @param origFilesParent
      * @return
      */
     public static boolean validateTar(File tarFile, boolean createTempFile, File origFilesParent) {
+        return validateTar(tarFile, createTempFile, origFilesParent, -1, 0);
+    }
+
+    /**
+     * Crude Tar-Archive validator which reads all archive entries to check their validity. A gzip compressed archive with a
+     * {@link BlockGzipIndex} is validated by the given number of threads
+     * 
+     * @param tarFile
+     * @param createTempFile
+     * @param origFilesParent
+     * @param threads number of validating threads. Values below 1 use one thread per available processor
+     * @return
+     */
+    public static boolean validateTar(File tarFile, boolean createTempFile, File origFilesParent, int threads) {
+        return validateTar(tarFile, createTempFile, origFilesParent, -1, threads);
+    }
+
+    /**
+     * Crude Tar-Archive validator which reads all archive entries to check their validity. The archive is invalid if an entry has no
+     * original file or if it doesn't contain the given number of entries
+     * 
+     * @param tarFile
+     * @param createTempFile
+     * @param origFilesParent
+     * @param supposedFiles the number of entries including directories, or -1 to accept any number
+     * @param threads number of validating threads. Values below 1 use one thread per available processor
+     * @return
+     */
+    public static boolean validateTar(final File tarFile, final boolean createTempFile, final File origFilesParent, int supposedFiles,
+            int threads) {
 
         boolean isGzip = false;
         if (tarFile.getName().endsWith(".gz")) {
             isGzip = true;
         }
 
+        BlockGzipIndex index = isGzip ? BlockGzipIndex.read(tarFile) : null;
+        if (index != null && ParallelZipCreator.getThreadCount(threads) > 1 && index.size() > 1) {
+            try {
+                List<Integer> results = processEntryRanges(tarFile, index, threads, new EntryRangeTask<Integer>() {
+                    @Override
+                    public Integer process(TarArchiveInputStream in, int count, int range) throws IOException {
+                        return validateTarEntries(in, count, tarFile, createTempFile, origFilesParent);
+                    }
+                });
+                int entries = 0;
+                for (int result : results) {
+                    if (result < 0) {
+                        return false;
+                    }
+                    entries += result;
+                }
+                return hasSupposedEntries(tarFile, entries, supposedFiles);
+            } catch (IOException e) {
+                logger.debug("Found corrupted archive entry");
+                return false;
+            }
+        }
+
         GZIPInputStream zip = null;
         TarArchiveInputStream in = null;
         BufferedInputStream bis = null;
-        FileInputStream fis = null;
+        InputStream fis = null;
         try {
-            fis = new FileInputStream(tarFile);
+            fis = IoGovernor.openInput(tarFile);
             bis = new BufferedInputStream(fis);
             if (isGzip) {
                 zip = new GZIPInputStream(bis);
@@ -358,66 +682,7 @@ public class ArchiveUtils {
             }
 
             //			in = new TarArchiveInputStream((new BufferedInputStream(new FileInputStream(tarFile))));
-            TarArchiveEntry entry;
-            File tempFile = null;
-            while ((entry = in.getNextTarEntry()) != null) {
-                File f = new File(entry.getName());
-                tempFile = new File(tarFile.getParentFile(), f.getName());
-                if (entry.isDirectory()) {
-                    continue;
-                }
-                logger.debug("Testing file " + entry.getName() + " from archive " + tarFile.getName());
-                BufferedOutputStream out = null;
-                if (createTempFile) {
-                    if (!tempFile.isFile()) {
-                        tempFile.createNewFile();
-                    }
-                    out = new BufferedOutputStream(new FileOutputStream(tempFile));
-                }
-
-                int size;
-                byte[] buffer = new byte[2048];
-                while ((size = in.read(buffer, 0, buffer.length)) != -1) {
-                    if (createTempFile) {
-                        out.write(buffer, 0, size);
-                    }
-                }
-                if (out != null) {
-                    out.flush();
-                    out.close();
-                }
-
-                if (createTempFile && (tempFile == null || !tempFile.isFile())) {
-                    logger.debug("Found corrupted archive entry: Unable to create file");
-                    return false;
-                }
-
-                //check checksum of file
-                try {
-                    if (createTempFile && origFilesParent != null) {
-                        File origFile = new File(origFilesParent, entry.getName());
-                        if (origFile == null || !origFile.isFile()) {
-                            logger.debug("Unable to find orig file for entry " + entry.getName());
-                            continue;
-                        }
-                        logger.debug("Testing entry against original file " + origFile.getAbsolutePath());
-                        byte[] tempFileChecksum = createMD5Checksum(tempFile);
-                        byte[] origFileChecksum = createMD5Checksum(origFile);
-                        if (!MessageDigest.isEqual(tempFileChecksum, origFileChecksum)) {
-                            logger.debug("Found corrupted archive entry: Checksums don't match");
-                            return false;
-                        }
-
-                    }
-                } catch (NoSuchAlgorithmException e) {
-                    logger.error("Unable to check file: Unknown algorithm");
-                } finally {
-                    if (tempFile != null && tempFile.isFile()) {
-                        tempFile.delete();
-                    }
-                }
-
-            }
+            return hasSupposedEntries(tarFile, validateTarEntries(in, -1, tarFile, createTempFile, origFilesParent), supposedFiles);
             //		} catch (FileNotFoundException e) {
             //			logger.debug("Encountered FileNotFound Exception, probably due to trying to extract a directory. Ignoring");
         } catch (IOException e) {
@@ -438,53 +703,317 @@ public class ArchiveUtils {
                 e.printStackTrace();
             }
         }
+    }
 
+    /**
+     * @param entries the number of validated entries, or -1 if the archive is invalid
+     */
+    private static boolean hasSupposedEntries(File tarFile, int entries, int supposedFiles) {
+        if (entries < 0) {
+            return false;
+        }
+        if (supposedFiles >= 0 && entries != supposedFiles) {
+            logger.debug("Archive " + tarFile.getName() + " contains " + entries + " of " + supposedFiles + " expected entries");
+            return false;
+        }
         return true;
     }
 
     /**
-     * Returns the MD5-Checksum of a file
+     * Validates the given number of entries, or all remaining entries if the number is negative. Every entry is read completely, with
+     * compare and a folder of original files its content is hashed while it is read and compared with its original file
      * 
-     * @param file
-     * @return
-     * @throws NoSuchAlgorithmException
-     * @throws IOException
+     * @return the number of validated entries, or -1 if an entry is invalid
      */
-    public static byte[] createMD5Checksum(File file) throws NoSuchAlgorithmException, IOException {
-        InputStream fis = new FileInputStream(file);
-
-        byte[] buffer = new byte[1024];
-        MessageDigest complete = MessageDigest.getInstance("MD5");
-        int numRead;
-        do {
-            numRead = fis.read(buffer);
-            if (numRead > 0) {
-                complete.update(buffer, 0, numRead);
-            }
-        } while (numRead != -1);
-        fis.close();
-        return complete.digest();
+    private static int validateTarEntries(TarArchiveInputStream in, int count, File tarFile, boolean compare, File origFilesParent)
+            throws IOException {
+        BufferPool pool = BufferPool.getShared();
+        byte[] buffer = pool.acquireArray();
+        try {
+            return validateTarEntries(in, count, tarFile, compare, origFilesParent, buffer);
+        } finally {
+            pool.release(buffer);
+        }
     }
 
-    public static String getMD5Checksum(File file) throws NoSuchAlgorithmException, IOException {
-        byte[] b = createMD5Checksum(file);
-        String result = "";
+    private static int validateTarEntries(TarArchiveInputStream in, int count, File tarFile, boolean compare, File origFilesParent,
+            byte[] buffer) throws IOException {
+        TarArchiveEntry entry;
+        int read = 0;
+        while ((count < 0 || read < count) && (entry = in.getNextTarEntry()) != null) {
+            read++;
+            if (entry.isDirectory()) {
+                continue;
+            }
+            logger.debug("Testing file " + entry.getName() + " from archive " + tarFile.getName());
+            MessageDigest entryDigest = compare && origFilesParent != null ? new Xxh64Digest() : null;
+            int size;
+            while ((size = in.read(buffer, 0, buffer.length)) != -1) {
+                if (entryDigest != null) {
+                    entryDigest.update(buffer, 0, size);
+                }
+            }
 
-        for (int i = 0; i < b.length; i++) {
-            result += Integer.toString((b[i] & 0xff) + 0x100, 16).substring(1);
+            //check checksum of file
+            if (entryDigest != null) {
+                File origFile = new File(origFilesParent, entry.getName());
+                logger.debug("Testing entry against original file " + origFile.getAbsolutePath());
+                byte[] origFileChecksum = digestOriginal(origFile);
+                if (origFileChecksum == null) {
+                    logger.debug("Unable to find orig file for entry " + entry.getName());
+                    return -1;
+                }
+                if (!MessageDigest.isEqual(entryDigest.digest(), origFileChecksum)) {
+                    logger.debug("Found corrupted archive entry: Checksums don't match");
+                    return -1;
+                }
+            }
         }
-        return result;
+        if (count >= 0 && read < count) {
+            logger.debug("Archive " + tarFile.getName() + " ends before the last indexed entry");
+            return -1;
+        }
+        return read;
     }
 
-    public static String convertChecksumToHex(byte[] checksum) {
-        String result = "";
-
-        for (int i = 0; i < checksum.length; i++) {
-            result += Integer.toString((checksum[i] & 0xff) + 0x100, 16).substring(1);
+    /**
+     * Hashes an original file of an archive entry. The file is opened without checking it first, the archive was written from the files
+     * scanned before
+     *
+     * @return the XXH64 digest, or null if the file doesn't exist
+     */
+    private static byte[] digestOriginal(File origFile) throws IOException {
+        try {
+            return Digests.digest(origFile, new Xxh64Digest());
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes a tar archive of the given files into the given stream and adds size, CRC32 and digest of every file entry to the manifest. The
+     * stream is not closed
+     * 
+     * @param files files and directories to add under their names
+     * @param out receives the archive, e.g. a compressing stream
+     * @param manifest receives the digests of the entries, may be null
+     * @throws IOException
+     */
+    static void tarFiles(List<FileScanner.ScannedFile> files, OutputStream out, ArchiveManifest manifest) throws IOException {
+        TarArchiveOutputStream tos = new TarArchiveOutputStream(out);
+        tos.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+        tos.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        tarFiles(files, tos, null, manifest, null);
+        tos.finish();
+    }
+
+    /**
+     * Creates a tar archive of entries whose content is created on the given number of threads while the archive is written. The entries
+     * keep their order, only a few of them are held in memory at a time. If the name ends with .gz, the archive is compressed in blocks and
+     * indexed as by {@link #tarFiles(HashMap, File, ArchiveManifest, int)}
+     * 
+     * @param entries
+     * @param tarFile the archive to create. Gets gzip compressed if the name ends with .gz
+     * @param manifest receives the digests of the entries, may be null
+     * @param threads number of threads creating and compressing the entries. Values below 1 use one thread per available processor
+     * @throws IOException
+     */
+    public static void tarEntries(List<EntrySource> entries, File tarFile, ArchiveManifest manifest, int threads) throws IOException {
+        tarFile.getParentFile().mkdirs();
+        MessageDigest archiveDigest = manifest == null ? null : manifest.createDigest();
+        OutputStream out = IoGovernor.openOutput(tarFile);
+        if (archiveDigest != null) {
+            out = new DigestOutputStream(out, archiveDigest);
+        }
+        out = new BufferedOutputStream(out);
+        BlockGzipOutputStream gzip = null;
+        if (tarFile.getName().endsWith(".gz")) {
+            gzip = new BlockGzipOutputStream(out, threads);
+            out = gzip;
+        }
+        try {
+            tarEntries(entries, out, manifest, threads, gzip);
+        } finally {
+            out.close();
+        }
+        if (archiveDigest != null) {
+            manifest.setArchive(tarFile.length(), archiveDigest.digest());
+        }
+        if (gzip != null) {
+            gzip.getIndex().write(tarFile);
+        }
+    }
+
+    /**
+     * Writes a tar archive of the given entries into the given stream. The content of the entries is created on the given number of
+     * threads, at most two entries per thread are held in memory. The stream is not closed
+     * 
+     * @param entries
+     * @param out receives the archive
+     * @param manifest receives the digests of the entries, may be null
+     * @param threads
+     * @param gzip the block compressing stream, if the entries are to be indexed
+     * @throws IOException
+     */
+    static void tarEntries(List<EntrySource> entries, OutputStream out, ArchiveManifest manifest, int threads, BlockGzipOutputStream gzip)
+            throws IOException {
+        TarArchiveOutputStream tos =
+                gzip == null ? new TarArchiveOutputStream(out) : new TarArchiveOutputStream(out, TarConstants.DEFAULT_RCDSIZE);
+        tos.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+        tos.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        int threadCount = ParallelZipCreator.getThreadCount(threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+        try {
+            int submitted = 0;
+            for (EntrySource source : entries) {
+                while (submitted < entries.size() && pending.size() < threadCount * 2) {
+                    final EntrySource next = entries.get(submitted++);
+                    pending.add(executor.submit(new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() throws IOException {
+                            return next.getContent();
+                        }
+                    }));
+                }
+                byte[] content = pending.poll().get();
+                TarArchiveEntry entry = new TarArchiveEntry(source.getName());
+                entry.setSize(content.length);
+                entry.setModTime(source.getLastModified());
+                if (gzip != null) {
+                    gzip.markEntry(entry.getName());
+                }
+                tos.putArchiveEntry(entry);
+                tos.write(content);
+                tos.closeArchiveEntry();
+                if (manifest != null) {
+                    MessageDigest entryDigest = manifest.createDigest();
+                    entryDigest.update(content);
+                    CRC32 crc = new CRC32();
+                    crc.update(content);
+                    manifest.add(entry.getName(), content.length, crc.getValue(), entryDigest.digest());
+                }
+            }
+            tos.finish();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing the tar archive");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Extracts a tar archive read from the given stream, e.g. a decompressing stream
+     * 
+     * @param in
+     * @param source the archive, for messages
+     * @param destDir
+     * @return the extracted files in archive order
+     * @throws IOException
+     */
+    static List<File> untarStream(InputStream in, File source, File destDir) throws IOException {
+        List<File> fileList = new ArrayList<File>();
+        destDir.mkdirs();
+        extractEntries(new TarArchiveInputStream(in), -1, source, destDir, fileList);
+        return fileList;
+    }
+
+    /**
+     * Validates a tar archive read from the given stream against the digests of the manifest
+     * 
+     * @param in
+     * @param archive the archive, for messages
+     * @param manifest
+     * @return
+     * @throws IOException
+     */
+    static boolean validateTarStream(InputStream in, File archive, ArchiveManifest manifest) throws IOException {
+        return validateEntries(new TarArchiveInputStream(in), archive, manifest);
+    }
+
+    /**
+     * Validates a tar archive read from the given stream by hashing all entries and comparing them with the original files
+     * 
+     * @param in
+     * @param archive the archive, for the log
+     * @param origFilesParent
+     * @param supposedFiles the number of entries including directories, or -1 to accept any number
+     * @return
+     * @throws IOException
+     */
+    static boolean validateTarStream(InputStream in, File archive, File origFilesParent, int supposedFiles) throws IOException {
+        return hasSupposedEntries(archive, validateTarEntries(new TarArchiveInputStream(in), -1, archive, true, origFilesParent),
+                supposedFiles);
+    }
+
+    /**
+     * Replaces the target with the source file, atomically if the file system supports it
+     * 
+     * @param source
+     * @param target
+     * @throws IOException
+     */
+    public static void replaceFile(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Returns the MD5-Checksum of a file
+     * 
+     * @param file
+     * @return
+     * @throws NoSuchAlgorithmException
+     * @throws IOException
+     */
+    public static byte[] createMD5Checksum(File file) throws NoSuchAlgorithmException, IOException {
+        return createChecksum(file, "MD5");
+    }
+
+    public static String getMD5Checksum(File file) throws NoSuchAlgorithmException, IOException {
+        byte[] b = createMD5Checksum(file);
+        String result = "";
+
+        for (int i = 0; i < b.length; i++) {
+            result += Integer.toString((b[i] & 0xff) + 0x100, 16).substring(1);
+        }
+        return result;
+    }
+
+    public static String convertChecksumToHex(byte[] checksum) {
+        String result = "";
+
+        for (int i = 0; i < checksum.length; i++) {
+            result += Integer.toString((checksum[i] & 0xff) + 0x100, 16).substring(1);
         }
         return result;
     }
 
+    /**
+     * Converts a hexadecimal string as created by {@link #convertChecksumToHex(byte[])} back into a byte-Array
+     * 
+     * @param hex
+     * @return
+     */
+    public static byte[] convertHexToChecksum(String hex) {
+        byte[] checksum = new byte[hex.length() / 2];
+        for (int i = 0; i < checksum.length; i++) {
+            checksum[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return checksum;
+    }
+
     public static String getRelativePath(File file, File relativeParent) {
         String path = "";
 
@@ -503,6 +1032,21 @@ public class ArchiveUtils {
     }
 
     public static byte[] zipFiles(File[] sourceFiles, File zipFile) throws IOException {
+        return zipFiles(sourceFiles, zipFile, (CompressionPolicy) null);
+    }
+
+    /**
+     * Create a zip archive on the calling thread, while the files are read ahead by the threads of a {@link ReadAhead}. Returns the MD5
+     * checksum over the content of all entries as byte-Array
+     * 
+     * @param sourceFiles files and directories to add to the archive
+     * @param zipFile the archive to create
+     * @param policy decides the compression level of each entry. Entries the policy wants to store are written with deflate level 0. If null, all
+     *            entries are deflated with the default level
+     * @return
+     * @throws IOException
+     */
+    public static byte[] zipFiles(File[] sourceFiles, File zipFile, CompressionPolicy policy) throws IOException {
 
         MessageDigest checksum = null;
 
@@ -514,18 +1058,15 @@ public class ArchiveUtils {
 
         ZipOutputStream zos = null;
         try {
-            FileOutputStream fos = new FileOutputStream(zipFile, true);
+            OutputStream fos = IoGovernor.openOutput(zipFile);
             try {
                 checksum = MessageDigest.getInstance("MD5");
             } catch (NoSuchAlgorithmException e) {
                 logger.error("No checksum algorithm \"MD5\". Disabling checksum creation");
                 checksum = null;
             }
-            zos = new ZipOutputStream(fos);
-            for (File file : sourceFiles) {
-                logger.debug("Adding file " + file.getAbsolutePath() + " to zipfile " + zipFile.getAbsolutePath());
-                zipFile(file, "", zos, checksum);
-            }
+            zos = new ZipOutputStream(new BufferedOutputStream(fos, 65536));
+            zipFiles(sourceFiles, zos, checksum, policy);
         } finally {
             if (zos != null) {
                 zos.close();
@@ -535,138 +1076,403 @@ public class ArchiveUtils {
         return checksum.digest();
     }
 
-    private static void zipFile(File file, String path, ZipOutputStream zos, MessageDigest checksum) throws IOException {
+    /**
+     * Create a zip archive whose entries are compressed in parallel by the given number of threads. An existing archive gets replaced
+     *
+     * @param sourceFiles files and directories to add to the archive
+     * @param zipFile the archive to create
+     * @param threads number of compression threads. Values below 1 use one thread per available processor
+     * @throws IOException
+     */
+    public static void zipFiles(File[] sourceFiles, File zipFile, int threads) throws IOException {
+        zipFiles(sourceFiles, zipFile, threads, null);
+    }
+
+    /**
+     * Create a zip archive whose entries are compressed in parallel by the given number of threads. An existing archive gets replaced
+     *
+     * @param sourceFiles files and directories to add to the archive
+     * @param zipFile the archive to create
+     * @param threads number of compression threads. Values below 1 use one thread per available processor
+     * @param policy decides per entry between storing and deflating. If null, all entries are deflated with the default level
+     * @throws IOException
+     */
+    public static void zipFiles(File[] sourceFiles, File zipFile, int threads, CompressionPolicy policy) throws IOException {
+        zipFiles(sourceFiles, zipFile, threads, policy, null);
+    }
 
-        if (file == null) {
-            logger.error("Attempting to add nonexisting file to zip archive. Ignoring entry.");
+    /**
+     * Create a zip archive whose entries are compressed in parallel by the given number of threads and fill the given manifest while writing
+     * it. An existing archive gets replaced.
+     * 
+     * The archive is written to a temporary file next to it and renamed when complete. The written entries are recorded in a
+     * {@link ZipJournal}, so if the export is interrupted, the next call with the same files only compresses the entries which were not yet
+     * complete
+     *
+     * @param sourceFiles files and directories to add to the archive
+     * @param zipFile the archive to create
+     * @param threads number of compression threads. Values below 1 use one thread per available processor
+     * @param policy decides per entry between storing and deflating. If null, all entries are deflated with the default level
+     * @param manifest receives size, CRC32 and digest of the entries in archive order and the digest of the archive, may be null
+     * @throws IOException
+     */
+    public static void zipFiles(File[] sourceFiles, File zipFile, int threads, CompressionPolicy policy, ArchiveManifest manifest)
+            throws IOException {
+        if (zipFile == null || sourceFiles == null || sourceFiles.length == 0) {
             return;
         }
+        zipFiles(FileScanner.read(sourceFiles, ""), zipFile, threads, policy, manifest);
+    }
 
-        if (file.isFile()) {
+    /**
+     * Create a zip archive of files whose attributes were read before, e.g. by {@link FileScanner#listFolder(File, FilenameFilter)}, as
+     * {@link #zipFiles(File[], File, int, CompressionPolicy, ArchiveManifest)} does
+     *
+     * @param sourceFiles files and directories to add to the archive under their names
+     * @param zipFile the archive to create
+     * @param threads number of compression threads. Values below 1 use one thread per available processor
+     * @param policy decides per entry between storing and deflating. If null, all entries are deflated with the default level
+     * @param manifest receives size, CRC32 and digest of the entries in archive order and the digest of the archive, may be null
+     * @throws IOException
+     */
+    public static void zipFiles(List<FileScanner.ScannedFile> sourceFiles, File zipFile, int threads, CompressionPolicy policy,
+            ArchiveManifest manifest) throws IOException {
 
-            FileInputStream fis = new FileInputStream(file);
-            BufferedInputStream bis = new BufferedInputStream(fis);
+        if (zipFile == null || sourceFiles == null || sourceFiles.isEmpty()) {
+            return;
+        }
 
-            zos.putNextEntry(new ZipEntry(path + file.getName()));
-            int size;
-            byte[] buffer = new byte[2048];
-            while ((size = bis.read(buffer, 0, buffer.length)) != -1) {
-                zos.write(buffer, 0, size);
-                if (checksum != null && size > 0) {
-                    checksum.update(buffer, 0, size);
-                }
+        zipFile.getParentFile().mkdirs();
+
+        File tempFile = new File(zipFile.getParentFile(), zipFile.getName() + ".tmp");
+        deleteStaleBuffers(tempFile);
+        ZipJournal journal;
+        try {
+            journal = writeJournaled(sourceFiles, tempFile, threads, policy, manifest);
+        } catch (ZipJournal.MismatchException e) {
+            // the interrupted export can't be continued, but it must not fail every further export of the archive
+            logger.warn(e.getMessage() + ", creating " + zipFile.getName() + " from scratch");
+            ZipJournal.discard(tempFile);
+            if (manifest != null) {
+                manifest.clear();
             }
+            journal = writeJournaled(sourceFiles, tempFile, threads, policy, manifest);
+        }
 
-            if (zos != null) {
-                zos.closeEntry();
+        replaceFile(tempFile, zipFile);
+        journal.delete();
+    }
+
+    /**
+     * Writes the archive into the temporary file, keeping the entries its journal recovered
+     *
+     * @return the closed journal, to be deleted when the archive is in place
+     */
+    private static ZipJournal writeJournaled(List<FileScanner.ScannedFile> sourceFiles, File tempFile, int threads, CompressionPolicy policy,
+            ArchiveManifest manifest) throws IOException {
+        ZipJournal journal = ZipJournal.open(ZipJournal.getJournalFile(tempFile), tempFile, manifest == null ? null : manifest.getAlgorithm());
+        ParallelZipCreator creator = new ParallelZipCreator(tempFile, threads);
+        creator.setCompressionPolicy(policy);
+        creator.setManifest(manifest);
+        creator.setJournal(journal);
+        try {
+            logger.debug("Adding " + sourceFiles.size() + " files to zipfile " + tempFile.getAbsolutePath());
+            creator.addFiles(sourceFiles);
+            creator.finish();
+        } finally {
+            try {
+                creator.close();
+            } finally {
+                journal.close();
             }
-            if (bis != null) {
-                bis.close();
+        }
+        return journal;
+    }
+
+    /**
+     * Create a zip archive of entries whose content is created by the compressing threads, e.g. rendered derivatives. Unlike
+     * {@link #zipFiles(File[], File, int, CompressionPolicy, ArchiveManifest)} no journal is kept, an interrupted archive is created anew
+     *
+     * @param entries
+     * @param zipFile the archive to create
+     * @param threads number of threads creating and compressing the entries. Values below 1 use one thread per available processor
+     * @param policy decides per entry between storing and deflating by its extension, may be null
+     * @param manifest receives size, CRC32 and digest of the entries in archive order and the digest of the archive, may be null
+     * @throws IOException
+     */
+    public static void zipEntries(List<EntrySource> entries, File zipFile, int threads, CompressionPolicy policy, ArchiveManifest manifest)
+            throws IOException {
+        zipFile.getParentFile().mkdirs();
+        File tempFile = new File(zipFile.getParentFile(), zipFile.getName() + ".tmp");
+        deleteStaleBuffers(tempFile);
+        ParallelZipCreator creator = new ParallelZipCreator(tempFile, threads);
+        creator.setCompressionPolicy(policy);
+        creator.setManifest(manifest);
+        try {
+            for (EntrySource entry : entries) {
+                creator.addEntry(entry);
             }
-        } else if (file.isDirectory()) {
-            ZipEntry entry = new ZipEntry(path + file.getName() + File.separator);
-            zos.putNextEntry(entry);
-            if (zos != null && entry != null) {
-                zos.closeEntry();
+            creator.finish();
+        } finally {
+            creator.close();
+        }
+        replaceFile(tempFile, zipFile);
+    }
+
+    /**
+     * Deletes the compression buffers an interrupted export of the given archive left behind
+     * 
+     * @param zipFile
+     */
+    static void deleteStaleBuffers(final File zipFile) {
+        File[] staleBuffers = zipFile.getParentFile().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith("." + zipFile.getName()) && name.endsWith(".scatter");
             }
-            File[] subfiles = file.listFiles();
-            if (subfiles != null && subfiles.length > 0) {
-                for (File subFile : subfiles) {
-                    zipFile(subFile, path + file.getName() + File.separator, zos, checksum);
-                }
+        });
+        if (staleBuffers != null) {
+            for (File staleBuffer : staleBuffers) {
+                staleBuffer.delete();
             }
-        } else {
-            logger.warn("File " + file.getAbsolutePath() + " doesn't seem to exist and cannot be added to zip archive.");
         }
     }
 
-    public static boolean validateZip(File zipFile, boolean createTempFile, File origFilesParent, int supposedFiles) {
-
-        File tempFile = null;
-        ZipEntry entry = null;
-        ZipInputStream in = null;
-        int counter = 0;
+    /**
+     * Writes the files in archive order. All files are handed to the read-ahead first, its readers stay ahead of the compression as far as
+     * their buffers allow
+     */
+    private static void zipFiles(File[] sourceFiles, ZipOutputStream zos, MessageDigest checksum, CompressionPolicy policy) throws IOException {
+        List<FileScanner.ScannedFile> scannedFiles = new ArrayList<FileScanner.ScannedFile>();
+        for (File file : sourceFiles) {
+            if (file == null) {
+                logger.error("Attempting to add nonexisting file to zip archive. Ignoring entry.");
+                continue;
+            }
+            scannedFiles.addAll(FileScanner.list(new File[] { file }, ""));
+        }
+        int readers = policy == null ? ReadAhead.DEFAULT_READERS : policy.getReadAheadThreads();
+        ReadAhead readAhead = readers > 0 ? new ReadAhead(readers) : null;
+        BufferPool pool = BufferPool.getShared();
+        byte[] buffer = pool.acquireArray();
         try {
-            in = new ZipInputStream((new BufferedInputStream(new FileInputStream(zipFile))));
-
-
-            while ((entry = in.getNextEntry()) != null) {
-                counter++;
-                File f = new File(entry.getName());
-                tempFile = new File(zipFile.getParentFile(), f.getName());
-                if (entry.isDirectory()) {
+            List<InputStream> contents = new ArrayList<InputStream>();
+            for (FileScanner.ScannedFile scanned : scannedFiles) {
+                contents.add(readAhead == null || scanned.isDirectory() ? null : readAhead.add(scanned.getFile()));
+            }
+            for (int i = 0; i < scannedFiles.size(); i++) {
+                FileScanner.ScannedFile scanned = scannedFiles.get(i);
+                if (scanned.isDirectory()) {
+                    zos.putNextEntry(new ZipEntry(scanned.getName()));
+                    zos.closeEntry();
                     continue;
                 }
-                logger.debug("Testing file " + entry.getName() + " from archive " + zipFile.getName());
-                BufferedOutputStream out = null;
-                if (createTempFile) {
-                    if (!tempFile.isFile()) {
-                        tempFile.createNewFile();
-                    }
-                    out = new BufferedOutputStream(new FileOutputStream(tempFile));
-                }
-
-                int size;
-                byte[] buffer = new byte[2048];
-                while ((size = in.read(buffer, 0, buffer.length)) != -1) {
-                    if (createTempFile) {
-                        out.write(buffer, 0, size);
-                    }
-                }
-                if (out != null) {
-                    out.flush();
-                    out.close();
+                logger.debug("Adding file " + scanned.getFile().getAbsolutePath() + " to zip archive");
+                InputStream in = contents.get(i);
+                if (in == null) {
+                    // the pooled buffer is large enough to read without buffering
+                    in = IoGovernor.openInput(scanned.getFile());
                 }
-
-                if (createTempFile && (tempFile == null || !tempFile.isFile())) {
-                    logger.debug("Found corrupted archive entry: Unable to create file");
-                    return false;
-                }
-
-                //check checksum of file
                 try {
-                    if (createTempFile && origFilesParent != null) {
-                        File origFile = new File(origFilesParent, entry.getName());
-                        if (origFile == null || !origFile.isFile()) {
-                            logger.debug("Unable to find orig file for entry " + entry.getName());
-                            continue;
+                    // the policy samples the first buffer, which is written first
+                    int size = in.readNBytes(buffer, 0, buffer.length);
+                    if (policy != null) {
+                        zos.setLevel(policy.decide(scanned.getName(), scanned.getSize(), buffer, size).getLevel());
+                    }
+                    zos.putNextEntry(new ZipEntry(scanned.getName()));
+                    if (size > 0) {
+                        zos.write(buffer, 0, size);
+                        if (checksum != null) {
+                            checksum.update(buffer, 0, size);
                         }
-                        logger.debug("Testing entry against original file " + origFile.getAbsolutePath());
-                        byte[] tempFileChecksum = createChecksum(tempFile);
-                        byte[] origFileChecksum = createChecksum(origFile);
-                        if (!MessageDigest.isEqual(tempFileChecksum, origFileChecksum)) {
-                            logger.debug("Found corrupted archive entry: Checksums don't match");
-                            return false;
+                    }
+                    while ((size = in.read(buffer, 0, buffer.length)) != -1) {
+                        zos.write(buffer, 0, size);
+                        if (checksum != null && size > 0) {
+                            checksum.update(buffer, 0, size);
                         }
-
                     }
-                } catch (NoSuchAlgorithmException e) {
-                    logger.error("Unable to check file: Unknown algorithm");
+                    zos.closeEntry();
                 } finally {
-                    if (tempFile != null && tempFile.isFile()) {
-                        tempFile.delete();
-                    }
+                    in.close();
                 }
             }
-            //      } catch (FileNotFoundException e) {
-            //          logger.debug("Encountered FileNotFound Exception, probably due to trying to extract a directory. Ignoring");
+        } finally {
+            pool.release(buffer);
+            if (readAhead != null) {
+                readAhead.close();
+            }
+        }
+    }
+
+    /**
+     * Validates a zip archive with a {@link ZipVerifier}. With createTempFile and a folder of original files every entry is compared byte
+     * by byte with its original file, which has to exist, otherwise every entry is decompressed and compared with its CRC. This paranoid
+     * mode reads every original file again, {@link #validateZip(File, ArchiveManifest)} validates against the digests captured while writing
+     * instead
+     * 
+     * @param zipFile
+     * @param createTempFile
+     * @param origFilesParent
+     * @param supposedFiles the number of entries, files and directories, the archive has to contain
+     * @return
+     */
+    public static boolean validateZip(File zipFile, boolean createTempFile, File origFilesParent, int supposedFiles) {
+        ZipVerifier verifier = new ZipVerifier(zipFile);
+        verifier.setExpectedEntries(supposedFiles);
+        if (createTempFile && origFilesParent != null) {
+            verifier.setOriginals(origFilesParent);
+            return verifier.verify(ZipVerifier.Level.FULL);
+        }
+        return verifier.verify(ZipVerifier.Level.CRC);
+    }
+
+    /**
+     * Validates a zip archive in a single pass by comparing the content of every entry with the digests captured while the archive was written.
+     * No files are extracted and the original files are not read again. The archive is invalid if an entry can't be read, doesn't match its
+     * digest, is not part of the manifest or if an entry of the manifest is missing
+     * 
+     * @param zipFile the archive to validate
+     * @param manifest the manifest filled while the archive was written
+     * @return
+     */
+    public static boolean validateZip(File zipFile, ArchiveManifest manifest) {
+        ArchiveInputStream in = null;
+        try {
+            in = new ZipArchiveInputStream(new BufferedInputStream(IoGovernor.openInput(zipFile)));
+            return validateEntries(in, zipFile, manifest);
         } catch (IOException e) {
-            logger.debug("Found corrupted archive entry");
+            logger.debug("Found corrupted archive " + zipFile.getName() + ": " + e.toString());
             return false;
         } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Validates a tar archive in a single pass by comparing the content of every entry with the digests captured while the archive was written.
+     * See {@link #validateZip(File, ArchiveManifest)}
+     * 
+     * @param tarFile the archive to validate. Gets decompressed if the name ends with .gz
+     * @param manifest the manifest filled while the archive was written
+     * @return
+     */
+    public static boolean validateTar(File tarFile, ArchiveManifest manifest) {
+        return validateTar(tarFile, manifest, 0);
+    }
+
+    /**
+     * Validates a tar archive by comparing the content of every entry with the digests captured while the archive was written. A gzip
+     * compressed archive with a {@link BlockGzipIndex} is validated by the given number of threads
+     * 
+     * @param tarFile the archive to validate. Gets decompressed if the name ends with .gz
+     * @param manifest the manifest filled while the archive was written
+     * @param threads number of validating threads. Values below 1 use one thread per available processor
+     * @return
+     */
+    public static boolean validateTar(final File tarFile, final ArchiveManifest manifest, int threads) {
+        BlockGzipIndex index = tarFile.getName().endsWith(".gz") ? BlockGzipIndex.read(tarFile) : null;
+        if (index != null && ParallelZipCreator.getThreadCount(threads) > 1 && index.size() > 1) {
+            final Set<String> found = Collections.synchronizedSet(new HashSet<String>());
             try {
-                if (in != null)
-                    in.close();
+                List<Boolean> results = processEntryRanges(tarFile, index, threads, new EntryRangeTask<Boolean>() {
+                    @Override
+                    public Boolean process(TarArchiveInputStream in, int count, int range) throws IOException {
+                        return validateEntries(in, count, tarFile, manifest, found);
+                    }
+                });
+                return !results.contains(Boolean.FALSE) && isComplete(found, tarFile, manifest);
             } catch (IOException e) {
-                logger.debug("Cannot close archive entry");
+                logger.debug("Found corrupted archive " + tarFile.getName() + ": " + e.toString());
                 return false;
             }
         }
 
-        if (counter == supposedFiles) {
-            return true;
-        } else {
+        ArchiveInputStream in = null;
+        try {
+            InputStream bis = new BufferedInputStream(IoGovernor.openInput(tarFile));
+            if (tarFile.getName().endsWith(".gz")) {
+                bis = new GZIPInputStream(bis);
+            }
+            in = new TarArchiveInputStream(bis);
+            return validateEntries(in, tarFile, manifest);
+        } catch (IOException e) {
+            logger.debug("Found corrupted archive " + tarFile.getName() + ": " + e.toString());
             return false;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static boolean validateEntries(ArchiveInputStream in, File archive, ArchiveManifest manifest) throws IOException {
+        Set<String> found = new HashSet<String>();
+        return validateEntries(in, -1, archive, manifest, found) && isComplete(found, archive, manifest);
+    }
+
+    /**
+     * Validates the given number of entries, or all remaining entries if the number is negative, and adds their names to the found entries
+     */
+    private static boolean validateEntries(ArchiveInputStream in, int count, File archive, ArchiveManifest manifest, Set<String> found)
+            throws IOException {
+        BufferPool pool = BufferPool.getShared();
+        byte[] buffer = pool.acquireArray();
+        try {
+            return validateEntries(in, count, archive, manifest, found, buffer);
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    private static boolean validateEntries(ArchiveInputStream in, int count, File archive, ArchiveManifest manifest, Set<String> found,
+            byte[] buffer) throws IOException {
+        ArchiveEntry entry;
+        int entries = 0;
+        while ((count < 0 || entries < count) && (entry = in.getNextEntry()) != null) {
+            entries++;
+            if (entry.isDirectory()) {
+                continue;
+            }
+            logger.debug("Testing file " + entry.getName() + " from archive " + archive.getName());
+            ArchiveManifest.Entry expected = manifest.getEntry(entry.getName());
+            if (expected == null) {
+                logger.debug("Found unexpected archive entry " + entry.getName());
+                return false;
+            }
+            MessageDigest digest = manifest.createDigest();
+            long size = 0;
+            int read;
+            while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+                digest.update(buffer, 0, read);
+                size += read;
+            }
+            if (size != expected.getSize() || !MessageDigest.isEqual(digest.digest(), expected.getDigest())) {
+                logger.debug("Found corrupted archive entry " + entry.getName() + ": Checksums don't match");
+                return false;
+            }
+            found.add(entry.getName());
+        }
+        if (count >= 0 && entries < count) {
+            logger.debug("Archive " + archive.getName() + " ends before the last indexed entry");
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean isComplete(Set<String> found, File archive, ArchiveManifest manifest) {
+        if (found.size() != manifest.size()) {
+            logger.debug("Archive " + archive.getName() + " contains " + found.size() + " of " + manifest.size() + " expected files");
+            return false;
+        }
+        return true;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                logger.debug("Cannot close " + closeable + ": " + e.toString());
+            }
         }
     }
 
@@ -680,19 +1486,20 @@ public class ArchiveUtils {
      * @throws Exception
      */
     public static byte[] createChecksum(File file) throws NoSuchAlgorithmException, IOException {
-        InputStream fis = new FileInputStream(file);
+        return createChecksum(file, "MD5");
+    }
 
-        byte[] buffer = new byte[1024];
-        MessageDigest complete = MessageDigest.getInstance("MD5");
-        int numRead;
-        do {
-            numRead = fis.read(buffer);
-            if (numRead > 0) {
-                complete.update(buffer, 0, numRead);
-            }
-        } while (numRead != -1);
-        fis.close();
-        return complete.digest();
+    /**
+     * Creates the checksum of the given file with one of the {@link Digests}, e.g. CRC32C, XXH64 or SHA-256
+     * 
+     * @param file
+     * @param algorithm
+     * @return
+     * @throws NoSuchAlgorithmException
+     * @throws IOException
+     */
+    public static byte[] createChecksum(File file, String algorithm) throws NoSuchAlgorithmException, IOException {
+        return Digests.digest(file, Digests.getInstance(algorithm));
     }
 
     /**
@@ -703,26 +1510,9 @@ public class ArchiveUtils {
      * @throws IOException
      */
     public static void copyFile(File source, File dest) throws IOException {
-
-        if (!dest.exists()) {
-            dest.createNewFile();
-        }
-        InputStream in = null;
-        OutputStream out = null;
-        try {
-            in = new FileInputStream(source);
-            out = new FileOutputStream(dest);
-
-            // Transfer bytes from in to out
-            byte[] buf = new byte[1024];
-            int len;
-            while ((len = in.read(buf)) > 0) {
-                out.write(buf, 0, len);
-            }
-        } finally {
-            in.close();
-            out.close();
-        }
+        FileTransfer transfer = new FileTransfer();
+        transfer.setAtomic(false);
+        transfer.copy(source, dest);
     }
 
 }
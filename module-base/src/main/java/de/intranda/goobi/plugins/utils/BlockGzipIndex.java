@@ -0,0 +1,245 @@
+package de.intranda.goobi.plugins.utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The index of an archive written by a {@link BlockGzipOutputStream}. It lists the offsets of all gzip members in the compressed file and in
+ * the decompressed data, and the offsets of the archive entries in the decompressed data. Decompression can start at the member containing
+ * an entry, so the entries of the archive can be read in parallel.
+ *
+ * The index is stored next to the archive. It is ignored if the archive was changed after it was written.
+ *
+ */
+public class BlockGzipIndex {
+
+    private static final Logger logger = Logger.getLogger(BlockGzipIndex.class);
+
+    private static final String HEADER = "# block gzip index";
+
+    private final List<Block> blocks = new ArrayList<Block>();
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private long compressedSize;
+    private long uncompressedSize;
+
+    /**
+     * Returns the file the index of the given archive is stored in
+     *
+     * @param archive
+     * @return
+     */
+    public static File getIndexFile(File archive) {
+        return new File(archive.getParentFile(), archive.getName() + ".idx");
+    }
+
+    synchronized void addBlock(long compressedOffset, long uncompressedOffset) {
+        blocks.add(new Block(compressedOffset, uncompressedOffset));
+    }
+
+    synchronized void addEntry(long uncompressedOffset, String name) {
+        entries.add(new Entry(name, uncompressedOffset));
+    }
+
+    synchronized void setSize(long compressedSize, long uncompressedSize) {
+        this.compressedSize = compressedSize;
+        this.uncompressedSize = uncompressedSize;
+    }
+
+    /**
+     * @return the entries in archive order
+     */
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<Entry>(entries);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the size of the compressed file
+     */
+    public synchronized long getCompressedSize() {
+        return compressedSize;
+    }
+
+    /**
+     * Returns the gzip member containing the given position of the decompressed data
+     *
+     * @param uncompressedOffset
+     * @return
+     */
+    public synchronized Block getBlock(long uncompressedOffset) {
+        int low = 0;
+        int high = blocks.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) / 2;
+            if (blocks.get(middle).getUncompressedOffset() <= uncompressedOffset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return blocks.get(low);
+    }
+
+    /**
+     * Splits the entries into consecutive ranges of about the same decompressed size
+     *
+     * @param parts the maximum number of ranges
+     * @return
+     */
+    public synchronized List<List<Entry>> split(int parts) {
+        List<List<Entry>> ranges = new ArrayList<List<Entry>>();
+        long rangeSize = uncompressedSize / Math.max(parts, 1) + 1;
+        List<Entry> range = new ArrayList<Entry>();
+        long rangeStart = 0;
+        for (Entry entry : entries) {
+            if (!range.isEmpty() && entry.getOffset() - rangeStart >= rangeSize && ranges.size() < parts - 1) {
+                ranges.add(range);
+                range = new ArrayList<Entry>();
+            }
+            if (range.isEmpty()) {
+                rangeStart = entry.getOffset();
+            }
+            range.add(entry);
+        }
+        if (!range.isEmpty()) {
+            ranges.add(range);
+        }
+        return ranges;
+    }
+
+    /**
+     * Writes the index next to the given archive
+     *
+     * @param archive
+     * @throws IOException
+     */
+    public synchronized void write(File archive) throws IOException {
+        File indexFile = getIndexFile(archive);
+        File tempFile = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8));
+        try {
+            writer.write(HEADER + "\t" + compressedSize + "\t" + uncompressedSize + "\n");
+            for (Block block : blocks) {
+                writer.write("B\t" + block.getCompressedOffset() + "\t" + block.getUncompressedOffset() + "\n");
+            }
+            for (Entry entry : entries) {
+                writer.write("E\t" + entry.getOffset() + "\t" + entry.getName() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        ArchiveUtils.replaceFile(tempFile, indexFile);
+    }
+
+    /**
+     * Reads the index of the given archive
+     *
+     * @param archive
+     * @return the index, or null if there is no index or it doesn't match the archive
+     */
+    public static BlockGzipIndex read(File archive) {
+        File indexFile = getIndexFile(archive);
+        if (!indexFile.isFile()) {
+            return null;
+        }
+        BlockGzipIndex index = new BlockGzipIndex();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8));
+            try {
+                String line = reader.readLine();
+                String[] header = line == null ? new String[0] : line.split("\t");
+                if (header.length != 3 || !HEADER.equals(header[0])) {
+                    logger.warn("Ignoring unknown index " + indexFile.getAbsolutePath());
+                    return null;
+                }
+                index.setSize(Long.parseLong(header[1]), Long.parseLong(header[2]));
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", 3);
+                    if (fields.length != 3) {
+                        throw new IOException("Invalid line " + line);
+                    } else if ("B".equals(fields[0])) {
+                        index.addBlock(Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+                    } else if ("E".equals(fields[0])) {
+                        index.addEntry(Long.parseLong(fields[1]), fields[2]);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Index " + indexFile.getAbsolutePath() + " is not readable", e);
+            return null;
+        }
+        if (index.getCompressedSize() != archive.length() || index.blocks.isEmpty()) {
+            logger.warn("Index " + indexFile.getAbsolutePath() + " doesn't match the archive, ignoring it");
+            return null;
+        }
+        return index;
+    }
+
+    /**
+     * A gzip member
+     */
+    public static class Block {
+        private final long compressedOffset;
+        private final long uncompressedOffset;
+
+        Block(long compressedOffset, long uncompressedOffset) {
+            this.compressedOffset = compressedOffset;
+            this.uncompressedOffset = uncompressedOffset;
+        }
+
+        /**
+         * @return the position of the member in the compressed file
+         */
+        public long getCompressedOffset() {
+            return compressedOffset;
+        }
+
+        /**
+         * @return the position of the first byte of the member in the decompressed data
+         */
+        public long getUncompressedOffset() {
+            return uncompressedOffset;
+        }
+    }
+
+    /**
+     * An archive entry
+     */
+    public static class Entry {
+        private final String name;
+        private final long offset;
+
+        Entry(String name, long offset) {
+            this.name = name;
+            this.offset = offset;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the position of the first header of the entry in the decompressed data
+         */
+        public long getOffset() {
+            return offset;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package de.intranda.goobi.plugins.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip compresses data on a pool of worker threads. The data is split into blocks which are compressed into independent gzip members, like
+ * pigz or BGZF do. The result is a standard gzip file, as every gzip reader decompresses concatenated members as one stream.
+ *
+ * The positions of all members are recorded in a {@link BlockGzipIndex}, together with the positions marked by {@link #markEntry(String)},
+ * so decompression can start at any marked entry. The blocks and compressed members are reused once they were written, so at most about
+ * two blocks per thread are allocated by a stream.
+ *
+ */
+public class BlockGzipOutputStream extends OutputStream {
+
+    /** Size of the uncompressed blocks */
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    private static final byte[] HEADER = new byte[] { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    /** CRC32 and size following the compressed data of a member */
+    private static final int TRAILER_SIZE = 8;
+
+    /** Deflaters of the worker threads, reset after every block instead of allocating the native zlib state again */
+    private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+    };
+
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final boolean ownExecutor;
+    private final int maxPending;
+    private final int blockSize;
+    private final int level;
+    private final Deque<Future<Member>> pending = new ArrayDeque<Future<Member>>();
+    // the uncompressed offsets of the pending blocks
+    private final Deque<Long> pendingOffsets = new ArrayDeque<Long>();
+    private final BlockGzipIndex index = new BlockGzipIndex();
+    // blocks handed back by the workers and members which were written
+    private final Queue<byte[]> freeBlocks = new ConcurrentLinkedQueue<byte[]>();
+    private final Queue<byte[]> freeMembers = new ConcurrentLinkedQueue<byte[]>();
+    private final int memberSize;
+    private byte[] block;
+    private int blockFill = 0;
+    private long compressedOffset = 0;
+    private long uncompressedOffset = 0;
+    private boolean closed = false;
+
+    /**
+     * Creates a stream which gets compressed by its own pool of worker threads
+     *
+     * @param out the stream receiving the compressed data
+     * @param threads number of worker threads. Values below 1 use one thread per available processor
+     */
+    public BlockGzipOutputStream(OutputStream out, int threads) {
+        this(out, Executors.newFixedThreadPool(ParallelZipCreator.getThreadCount(threads)), ParallelZipCreator.getThreadCount(threads),
+                DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION, true);
+    }
+
+    /**
+     * Creates a stream which gets compressed by the given executor. The executor is not shut down when the stream is closed
+     *
+     * @param out the stream receiving the compressed data
+     * @param executor the executor to run the compression tasks
+     * @param parallelism the number of threads of the executor, used to limit the number of compressed blocks waiting to be written
+     * @param blockSize the size of the uncompressed blocks
+     * @param level the deflate level
+     */
+    public BlockGzipOutputStream(OutputStream out, ExecutorService executor, int parallelism, int blockSize, int level) {
+        this(out, executor, ParallelZipCreator.getThreadCount(parallelism), blockSize, level, false);
+    }
+
+    private BlockGzipOutputStream(OutputStream out, ExecutorService executor, int parallelism, int blockSize, int level, boolean ownExecutor) {
+        this.out = out;
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+        this.maxPending = parallelism * 2;
+        this.blockSize = blockSize;
+        this.level = level;
+        // large enough for incompressible data, see deflateBound of zlib
+        this.memberSize = HEADER.length + blockSize + (blockSize >> 12) + (blockSize >> 14) + 64 + TRAILER_SIZE;
+        this.block = new byte[blockSize];
+    }
+
+    /**
+     * Records that an archive entry starts at the current position
+     *
+     * @param name
+     */
+    public void markEntry(String name) {
+        index.addEntry(uncompressedOffset, name);
+    }
+
+    /**
+     * @return the number of bytes written to this stream
+     */
+    public long getUncompressedOffset() {
+        return uncompressedOffset;
+    }
+
+    /**
+     * @return the positions of the members and marked entries. Complete after the stream was closed
+     */
+    public BlockGzipIndex getIndex() {
+        return index;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (length > 0) {
+            int count = Math.min(length, blockSize - blockFill);
+            System.arraycopy(data, offset, block, blockFill, count);
+            blockFill += count;
+            uncompressedOffset += count;
+            offset += count;
+            length -= count;
+            if (blockFill == blockSize) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * Compresses the current block. Waits for the oldest block if too many are waiting to be written
+     */
+    private void submitBlock() throws IOException {
+        final byte[] data = block;
+        final int length = blockFill;
+        pendingOffsets.add(uncompressedOffset - length);
+        pending.add(executor.submit(new Callable<Member>() {
+            @Override
+            public Member call() {
+                try {
+                    byte[] output = freeMembers.poll();
+                    return compress(data, length, level, output == null ? new byte[memberSize] : output);
+                } finally {
+                    freeBlocks.add(data);
+                }
+            }
+        }));
+        block = freeBlocks.poll();
+        if (block == null) {
+            block = new byte[blockSize];
+        }
+        blockFill = 0;
+        while (pending.size() > maxPending) {
+            writeBlock(pending.poll());
+        }
+    }
+
+    private void writeBlock(Future<Member> future) throws IOException {
+        Member member;
+        try {
+            member = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to compress block", e.getCause());
+        }
+        index.addBlock(compressedOffset, pendingOffsets.poll());
+        out.write(member.data, 0, member.length);
+        compressedOffset += member.length;
+        if (member.data.length == memberSize) {
+            freeMembers.add(member.data);
+        }
+    }
+
+    /**
+     * Compresses the given data into a gzip member
+     *
+     * @param data
+     * @param length
+     * @param level
+     * @param output the array to write the member to. Replaced by a larger one if the member doesn't fit
+     * @return
+     */
+    static Member compress(byte[] data, int length, int level, byte[] output) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        Deflater deflater = DEFLATERS.get();
+        deflater.setLevel(level);
+        try {
+            System.arraycopy(HEADER, 0, output, 0, HEADER.length);
+            int size = HEADER.length;
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (size == output.length - TRAILER_SIZE) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                size += deflater.deflate(output, size, output.length - TRAILER_SIZE - size);
+            }
+            writeInt(output, size, (int) crc.getValue());
+            writeInt(output, size + 4, length);
+            return new Member(output, size + TRAILER_SIZE);
+        } finally {
+            // drops the reference to the block, which is reused
+            deflater.reset();
+        }
+    }
+
+    private static void writeInt(byte[] out, int offset, int value) {
+        out[offset] = (byte) value;
+        out[offset + 1] = (byte) (value >> 8);
+        out[offset + 2] = (byte) (value >> 16);
+        out[offset + 3] = (byte) (value >> 24);
+    }
+
+    /**
+     * Compresses the remaining data and writes all blocks, without closing the underlying stream
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        if (closed) {
+            return;
+        }
+        // a gzip file needs at least one member
+        if (blockFill > 0 || uncompressedOffset == 0) {
+            submitBlock();
+        }
+        while (!pending.isEmpty()) {
+            writeBlock(pending.poll());
+        }
+        out.flush();
+        closed = true;
+        index.setSize(compressedOffset, uncompressedOffset);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+            out.close();
+        } finally {
+            for (Future<Member> future : pending) {
+                future.cancel(true);
+            }
+            if (ownExecutor) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * A compressed gzip member at the start of an array
+     */
+    static class Member {
+        private final byte[] data;
+        private final int length;
+
+        private Member(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package de.intranda.goobi.plugins.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reusable I/O buffers of one size, shared by all archive operations so that reading and writing thousands of small files doesn't allocate
+ * new buffers for every entry. Direct buffers are used with {@link java.nio.channels.FileChannel}s and the ByteBuffer methods of
+ * {@link java.util.zip.Deflater}, {@link java.util.zip.CRC32} and {@link java.security.MessageDigest}, arrays with streams.
+ *
+ * Buffers are allocated on demand. Released buffers are kept up to the given number of idle buffers of each kind, further ones are left to
+ * the garbage collector. Buffers of another size, e.g. from before the pool was reconfigured, are not taken back
+ *
+ */
+public class BufferPool {
+
+    public static final int DEFAULT_BUFFER_SIZE = 128 * 1024;
+    public static final int DEFAULT_MAX_IDLE = 32;
+
+    private static BufferPool shared = new BufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_IDLE);
+
+    private final int bufferSize;
+    private final int maxIdle;
+    private final Queue<ByteBuffer> directBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger idleDirectBuffers = new AtomicInteger();
+    private final Queue<byte[]> arrays = new ConcurrentLinkedQueue<byte[]>();
+    private final AtomicInteger idleArrays = new AtomicInteger();
+
+    /**
+     * @param bufferSize the size of every buffer in bytes
+     * @param maxIdle the maximum number of idle buffers kept of each kind
+     */
+    public BufferPool(int bufferSize, int maxIdle) {
+        this.bufferSize = bufferSize;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * @return the pool shared by all archive operations
+     */
+    public static synchronized BufferPool getShared() {
+        return shared;
+    }
+
+    /**
+     * Replaces the shared pool if the size or the number of idle buffers changed. Buffers in use stay valid
+     *
+     * @param bufferSize
+     * @param maxIdle
+     */
+    public static synchronized void configure(int bufferSize, int maxIdle) {
+        if (shared.bufferSize != bufferSize || shared.maxIdle != maxIdle) {
+            shared = new BufferPool(bufferSize, maxIdle);
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return a cleared direct buffer, to be handed back with {@link #release(ByteBuffer)}
+     */
+    public ByteBuffer acquireDirect() {
+        ByteBuffer buffer = directBuffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        idleDirectBuffers.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * @return an array, to be handed back with {@link #release(byte[])}
+     */
+    public byte[] acquireArray() {
+        byte[] array = arrays.poll();
+        if (array == null) {
+            return new byte[bufferSize];
+        }
+        idleArrays.decrementAndGet();
+        return array;
+    }
+
+    /**
+     * Takes back a direct buffer. It must not be used afterwards
+     *
+     * @param buffer may be null
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() != bufferSize) {
+            return;
+        }
+        if (idleDirectBuffers.incrementAndGet() <= maxIdle) {
+            directBuffers.add(buffer);
+        } else {
+            idleDirectBuffers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Takes back an array. It must not be used afterwards
+     *
+     * @param array may be null
+     */
+    public void release(byte[] array) {
+        if (array == null || array.length != bufferSize) {
+            return;
+        }
+        if (idleArrays.incrementAndGet() <= maxIdle) {
+            arrays.add(array);
+        } else {
+            idleArrays.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package de.intranda.goobi.plugins.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A folder of cached files which is limited in size. When it grows beyond its limit, the files used least recently are deleted until it is
+ * 10% below. The modification time of a file is its last use, so several exporting servers can share the folder
+ *
+ */
+public class CacheFolder {
+
+    private static final Logger logger = Logger.getLogger(CacheFolder.class);
+
+    private final File folder;
+    private final long maxSize;
+    private final String extension;
+    private final AtomicLong currentSize = new AtomicLong(-1);
+
+    /**
+     * @param folder the folder containing the cache, created if missing
+     * @param maxSize the maximum size of the cache in bytes
+     * @param extension the extension of the cached files. Other files and files starting with a dot, i.e. files being written, are ignored
+     */
+    public CacheFolder(File folder, long maxSize, String extension) {
+        this.folder = folder;
+        this.maxSize = maxSize;
+        this.extension = extension;
+    }
+
+    public File getFolder() {
+        return folder;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Marks a cached file as recently used
+     *
+     * @param file
+     */
+    public void touch(File file) {
+        file.setLastModified(System.currentTimeMillis());
+    }
+
+    /**
+     * Counts a file added to the cache and deletes the files used least recently if the cache exceeds its limit
+     *
+     * @param length the size of the added file
+     * @throws IOException if the folder cannot be listed
+     */
+    public void added(long length) throws IOException {
+        if (addSize(length) > maxSize) {
+            evict();
+        }
+    }
+
+    private long addSize(long length) throws IOException {
+        if (currentSize.get() < 0) {
+            synchronized (this) {
+                if (currentSize.get() < 0) {
+                    long size = 0;
+                    for (FileScanner.ScannedFile cached : listFiles()) {
+                        size += cached.getSize();
+                    }
+                    // includes the new file
+                    currentSize.set(size);
+                    return size;
+                }
+            }
+        }
+        return currentSize.addAndGet(length);
+    }
+
+    /**
+     * Deletes the files used least recently until the cache is 10% below its limit. Every file is renamed to a hidden name before it is
+     * deleted, so a lookup either opens it before and can still read it or doesn't find it, and a file evicted by several servers at once
+     * is only counted by the one which renamed it
+     */
+    private synchronized void evict() throws IOException {
+        if (currentSize.get() <= maxSize) {
+            return;
+        }
+        List<FileScanner.ScannedFile> files = listFiles();
+        Collections.sort(files, new Comparator<FileScanner.ScannedFile>() {
+            @Override
+            public int compare(FileScanner.ScannedFile o1, FileScanner.ScannedFile o2) {
+                return Long.compare(o1.getLastModified(), o2.getLastModified());
+            }
+        });
+        long size = 0;
+        for (FileScanner.ScannedFile cached : files) {
+            size += cached.getSize();
+        }
+        long target = maxSize - maxSize / 10;
+        int deleted = 0;
+        for (FileScanner.ScannedFile cached : files) {
+            if (size <= target) {
+                break;
+            }
+            File file = cached.getFile();
+            File evicted = new File(file.getParentFile(), ".evicted-" + file.getName());
+            size -= cached.getSize();
+            if (!file.renameTo(evicted)) {
+                // evicted by another server in the meantime
+                continue;
+            }
+            deleted++;
+            if (!evicted.delete()) {
+                logger.warn("Unable to delete evicted file " + evicted.getAbsolutePath());
+            }
+        }
+        // corrects the size for files added or deleted by other servers
+        currentSize.set(size);
+        logger.debug("Evicted " + deleted + " files from the cache " + folder.getAbsolutePath());
+    }
+
+    private List<FileScanner.ScannedFile> listFiles() throws IOException {
+        List<FileScanner.ScannedFile> files = new ArrayList<FileScanner.ScannedFile>();
+        if (!folder.isDirectory()) {
+            return files;
+        }
+        for (FileScanner.ScannedFile cached : FileScanner.list(new File[] { folder }, "")) {
+            String name = cached.getFile().getName();
+            if (!cached.isDirectory() && name.endsWith(extension) && !name.startsWith(".")) {
+                files.add(cached);
+            }
+        }
+        return files;
+    }
+}
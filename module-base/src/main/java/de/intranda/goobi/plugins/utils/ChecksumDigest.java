@@ -0,0 +1,52 @@
+package de.intranda.goobi.plugins.utils;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.zip.Checksum;
+
+/**
+ * Makes a 32 bit {@link Checksum} like CRC32C usable wherever a {@link MessageDigest} is expected. The JVM computes CRC32C with the CRC
+ * instructions of the processor, which is much faster than any cryptographic digest
+ *
+ */
+class ChecksumDigest extends MessageDigest {
+
+    private final Checksum checksum;
+
+    ChecksumDigest(String algorithm, Checksum checksum) {
+        super(algorithm);
+        this.checksum = checksum;
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return 4;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        checksum.update(input);
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        checksum.update(input, offset, len);
+    }
+
+    @Override
+    protected void engineUpdate(ByteBuffer input) {
+        checksum.update(input);
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        long value = checksum.getValue();
+        checksum.reset();
+        return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value };
+    }
+
+    @Override
+    protected void engineReset() {
+        checksum.reset();
+    }
+}
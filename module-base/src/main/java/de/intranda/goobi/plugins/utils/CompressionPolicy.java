@@ -0,0 +1,346 @@
+package de.intranda.goobi.plugins.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Decides per archive entry whether it is worth deflating. Already compressed formats like JPEG or JPEG 2000 are stored, other files are
+ * decided by deflating a small sample from the beginning of the file, which the writers read for compressing it anyway. Once enough entries of an extension were seen and nearly all of them were
+ * either stored or deflated, the learned result of the extension is used instead of a sample, with an occasional sample to notice changes.
+ *
+ */
+public class CompressionPolicy {
+
+    private static final Logger logger = Logger.getLogger(CompressionPolicy.class);
+
+    /** Extensions stored without compression by default */
+    public static final String[] DEFAULT_STORED_EXTENSIONS = { "jpg", "jpeg", "jp2", "j2k", "png", "gif", "zip", "gz", "pdf" };
+
+    /** Share of entries an extension must agree on before the learned result replaces sampling */
+    private static final double CLEAR_MAJORITY = 0.9;
+
+    /** Deflaters of the sampling threads, reset for every sample instead of allocating the native zlib state again */
+    private static final ThreadLocal<Sampler> SAMPLERS = new ThreadLocal<Sampler>() {
+        @Override
+        protected Sampler initialValue() {
+            return new Sampler();
+        }
+    };
+
+    private Set<String> storedExtensions = new HashSet<String>(Arrays.asList(DEFAULT_STORED_EXTENSIONS));
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private int sampleSize = 64 * 1024;
+    private double minSavings = 0.05;
+    private double fastSavings = 0.2;
+    private int learningThreshold = 20;
+    private int resampleInterval = 50;
+    private CompressionStatistics statistics = new CompressionStatistics();
+    private EntryCache entryCache;
+    private int readAheadThreads = ReadAhead.DEFAULT_READERS;
+    private final AtomicLong decisions = new AtomicLong();
+
+    /**
+     * The compression chosen for a single entry
+     */
+    public static class Decision {
+        private final int method;
+        private final int level;
+
+        public Decision(int method, int level) {
+            this.method = method;
+            this.level = level;
+        }
+
+        /**
+         * @return {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}
+         */
+        public int getMethod() {
+            return method;
+        }
+
+        /**
+         * @return the deflate level, {@link Deflater#NO_COMPRESSION} for stored entries
+         */
+        public int getLevel() {
+            return level;
+        }
+
+        public boolean isStored() {
+            return method == ZipEntry.STORED;
+        }
+    }
+
+    /**
+     * Decides how the given file gets compressed
+     *
+     * @param file
+     * @return
+     */
+    public Decision decide(File file) {
+        return decide(file, file.length());
+    }
+
+    /**
+     * Decides how the given file of known size gets compressed. The sample is read from the file, writers which read the file anyway use
+     * {@link #decide(String, long, byte[], int)} with its first bytes instead
+     *
+     * @param file
+     * @param size the size of the file
+     * @return
+     */
+    public Decision decide(File file, long size) {
+        if (storedExtensions.contains(getExtension(file.getName())) || size < 1024) {
+            // decided without a sample
+            return decide(file.getName(), size, null, -1);
+        }
+        BufferPool pool = BufferPool.getShared();
+        byte[] head = pool.acquireArray();
+        try {
+            int length;
+            try {
+                InputStream in = IoGovernor.openInput(file);
+                try {
+                    length = in.readNBytes(head, 0, Math.min(sampleSize, head.length));
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                logger.debug("Unable to sample " + file.getAbsolutePath() + ", deflating it: " + e.toString());
+                length = -1;
+            }
+            return decide(file.getName(), size, head, length);
+        } finally {
+            pool.release(head);
+        }
+    }
+
+    /**
+     * Decides how a file of known size gets compressed, sampling its first bytes if the learned result of its extension isn't clear
+     *
+     * @param name the name of the file or entry
+     * @param size the size of the file
+     * @param head the first bytes of the file, e.g. the first buffer read for compressing it. Only sampleSize bytes are used
+     * @param length the number of bytes in head, or -1 if the file couldn't be read
+     * @return
+     */
+    public Decision decide(String name, long size, byte[] head, int length) {
+        String extension = getExtension(name);
+        if (storedExtensions.contains(extension)) {
+            return new Decision(ZipEntry.STORED, Deflater.NO_COMPRESSION);
+        }
+        if (size < 1024) {
+            // too small for the deflate overhead to matter
+            return new Decision(ZipEntry.DEFLATED, level);
+        }
+
+        double ratio = -1;
+        if (statistics.getCount(extension) >= learningThreshold && decisions.incrementAndGet() % resampleInterval != 0) {
+            double storedShare = statistics.getStoredShare(extension);
+            if (storedShare >= CLEAR_MAJORITY) {
+                return new Decision(ZipEntry.STORED, Deflater.NO_COMPRESSION);
+            } else if (storedShare <= 1 - CLEAR_MAJORITY) {
+                ratio = statistics.getRatio(extension);
+            }
+            // extensions with mixed content, like TIFFs with and without compression, are still sampled
+        }
+        if (ratio < 0) {
+            if (length < 0) {
+                return new Decision(ZipEntry.DEFLATED, level);
+            }
+            ratio = sample(head, Math.min(length, sampleSize));
+            if (1 - ratio < minSavings) {
+                // stored entries never report their compressed size, so learn from the sample instead
+                statistics.record(extension, size, (long) (size * ratio), true);
+            }
+        }
+
+        double savings = 1 - ratio;
+        if (savings < minSavings) {
+            return new Decision(ZipEntry.STORED, Deflater.NO_COMPRESSION);
+        } else if (savings < fastSavings) {
+            // barely compressible data gains next to nothing from higher levels
+            return new Decision(ZipEntry.DEFLATED, Deflater.BEST_SPEED);
+        }
+        return new Decision(ZipEntry.DEFLATED, level);
+    }
+
+    /**
+     * Decides how an entry created in memory gets compressed, by its extension only
+     *
+     * @param name the name of the entry
+     * @return
+     */
+    public Decision decide(String name) {
+        if (storedExtensions.contains(getExtension(name))) {
+            return new Decision(ZipEntry.STORED, Deflater.NO_COMPRESSION);
+        }
+        return new Decision(ZipEntry.DEFLATED, level);
+    }
+
+    /**
+     * Records the result of a deflated entry, so later decisions for the same extension can skip sampling
+     *
+     * @param name the name of the entry
+     * @param size the uncompressed size
+     * @param compressedSize the compressed size
+     */
+    public void record(String name, long size, long compressedSize) {
+        statistics.record(getExtension(name), size, compressedSize, false);
+    }
+
+    /**
+     * Deflates a sample and returns the compressed size relative to the sample size
+     *
+     * @param data
+     * @param length
+     * @return
+     */
+    static double sample(byte[] data, int length) {
+        if (length == 0) {
+            return 1;
+        }
+        Sampler sampler = SAMPLERS.get();
+        Deflater deflater = sampler.deflater;
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(sampler.output);
+            }
+            return (double) compressed / length;
+        } finally {
+            // drops the reference to the sampled buffer, which goes back to its pool
+            deflater.reset();
+        }
+    }
+
+    private static String getExtension(String name) {
+        int index = name.lastIndexOf('.');
+        if (index < 0) {
+            return "";
+        }
+        return name.substring(index + 1).toLowerCase(Locale.ENGLISH);
+    }
+
+    public Set<String> getStoredExtensions() {
+        return storedExtensions;
+    }
+
+    /**
+     * Sets the extensions which are always stored without compression
+     *
+     * @param extensions
+     */
+    public void setStoredExtensions(Set<String> extensions) {
+        storedExtensions = new HashSet<String>();
+        for (String extension : extensions) {
+            storedExtensions.add(extension.toLowerCase(Locale.ENGLISH));
+        }
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Sets the deflate level used for well compressible entries
+     *
+     * @param level
+     */
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    public void setSampleSize(int sampleSize) {
+        this.sampleSize = sampleSize;
+    }
+
+    public double getMinSavings() {
+        return minSavings;
+    }
+
+    /**
+     * Sets the minimal relative size reduction a sample must show to deflate an entry, e.g. 0.05 for 5%
+     *
+     * @param minSavings
+     */
+    public void setMinSavings(double minSavings) {
+        this.minSavings = minSavings;
+    }
+
+    public int getLearningThreshold() {
+        return learningThreshold;
+    }
+
+    /**
+     * Sets the number of recorded entries of an extension after which the learned ratio replaces sampling
+     *
+     * @param learningThreshold
+     */
+    public void setLearningThreshold(int learningThreshold) {
+        this.learningThreshold = learningThreshold;
+    }
+
+    public CompressionStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Sets the statistics to learn from, allowing several policies to share them
+     *
+     * @param statistics
+     */
+    public void setStatistics(CompressionStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    public EntryCache getEntryCache() {
+        return entryCache;
+    }
+
+    /**
+     * Sets the cache the deflated entries are taken from and added to. Null compresses every entry
+     *
+     * @param entryCache
+     */
+    public void setEntryCache(EntryCache entryCache) {
+        this.entryCache = entryCache;
+    }
+
+    public int getReadAheadThreads() {
+        return readAheadThreads;
+    }
+
+    /**
+     * Sets the number of threads reading the files ahead of the compressing threads, see {@link ReadAhead}. 0 lets every compressing thread
+     * read its files itself
+     *
+     * @param readAheadThreads
+     */
+    public void setReadAheadThreads(int readAheadThreads) {
+        this.readAheadThreads = readAheadThreads;
+    }
+
+    /**
+     * The deflater and output buffer a thread samples with
+     */
+    private static class Sampler {
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        private final byte[] output = new byte[8192];
+    }
+}
@@ -0,0 +1,163 @@
+package de.intranda.goobi.plugins.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Collects the compression ratios achieved per file extension and how many entries were stored, so a {@link CompressionPolicy} can decide
+ * without sampling once enough entries of an extension were seen. The statistics can be stored in a properties file to keep them between restarts
+ *
+ */
+public class CompressionStatistics {
+
+    private static final Logger logger = Logger.getLogger(CompressionStatistics.class);
+
+    private final Map<String, Ratio> ratios = new ConcurrentHashMap<String, Ratio>();
+
+    /**
+     * Records the size of an entry before and after compression
+     *
+     * @param extension the lower case file extension of the entry
+     * @param size the uncompressed size
+     * @param compressedSize the compressed size, or the estimated size for stored entries
+     * @param stored true if the entry was stored because it was not worth compressing
+     */
+    public void record(String extension, long size, long compressedSize, boolean stored) {
+        if (size <= 0) {
+            return;
+        }
+        getOrCreateRatio(extension).add(size, compressedSize, stored);
+    }
+
+    /**
+     * Returns the number of entries recorded for the extension
+     *
+     * @param extension
+     * @return
+     */
+    public long getCount(String extension) {
+        Ratio ratio = ratios.get(extension);
+        return ratio == null ? 0 : ratio.count.get();
+    }
+
+    /**
+     * Returns the average compressed size relative to the uncompressed size of all recorded entries with the extension, or 1 if nothing was
+     * recorded
+     *
+     * @param extension
+     * @return
+     */
+    public double getRatio(String extension) {
+        Ratio ratio = ratios.get(extension);
+        if (ratio == null || ratio.size.get() == 0) {
+            return 1;
+        }
+        return (double) ratio.compressedSize.get() / ratio.size.get();
+    }
+
+    /**
+     * Returns the share of recorded entries with the extension which were stored, or 0 if nothing was recorded
+     *
+     * @param extension
+     * @return
+     */
+    public double getStoredShare(String extension) {
+        Ratio ratio = ratios.get(extension);
+        if (ratio == null || ratio.count.get() == 0) {
+            return 0;
+        }
+        return (double) ratio.stored.get() / ratio.count.get();
+    }
+
+    private Ratio getOrCreateRatio(String extension) {
+        Ratio ratio = ratios.get(extension);
+        if (ratio == null) {
+            ratios.putIfAbsent(extension, new Ratio());
+            ratio = ratios.get(extension);
+        }
+        return ratio;
+    }
+
+    /**
+     * Adds the statistics stored in the given file. Nothing is done if the file doesn't exist
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void load(File file) throws IOException {
+        if (!file.isFile()) {
+            return;
+        }
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        for (String key : properties.stringPropertyNames()) {
+            if (!key.endsWith(".count")) {
+                continue;
+            }
+            String extension = key.substring(0, key.length() - ".count".length());
+            try {
+                Ratio ratio = getOrCreateRatio(extension);
+                ratio.count.addAndGet(Long.parseLong(properties.getProperty(key)));
+                ratio.size.addAndGet(Long.parseLong(properties.getProperty(extension + ".size", "0")));
+                ratio.compressedSize.addAndGet(Long.parseLong(properties.getProperty(extension + ".compressedSize", "0")));
+                ratio.stored.addAndGet(Long.parseLong(properties.getProperty(extension + ".stored", "0")));
+            } catch (NumberFormatException e) {
+                logger.warn("Ignoring invalid compression statistics for extension " + extension + " in " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Writes the statistics into the given file
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void save(File file) throws IOException {
+        Properties properties = new Properties();
+        for (Map.Entry<String, Ratio> entry : ratios.entrySet()) {
+            properties.setProperty(entry.getKey() + ".count", String.valueOf(entry.getValue().count.get()));
+            properties.setProperty(entry.getKey() + ".size", String.valueOf(entry.getValue().size.get()));
+            properties.setProperty(entry.getKey() + ".compressedSize", String.valueOf(entry.getValue().compressedSize.get()));
+            properties.setProperty(entry.getKey() + ".stored", String.valueOf(entry.getValue().stored.get()));
+        }
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            properties.store(out, "Compression ratios per file extension");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static class Ratio {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong size = new AtomicLong();
+        private final AtomicLong compressedSize = new AtomicLong();
+        private final AtomicLong stored = new AtomicLong();
+
+        private void add(long entrySize, long entryCompressedSize, boolean entryStored) {
+            count.incrementAndGet();
+            size.addAndGet(entrySize);
+            compressedSize.addAndGet(entryCompressedSize);
+            if (entryStored) {
+                stored.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package de.intranda.goobi.plugins.utils;
+
+import java.security.MessageDigest;
+
+/**
+ * Creates digests of an algorithm the JVM doesn't provide. Factories are found with {@link java.util.ServiceLoader} or registered with
+ * {@link Digests#register(DigestFactory)}
+ *
+ */
+public interface DigestFactory {
+
+    /**
+     * @return the name of the algorithm, as used in the configuration and the manifests
+     */
+    String getAlgorithm();
+
+    /**
+     * @return a new digest instance
+     */
+    MessageDigest create();
+}
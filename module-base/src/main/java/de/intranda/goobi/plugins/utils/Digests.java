@@ -0,0 +1,199 @@
+package de.intranda.goobi.plugins.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Creates the digests used for checksums and manifests. Besides the algorithms of the JVM (MD5, SHA-256, ...) the following are available:
+ * <ul>
+ * <li>CRC32C: computed by the processor, for fast corruption checks</li>
+ * <li>XXH64: a fast 64 bit hash, for corruption checks with fewer collisions</li>
+ * <li>&lt;algorithm&gt;-TREE, e.g. SHA-256-TREE: a hash tree over chunks of the file, which can be computed in parallel</li>
+ * </ul>
+ * Further algorithms can be added with a {@link DigestFactory}.
+ *
+ */
+public class Digests {
+
+    private static final Logger logger = Logger.getLogger(Digests.class);
+
+    private static final Map<String, DigestFactory> factories = new ConcurrentHashMap<String, DigestFactory>();
+
+    static {
+        register(new DigestFactory() {
+            @Override
+            public String getAlgorithm() {
+                return "CRC32C";
+            }
+
+            @Override
+            public MessageDigest create() {
+                return new ChecksumDigest(getAlgorithm(), new CRC32C());
+            }
+        });
+        register(new DigestFactory() {
+            @Override
+            public String getAlgorithm() {
+                return Xxh64Digest.ALGORITHM;
+            }
+
+            @Override
+            public MessageDigest create() {
+                return new Xxh64Digest();
+            }
+        });
+        try {
+            for (DigestFactory factory : ServiceLoader.load(DigestFactory.class, Digests.class.getClassLoader())) {
+                register(factory);
+            }
+        } catch (ServiceConfigurationError e) {
+            logger.error("Unable to load digest factories", e);
+        }
+    }
+
+    private Digests() {
+    }
+
+    /**
+     * Adds an algorithm, replacing a factory of the same algorithm
+     *
+     * @param factory
+     */
+    public static void register(DigestFactory factory) {
+        factories.put(factory.getAlgorithm().toUpperCase(Locale.ENGLISH), factory);
+    }
+
+    /**
+     * Returns a new digest of the given algorithm
+     *
+     * @param algorithm
+     * @return
+     * @throws NoSuchAlgorithmException
+     */
+    public static MessageDigest getInstance(String algorithm) throws NoSuchAlgorithmException {
+        String name = algorithm.toUpperCase(Locale.ENGLISH);
+        if (name.endsWith(TreeDigest.SUFFIX) && name.length() > TreeDigest.SUFFIX.length()) {
+            return new TreeDigest(algorithm);
+        }
+        DigestFactory factory = factories.get(name);
+        if (factory != null) {
+            return factory.create();
+        }
+        return MessageDigest.getInstance(algorithm);
+    }
+
+    /**
+     * Hashes the given file, read into a direct buffer of the {@link BufferPool}
+     *
+     * @param file
+     * @param digest
+     * @return the digest of the file
+     * @throws IOException
+     */
+    public static byte[] digest(File file, MessageDigest digest) throws IOException {
+        BufferPool pool = BufferPool.getShared();
+        ByteBuffer buffer = pool.acquireDirect();
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            update(digest, channel, 0, channel.size(), buffer);
+        } finally {
+            channel.close();
+            pool.release(buffer);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Hashes the given file. The chunks of a tree algorithm are hashed in parallel on the given executor, other algorithms hash the file on
+     * the calling thread
+     *
+     * @param file
+     * @param algorithm
+     * @param executor
+     * @return the digest of the file
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static byte[] digest(final File file, String algorithm, ExecutorService executor) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = getInstance(algorithm);
+        final long size = file.length();
+        if (!(digest instanceof TreeDigest) || executor == null || size <= TreeDigest.CHUNK_SIZE) {
+            return digest(file, digest);
+        }
+        final String chunkAlgorithm = TreeDigest.getChunkAlgorithm(algorithm);
+        List<Future<byte[]>> chunks = new ArrayList<Future<byte[]>>();
+        for (long position = 0; position < size; position += TreeDigest.CHUNK_SIZE) {
+            final long start = position;
+            chunks.add(executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    MessageDigest chunkDigest = getInstance(chunkAlgorithm);
+                    BufferPool pool = BufferPool.getShared();
+                    ByteBuffer buffer = pool.acquireDirect();
+                    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                    try {
+                        update(chunkDigest, channel, start, Math.min(start + TreeDigest.CHUNK_SIZE, size), buffer);
+                    } finally {
+                        channel.close();
+                        pool.release(buffer);
+                    }
+                    return chunkDigest.digest();
+                }
+            }));
+        }
+        TreeDigest tree = (TreeDigest) digest;
+        try {
+            for (Future<byte[]> chunk : chunks) {
+                tree.addChunkDigest(chunk.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while hashing " + file.getAbsolutePath(), e);
+        } catch (ExecutionException e) {
+            for (Future<byte[]> chunk : chunks) {
+                chunk.cancel(true);
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        return tree.digest();
+    }
+
+    private static void update(MessageDigest digest, FileChannel channel, long position, long end, ByteBuffer buffer) throws IOException {
+        while (position < end) {
+            buffer.clear();
+            if (end - position < buffer.capacity()) {
+                buffer.limit((int) (end - position));
+            }
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file at " + position);
+            }
+            IoGovernor.acquire(read);
+            buffer.flip();
+            digest.update(buffer);
+            position += read;
+        }
+    }
+}
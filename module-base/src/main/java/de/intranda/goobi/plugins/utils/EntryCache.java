@@ -0,0 +1,185 @@
+package de.intranda.goobi.plugins.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps the deflated data of zip entries, so files exported again are copied into the archive without compressing them. Entries are found by
+ * the XXH64 hash and size of the uncompressed content and the deflate level, the CRC and sizes are stored with the data.
+ *
+ * The cache is limited in size, see {@link CacheFolder}. The modification time of an entry is its last use, so several exporting servers can
+ * share the cache folder
+ *
+ */
+public class EntryCache {
+
+    private static final Logger logger = Logger.getLogger(EntryCache.class);
+
+    /** size and CRC of the uncompressed data */
+    private static final int HEADER_SIZE = 16;
+
+    private static final String EXTENSION = ".deflate";
+
+    private final CacheFolder cache;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param folder the folder containing the cache, created if missing
+     * @param maxSize the maximum size of the cache in bytes
+     */
+    public EntryCache(File folder, long maxSize) {
+        this.cache = new CacheFolder(folder, maxSize, EXTENSION);
+    }
+
+    public File getFolder() {
+        return cache.getFolder();
+    }
+
+    public long getMaxSize() {
+        return cache.getMaxSize();
+    }
+
+    /**
+     * @return the number of entries found in the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of entries looked up but not found
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Looks up the compressed data of the given content. The data stays readable even if the entry gets evicted before it is copied
+     *
+     * @param hash the XXH64 hash of the uncompressed content
+     * @param size the size of the uncompressed content
+     * @param level the deflate level
+     * @return the entry, which must be closed, or null if the content is not cached
+     */
+    public Entry get(byte[] hash, long size, int level) {
+        File file = getFile(hash, size, level);
+        if (!file.isFile()) {
+            misses.incrementAndGet();
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(IoGovernor.openInput(file));
+            try {
+                long cachedSize = in.readLong();
+                long crc = in.readLong();
+                long compressedSize = file.length() - HEADER_SIZE;
+                if (cachedSize != size || compressedSize < 0) {
+                    throw new IOException("Unexpected header");
+                }
+                cache.touch(file);
+                hits.incrementAndGet();
+                return new Entry(in, size, crc, compressedSize);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        } catch (IOException e) {
+            logger.warn("Ignoring unreadable cache entry " + file.getAbsolutePath() + ": " + e.toString());
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Adds the compressed data of the given content. Failures are logged, the export doesn't depend on the cache
+     *
+     * @param hash the XXH64 hash of the uncompressed content
+     * @param size the size of the uncompressed content
+     * @param level the deflate level
+     * @param crc the CRC32 of the uncompressed content
+     * @param compressed the raw deflated data, not closed
+     */
+    public void put(byte[] hash, long size, int level, long crc, InputStream compressed) {
+        File file = getFile(hash, size, level);
+        File tempFile = null;
+        try {
+            file.getParentFile().mkdirs();
+            tempFile = File.createTempFile(".entry", ".tmp", file.getParentFile());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(IoGovernor.openOutput(tempFile), 65536));
+            try {
+                out.writeLong(size);
+                out.writeLong(crc);
+                byte[] buffer = new byte[65536];
+                int read;
+                while ((read = compressed.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+            long length = tempFile.length();
+            ArchiveUtils.replaceFile(tempFile, file);
+            cache.added(length);
+        } catch (IOException e) {
+            logger.warn("Unable to cache compressed entry " + file.getName() + ": " + e.toString());
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    private File getFile(byte[] hash, long size, int level) {
+        String hex = ArchiveUtils.convertChecksumToHex(hash);
+        return new File(new File(cache.getFolder(), hex.substring(0, 2)), hex + "-" + size + "-" + level + EXTENSION);
+    }
+
+    /**
+     * The compressed data of a cached entry
+     */
+    public static class Entry implements Closeable {
+        private final InputStream data;
+        private final long size;
+        private final long crc;
+        private final long compressedSize;
+
+        private Entry(InputStream data, long size, long crc, long compressedSize) {
+            this.data = data;
+            this.size = size;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+        }
+
+        /**
+         * @return the raw deflated data
+         */
+        public InputStream getData() {
+            return data;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        @Override
+        public void close() throws IOException {
+            data.close();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package de.intranda.goobi.plugins.utils;
+
+import java.io.IOException;
+
+/**
+ * An archive entry whose content is created while the archive is written, e.g. a derivative rendered from a master image. The content is
+ * created by the worker threads of the archive writer and kept in memory until it is written
+ *
+ */
+public interface EntrySource {
+
+    /**
+     * @return the name of the entry inside the archive
+     */
+    String getName();
+
+    /**
+     * @return the modification time of the entry
+     */
+    long getLastModified();
+
+    /**
+     * Creates the content of the entry. Called once, on a worker thread
+     *
+     * @return
+     * @throws IOException
+     */
+    byte[] getContent() throws IOException;
+}
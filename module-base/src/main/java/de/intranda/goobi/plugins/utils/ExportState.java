@@ -0,0 +1,156 @@
+package de.intranda.goobi.plugins.utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Size, modification time and digest of every file of an export, stored next to the archive in <code>&lt;archive&gt;.state.txt</code>. Used to
+ * find the images which changed since the last export
+ *
+ */
+public class ExportState {
+
+    private static final String HEADER = "# export state";
+
+    private final String algorithm;
+    private long archiveSize = -1;
+    private final Map<String, FileState> files = new LinkedHashMap<String, FileState>();
+
+    public ExportState(String algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public long getArchiveSize() {
+        return archiveSize;
+    }
+
+    public void setArchiveSize(long archiveSize) {
+        this.archiveSize = archiveSize;
+    }
+
+    public void add(String name, long size, long lastModified, byte[] digest) {
+        files.put(name, new FileState(name, size, lastModified, digest));
+    }
+
+    /**
+     * Returns the state of the file stored as the given archive entry, or null if there is none
+     *
+     * @param name
+     * @return
+     */
+    public FileState getFile(String name) {
+        return files.get(name);
+    }
+
+    public List<FileState> getFiles() {
+        return new ArrayList<FileState>(files.values());
+    }
+
+    public static File getStateFile(File archive) {
+        return new File(archive.getParentFile(), archive.getName() + ".state.txt");
+    }
+
+    /**
+     * Writes the state next to the given archive
+     *
+     * @param archive
+     * @throws IOException
+     */
+    public void write(File archive) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(getStateFile(archive)), StandardCharsets.UTF_8));
+        try {
+            writer.write(HEADER + "\t" + algorithm + "\t" + archiveSize + "\n");
+            for (FileState file : files.values()) {
+                writer.write(file.getSize() + "\t" + file.getLastModified() + "\t" + ArchiveUtils.convertChecksumToHex(file.getDigest()) + "\t"
+                        + file.getName() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Reads the state stored next to the given archive, or returns null if there is none or it is not readable
+     *
+     * @param archive
+     * @return
+     */
+    public static ExportState read(File archive) {
+        File stateFile = getStateFile(archive);
+        if (!stateFile.isFile()) {
+            return null;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(stateFile), StandardCharsets.UTF_8));
+            try {
+                String[] header = reader.readLine().split("\t");
+                if (header.length != 3 || !HEADER.equals(header[0])) {
+                    return null;
+                }
+                ExportState state = new ExportState(header[1]);
+                state.setArchiveSize(Long.parseLong(header[2]));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", 4);
+                    if (fields.length == 4) {
+                        state.add(fields[3], Long.parseLong(fields[0]), Long.parseLong(fields[1]), ArchiveUtils.convertHexToChecksum(fields[2]));
+                    }
+                }
+                return state;
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The state of a single file
+     */
+    public static class FileState {
+        private final String name;
+        private final long size;
+        private final long lastModified;
+        private final byte[] digest;
+
+        public FileState(String name, long size, long lastModified, byte[] digest) {
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.digest = digest;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public byte[] getDigest() {
+            return digest;
+        }
+    }
+}
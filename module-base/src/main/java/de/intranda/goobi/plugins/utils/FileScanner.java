@@ -0,0 +1,287 @@
+package de.intranda.goobi.plugins.utils;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Walks the files and directories added to an archive. The attributes of every file are read once, together with its type, instead of
+ * probing it with {@link File#isFile()}, {@link File#length()} and {@link File#lastModified()}, which costs a round trip each on network
+ * file systems. The content of a directory is visited in the order of the names, so archives of the same files always have the same layout
+ *
+ */
+public class FileScanner {
+
+    private static final Logger logger = Logger.getLogger(FileScanner.class);
+
+    private static final Comparator<ScannedFile> BY_NAME = new Comparator<ScannedFile>() {
+        @Override
+        public int compare(ScannedFile o1, ScannedFile o2) {
+            return o1.getFile().getName().compareTo(o2.getFile().getName());
+        }
+    };
+
+    /**
+     * Receives the files found, in archive order
+     */
+    public interface Visitor {
+
+        /**
+         * Called for every file and directory, for a directory before its content
+         *
+         * @param file
+         * @throws IOException
+         */
+        void visit(ScannedFile file) throws IOException;
+    }
+
+    private FileScanner() {
+    }
+
+    /**
+     * Visits the given files and the content of the given directories
+     *
+     * @param files files and directories, visited in the given order
+     * @param path the path inside the archive the files are added to, either empty or ending with a separator
+     * @param visitor
+     * @throws IOException if a directory can't be read
+     */
+    public static void scan(File[] files, String path, Visitor visitor) throws IOException {
+        for (File file : files) {
+            scan(file, path + file.getName(), visitor);
+        }
+    }
+
+    /**
+     * Visits files which were scanned before, e.g. by {@link #listFolder(File, FilenameFilter)}, and the content of the directories among
+     * them. The attributes of the given files are not read again
+     *
+     * @param files files and directories, visited in the given order under their names
+     * @param visitor
+     * @throws IOException if a directory can't be read
+     */
+    public static void scan(List<ScannedFile> files, Visitor visitor) throws IOException {
+        for (ScannedFile file : files) {
+            visit(file, visitor);
+        }
+    }
+
+    /**
+     * Visits the given file, or the given directory and its content
+     *
+     * @param file
+     * @param name the name of the file inside the archive. Directories get a trailing separator, their content is named relative to it
+     * @param visitor
+     * @throws IOException if a directory can't be read
+     */
+    public static void scan(File file, String name, Visitor visitor) throws IOException {
+        if (file == null) {
+            logger.error("Attempting to add nonexisting file to archive. Ignoring entry.");
+            return;
+        }
+        ScannedFile scanned = read(file, name);
+        if (scanned == null) {
+            logger.warn("File " + file.getAbsolutePath() + " doesn't seem to exist and cannot be added to archive.");
+            return;
+        }
+        visit(scanned, visitor);
+    }
+
+    /**
+     * Collects the given files and the content of the given directories
+     *
+     * @param files
+     * @param path the path inside the archive the files are added to, either empty or ending with a separator
+     * @return the files in archive order
+     * @throws IOException if a directory can't be read
+     */
+    public static List<ScannedFile> list(File[] files, String path) throws IOException {
+        final List<ScannedFile> scanned = new ArrayList<ScannedFile>();
+        scan(files, path, new Visitor() {
+            @Override
+            public void visit(ScannedFile file) throws IOException {
+                scanned.add(file);
+            }
+        });
+        return scanned;
+    }
+
+    /**
+     * Collects files which were scanned before and the content of the directories among them
+     *
+     * @param files
+     * @return the files in archive order
+     * @throws IOException if a directory can't be read
+     */
+    public static List<ScannedFile> list(List<ScannedFile> files) throws IOException {
+        final List<ScannedFile> scanned = new ArrayList<ScannedFile>();
+        scan(files, new Visitor() {
+            @Override
+            public void visit(ScannedFile file) throws IOException {
+                scanned.add(file);
+            }
+        });
+        return scanned;
+    }
+
+    /**
+     * Reads the attributes of the given files and directories, without descending into the directories
+     *
+     * @param files
+     * @param path the path inside the archive the files are added to, either empty or ending with a separator
+     * @return the files in the given order. Missing files are logged and left out
+     * @throws IOException
+     */
+    public static List<ScannedFile> read(File[] files, String path) throws IOException {
+        Map<File, String> names = new LinkedHashMap<File, String>();
+        for (File file : files) {
+            if (file == null) {
+                logger.error("Attempting to add nonexisting file to archive. Ignoring entry.");
+                continue;
+            }
+            names.put(file, path + file.getName());
+        }
+        return read(names);
+    }
+
+    /**
+     * Reads the attributes of the given files and directories, without descending into the directories
+     *
+     * @param files the files mapped to their names inside the archive
+     * @return the files in the order of the map. Missing files are logged and left out
+     * @throws IOException
+     */
+    public static List<ScannedFile> read(Map<File, String> files) throws IOException {
+        List<ScannedFile> scanned = new ArrayList<ScannedFile>();
+        for (Map.Entry<File, String> file : files.entrySet()) {
+            ScannedFile read = read(file.getKey(), file.getValue());
+            if (read == null) {
+                logger.warn("File " + file.getKey().getAbsolutePath() + " doesn't seem to exist and cannot be added to archive.");
+            } else {
+                scanned.add(read);
+            }
+        }
+        return scanned;
+    }
+
+    /**
+     * Lists the files and directories of a folder accepted by the filter, without descending into them
+     *
+     * @param folder
+     * @param filter may be null
+     * @return the files sorted by name, or null if the folder can't be read
+     */
+    public static List<ScannedFile> listFolder(File folder, FilenameFilter filter) {
+        try {
+            return readDirectory(folder, "", filter);
+        } catch (IOException e) {
+            logger.debug("Unable to list " + folder.getAbsolutePath() + ": " + e.toString());
+            return null;
+        }
+    }
+
+    private static void visit(ScannedFile scanned, Visitor visitor) throws IOException {
+        visitor.visit(scanned);
+        if (scanned.isDirectory()) {
+            for (ScannedFile child : readDirectory(scanned.getFile(), scanned.getName(), null)) {
+                visit(child, visitor);
+            }
+        }
+    }
+
+    private static List<ScannedFile> readDirectory(File directory, String path, FilenameFilter filter) throws IOException {
+        List<ScannedFile> children = new ArrayList<ScannedFile>();
+        DirectoryStream<Path> stream = Files.newDirectoryStream(directory.toPath());
+        try {
+            for (Path child : stream) {
+                String fileName = child.getFileName().toString();
+                if (filter != null && !filter.accept(directory, fileName)) {
+                    continue;
+                }
+                ScannedFile scanned = read(child.toFile(), path + fileName);
+                // deleted while the directory was read
+                if (scanned != null) {
+                    children.add(scanned);
+                }
+            }
+        } finally {
+            stream.close();
+        }
+        Collections.sort(children, BY_NAME);
+        return children;
+    }
+
+    private static ScannedFile read(File file, String name) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (attributes.isDirectory()) {
+            return new ScannedFile(file, name + File.separator, true, 0, attributes.lastModifiedTime().toMillis());
+        } else if (attributes.isRegularFile()) {
+            return new ScannedFile(file, name, false, attributes.size(), attributes.lastModifiedTime().toMillis());
+        }
+        // sockets, devices and other special files
+        return null;
+    }
+
+    /**
+     * A file or directory with the attributes read while scanning
+     */
+    public static class ScannedFile {
+        private final File file;
+        private final String name;
+        private final boolean directory;
+        private final long size;
+        private final long lastModified;
+
+        private ScannedFile(File file, String name, boolean directory, long size, long lastModified) {
+            this.file = file;
+            this.name = name;
+            this.directory = directory;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @return the name inside the archive, ending with a separator for directories
+         */
+        public String getName() {
+            return name;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        /**
+         * @return the size in bytes, 0 for directories
+         */
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+}
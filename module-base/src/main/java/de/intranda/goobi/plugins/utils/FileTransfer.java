@@ -0,0 +1,230 @@
+package de.intranda.goobi.plugins.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Copies and moves files through {@link FileChannel}s.
+ *
+ * Without hashing the data is moved by {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, which lets the
+ * kernel copy it without passing it through the heap. With a digest algorithm the source is hashed while it is copied, so the copy can be
+ * compared with a known checksum without reading anything again. The target is written to a hidden <code>.part</code> file next to it and
+ * renamed when complete, so readers never see a partial file. A <code>.part</code> file left over by an interrupted copy is continued instead
+ * of starting over, if its content matches the beginning of the source. A part of another or of a changed source is copied again.
+ *
+ */
+public class FileTransfer {
+
+    private static final Logger logger = Logger.getLogger(FileTransfer.class);
+
+    private static final long TRANSFER_CHUNK = 64 * 1024 * 1024;
+
+    private String digestAlgorithm;
+    private boolean atomic = true;
+    private boolean resume = true;
+
+    /**
+     * Sets the {@link MessageDigest} algorithm the source is hashed with while copying, null to copy without hashing
+     *
+     * @param digestAlgorithm
+     */
+    public void setDigestAlgorithm(String digestAlgorithm) {
+        this.digestAlgorithm = digestAlgorithm;
+    }
+
+    /**
+     * Sets whether the target is written to a temporary file and renamed when complete. Enabled by default
+     *
+     * @param atomic
+     */
+    public void setAtomic(boolean atomic) {
+        this.atomic = atomic;
+    }
+
+    /**
+     * Sets whether a partial target left by an interrupted copy is continued. Only used for atomic copies, enabled by default
+     *
+     * @param resume
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * Copies source to dest, replacing an existing dest
+     *
+     * @param source
+     * @param dest
+     * @return the digest of the copied data, or null if no digest algorithm is set
+     * @throws IOException
+     */
+    public byte[] copy(File source, File dest) throws IOException {
+        MessageDigest digest = createDigest();
+        File target = atomic ? getPartFile(dest) : dest;
+        if (dest.getParentFile() != null) {
+            dest.getParentFile().mkdirs();
+        }
+
+        FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+        try {
+            // readable to compare a partial copy with the source
+            FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE);
+            try {
+                long size = in.size();
+                long position = 0;
+                if (atomic && resume && out.size() > 0 && out.size() <= size) {
+                    if (verifyPart(in, out, out.size(), digest)) {
+                        position = out.size();
+                        logger.info("Resuming copy of " + source.getAbsolutePath() + " at byte " + position + " of " + size);
+                    } else {
+                        logger.info("Discarding partial copy " + target.getAbsolutePath() + ", it doesn't match " + source.getAbsolutePath());
+                        if (digest != null) {
+                            digest.reset();
+                        }
+                    }
+                }
+                out.truncate(position);
+                out.position(position);
+
+                if (digest == null) {
+                    while (position < size) {
+                        long transferred = in.transferTo(position, Math.min(TRANSFER_CHUNK, size - position), out);
+                        // read and written
+                        IoGovernor.acquire(2 * transferred);
+                        position += transferred;
+                    }
+                } else {
+                    copyAndHash(in, position, out, digest);
+                }
+                out.force(true);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+
+        if (atomic) {
+            ArchiveUtils.replaceFile(target, dest);
+        }
+        return digest == null ? null : digest.digest();
+    }
+
+    /**
+     * Moves source to dest, replacing an existing dest. Files on the same file system are renamed, otherwise they are copied and the source
+     * is deleted afterwards
+     *
+     * @param source
+     * @param dest
+     * @return the digest of the copied data, or null if the file was renamed or no digest algorithm is set
+     * @throws IOException
+     */
+    public byte[] move(File source, File dest) throws IOException {
+        if (dest.getParentFile() != null) {
+            dest.getParentFile().mkdirs();
+        }
+        if (Files.getFileStore(source.toPath()).equals(Files.getFileStore(dest.getAbsoluteFile().getParentFile().toPath()))) {
+            ArchiveUtils.replaceFile(source, dest);
+            return null;
+        }
+        byte[] digest = copy(source, dest);
+        Files.delete(source.toPath());
+        return digest;
+    }
+
+    private MessageDigest createDigest() throws IOException {
+        if (digestAlgorithm == null) {
+            return null;
+        }
+        try {
+            return Digests.getInstance(digestAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("No checksum algorithm \"" + digestAlgorithm + "\"", e);
+        }
+    }
+
+    /**
+     * Compares the existing content of the partial copy with the beginning of the source. The digest is updated with the content of the part,
+     * which is the data delivered, so a copy is never verified against data it doesn't contain
+     *
+     * @return true if the part can be continued
+     */
+    private static boolean verifyPart(FileChannel in, FileChannel part, long end, MessageDigest digest) throws IOException {
+        BufferPool pool = BufferPool.getShared();
+        ByteBuffer expected = pool.acquireDirect();
+        ByteBuffer actual = pool.acquireDirect();
+        try {
+            long position = 0;
+            while (position < end) {
+                int length = (int) Math.min(expected.capacity(), end - position);
+                if (!readFully(in, expected, position, length) || !readFully(part, actual, position, length)) {
+                    return false;
+                }
+                IoGovernor.acquire(2L * length);
+                if (!expected.equals(actual)) {
+                    return false;
+                }
+                if (digest != null) {
+                    digest.update(actual);
+                }
+                position += length;
+            }
+            return true;
+        } finally {
+            pool.release(expected);
+            pool.release(actual);
+        }
+    }
+
+    /**
+     * Reads the given number of bytes at the position into the cleared buffer and flips it
+     *
+     * @return false if the file ends before
+     */
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position, int length) throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                return false;
+            }
+        }
+        buffer.flip();
+        return true;
+    }
+
+    private static void copyAndHash(FileChannel in, long position, FileChannel out, MessageDigest digest) throws IOException {
+        BufferPool pool = BufferPool.getShared();
+        ByteBuffer buffer = pool.acquireDirect();
+        try {
+            int read;
+            while ((read = in.read(buffer, position)) != -1) {
+                IoGovernor.acquire(2L * read);
+                position += read;
+                buffer.flip();
+                // the digest consumes the buffer, so write from a second view of the same data
+                ByteBuffer writeView = buffer.duplicate();
+                digest.update(buffer);
+                while (writeView.hasRemaining()) {
+                    out.write(writeView);
+                }
+                buffer.clear();
+            }
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    private static File getPartFile(File dest) {
+        return new File(dest.getAbsoluteFile().getParentFile(), "." + dest.getName() + ".part");
+    }
+}
@@ -0,0 +1,305 @@
+package de.intranda.goobi.plugins.utils;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Renders the delivery derivatives of master images: downsized to a maximum width and height and encoded with ImageIO, e.g. as JPEG of the
+ * given quality. The derivatives are created in memory by the threads writing the archive, see {@link #createEntries(List)}.
+ *
+ * If a cache is set, every derivative is also stored there under the XXH64 hash of its master and the render settings, so unchanged pages
+ * are not rendered again by the next export. The cache is limited in size like the {@link EntryCache}
+ *
+ */
+public class ImageDerivatives {
+
+    private static final Logger logger = Logger.getLogger(ImageDerivatives.class);
+
+    private final int maxSize;
+    private final float quality;
+    private final String format;
+    private CacheFolder cache;
+
+    private final AtomicLong rendered = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+
+    /**
+     * @param maxSize the maximum width and height of the derivatives. Smaller images keep their size, values below 1 keep the size of all
+     *            images
+     * @param quality the compression quality between 0 and 1, used by formats with a single compression type like JPEG
+     * @param format the ImageIO format name of the derivatives, also used as their extension
+     */
+    public ImageDerivatives(int maxSize, float quality, String format) {
+        this.maxSize = maxSize;
+        this.quality = quality;
+        this.format = format.toLowerCase(Locale.ENGLISH);
+        if (!ImageIO.getImageWritersByFormatName(this.format).hasNext()) {
+            throw new IllegalArgumentException("No image writer for format " + format);
+        }
+    }
+
+    /**
+     * Sets the cache storing rendered derivatives. Null disables the cache
+     *
+     * @param cache
+     */
+    public void setCache(CacheFolder cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @return the number of derivatives rendered
+     */
+    public long getRendered() {
+        return rendered.get();
+    }
+
+    /**
+     * @return the number of derivatives taken from the cache
+     */
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    /**
+     * Returns the name of the derivative of the given master, i.e. the name of the master with the extension of the format
+     *
+     * @param master
+     * @return
+     */
+    public String getName(File master) {
+        String name = master.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        return name + "." + format;
+    }
+
+    /**
+     * Creates an archive entry for the derivative of every master. Folders are skipped. Masters which differ only in their extension, like
+     * a.tif and a.jp2, keep it in the name of their derivatives, e.g. a.tif.jpg and a.jp2.jpg
+     *
+     * @param masters
+     * @return the entries in the order of the masters
+     * @throws IOException if two derivatives still get the same name
+     */
+    public List<EntrySource> createEntries(File[] masters) throws IOException {
+        return createEntries(FileScanner.read(masters, ""));
+    }
+
+    /**
+     * Creates an archive entry for the derivative of every master whose attributes were read before, e.g. by
+     * {@link FileScanner#listFolder(File, java.io.FilenameFilter)}. Folders are skipped, masters are named like in
+     * {@link #createEntries(File[])}
+     *
+     * @param masters
+     * @return the entries in the order of the masters
+     * @throws IOException if two derivatives still get the same name
+     */
+    public List<EntrySource> createEntries(List<FileScanner.ScannedFile> masters) throws IOException {
+        List<FileScanner.ScannedFile> files = new ArrayList<FileScanner.ScannedFile>();
+        Map<String, Integer> nameCounts = new HashMap<String, Integer>();
+        for (FileScanner.ScannedFile scanned : masters) {
+            if (scanned.isDirectory()) {
+                logger.warn("Skipping " + scanned.getFile().getAbsolutePath() + ", derivatives are only created for files");
+                continue;
+            }
+            files.add(scanned);
+            String name = getName(scanned.getFile());
+            nameCounts.put(name, nameCounts.containsKey(name) ? nameCounts.get(name) + 1 : 1);
+        }
+        List<EntrySource> entries = new ArrayList<EntrySource>();
+        Set<String> names = new HashSet<String>();
+        for (final FileScanner.ScannedFile scanned : files) {
+            final File master = scanned.getFile();
+            String derivativeName = getName(master);
+            if (nameCounts.get(derivativeName) > 1) {
+                logger.warn("Several masters have the derivative " + derivativeName + ", naming the derivative of " + master.getName()
+                        + " after the full name of the master");
+                derivativeName = master.getName() + "." + format;
+            }
+            if (!names.add(derivativeName)) {
+                throw new IOException("The derivatives of several masters are named " + derivativeName);
+            }
+            final String name = derivativeName;
+            entries.add(new EntrySource() {
+                @Override
+                public String getName() {
+                    return name;
+                }
+
+                @Override
+                public long getLastModified() {
+                    return scanned.getLastModified();
+                }
+
+                @Override
+                public byte[] getContent() throws IOException {
+                    return render(master, scanned.getSize());
+                }
+            });
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the derivative of the given master, from the cache if it was rendered before with the same settings
+     *
+     * @param master
+     * @return the encoded image
+     * @throws IOException
+     */
+    public byte[] render(File master) throws IOException {
+        return render(master, master.length());
+    }
+
+    private byte[] render(File master, long length) throws IOException {
+        File cached = null;
+        if (cache != null) {
+            String hash = ArchiveUtils.convertChecksumToHex(Digests.digest(master, new Xxh64Digest()));
+            cached = new File(new File(cache.getFolder(), hash.substring(0, 2)),
+                    hash + "-" + length + "-" + maxSize + "-" + Math.round(quality * 100) + "." + format);
+            if (cached.isFile()) {
+                try {
+                    IoGovernor.acquire(cached.length());
+                    byte[] data = Files.readAllBytes(cached.toPath());
+                    cache.touch(cached);
+                    cacheHits.incrementAndGet();
+                    return data;
+                } catch (IOException e) {
+                    logger.warn("Unable to read cached derivative " + cached.getAbsolutePath() + ": " + e.toString());
+                }
+            }
+        }
+        byte[] data = scale(master, length);
+        rendered.incrementAndGet();
+        if (cached != null) {
+            try {
+                cached.getParentFile().mkdirs();
+                File tempFile = File.createTempFile(".derivative", ".tmp", cached.getParentFile());
+                IoGovernor.acquire(data.length);
+                Files.write(tempFile.toPath(), data);
+                ArchiveUtils.replaceFile(tempFile, cached);
+                cache.added(data.length);
+            } catch (IOException e) {
+                logger.warn("Unable to cache derivative of " + master.getAbsolutePath() + ": " + e.toString());
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Decodes the master, subsampled to at least twice the target size, scales it to the target size and encodes it
+     */
+    private byte[] scale(File master, long length) throws IOException {
+        // ImageIO reads the master through its own channel, so it is charged at once
+        IoGovernor.acquire(length);
+        ImageInputStream in = ImageIO.createImageInputStream(master);
+        if (in == null) {
+            throw new IOException("Unable to read image " + master.getAbsolutePath());
+        }
+        BufferedImage image;
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException("No image reader for " + master.getAbsolutePath());
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int longest = Math.max(reader.getWidth(0), reader.getHeight(0));
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (maxSize > 0 && longest >= 4 * maxSize) {
+                    int subsampling = longest / (2 * maxSize);
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+                image = reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            in.close();
+        }
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        double scale = maxSize > 0 ? Math.min(1d, (double) maxSize / Math.max(width, height)) : 1d;
+        int targetWidth = Math.max(1, (int) Math.round(width * scale));
+        int targetHeight = Math.max(1, (int) Math.round(height * scale));
+        int type;
+        if (image.getColorModel().getNumColorComponents() == 1) {
+            type = BufferedImage.TYPE_BYTE_GRAY;
+        } else if (image.getColorModel().hasAlpha() && !isJpeg()) {
+            type = BufferedImage.TYPE_INT_ARGB;
+        } else {
+            type = BufferedImage.TYPE_INT_RGB;
+        }
+        BufferedImage target = new BufferedImage(targetWidth, targetHeight, type);
+        Graphics2D graphics = target.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(image, 0, 0, targetWidth, targetHeight, null);
+        } finally {
+            graphics.dispose();
+        }
+        return encode(target);
+    }
+
+    private byte[] encode(BufferedImage image) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        // kept in memory, the default output stream of ImageIO buffers in temporary files
+        ImageOutputStream out = new MemoryCacheImageOutputStream(bytes);
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (param.canWriteCompressed()) {
+                String[] types = param.getCompressionTypes();
+                if (types == null || types.length == 1) {
+                    param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                    if (types != null && param.getCompressionType() == null) {
+                        param.setCompressionType(types[0]);
+                    }
+                    param.setCompressionQuality(quality);
+                }
+            }
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private boolean isJpeg() {
+        return format.equals("jpg") || format.equals("jpeg");
+    }
+}
@@ -0,0 +1,205 @@
+package de.intranda.goobi.plugins.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.log4j.Logger;
+
+/**
+ * Re-exports a zip archive, only compressing the files which changed since the last export.
+ *
+ * The size, modification time and digest of every file is kept in an {@link ExportState} next to the archive. If no file changed, the archive
+ * is left untouched. Otherwise a new archive is built in a temporary file: unchanged files are copied raw from the previous archive, new or
+ * modified files are compressed. Files with a new modification time but unchanged content are detected by their digest. The new archive
+ * is left in the temporary file next to the old one, so the caller replaces the old archive only after validating the new one.
+ *
+ */
+public class IncrementalZipExport {
+
+    private static final Logger logger = Logger.getLogger(IncrementalZipExport.class);
+
+    private final File zipFile;
+    private final File tempFile;
+    private final int threads;
+    private final ArchiveManifest manifest;
+    private CompressionPolicy compressionPolicy;
+    private ExportState state;
+    private int reusedEntries = 0;
+    private int compressedEntries = 0;
+
+    /**
+     * @param zipFile the archive to create or update
+     * @param threads number of compression threads. Values below 1 use one thread per available processor
+     * @param manifest receives size, CRC32 and digest of all entries of the new archive
+     */
+    public IncrementalZipExport(File zipFile, int threads, ArchiveManifest manifest) {
+        this.zipFile = zipFile;
+        this.tempFile = new File(zipFile.getParentFile(), zipFile.getName() + ".tmp");
+        this.threads = threads;
+        this.manifest = manifest;
+    }
+
+    public void setCompressionPolicy(CompressionPolicy compressionPolicy) {
+        this.compressionPolicy = compressionPolicy;
+    }
+
+    /**
+     * @return the file the new archive is written to. It replaces the previous archive once it was validated
+     */
+    public File getTempFile() {
+        return tempFile;
+    }
+
+    /**
+     * Creates the new archive with the given files and directories
+     *
+     * @param sourceFiles
+     * @return false if nothing changed since the last export and the archive was left untouched, true if the new archive was written to
+     *         {@link #getTempFile()}
+     * @throws IOException
+     */
+    public boolean export(File[] sourceFiles) throws IOException {
+        return export(FileScanner.read(sourceFiles, ""));
+    }
+
+    /**
+     * Creates the new archive with files whose attributes were read before, e.g. by
+     * {@link FileScanner#listFolder(File, java.io.FilenameFilter)}
+     *
+     * @param sourceFiles files and directories to export under their names
+     * @return false if nothing changed since the last export and the archive was left untouched, true if the new archive was written to
+     *         {@link #getTempFile()}
+     * @throws IOException
+     */
+    public boolean export(List<FileScanner.ScannedFile> sourceFiles) throws IOException {
+        List<FileScanner.ScannedFile> entries = FileScanner.list(sourceFiles);
+
+        ExportState previous = zipFile.isFile() ? ExportState.read(zipFile) : null;
+        if (previous != null && !previous.getAlgorithm().equals(manifest.getAlgorithm())) {
+            logger.debug("Digest algorithm changed since the last export of " + zipFile.getName() + ", creating a new archive");
+            previous = null;
+        }
+        if (previous != null && isUnchanged(entries, previous)) {
+            logger.info("No files changed since the last export of " + zipFile.getName());
+            return false;
+        }
+
+        zipFile.getParentFile().mkdirs();
+        ZipFile previousArchive = previous == null ? null : new ZipFile(zipFile);
+        // touched files are hashed on the compression threads, in parallel chunks if the manifest uses a tree algorithm
+        int parallelism = ParallelZipCreator.getThreadCount(threads);
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        boolean success = false;
+        try {
+            ParallelZipCreator creator = new ParallelZipCreator(tempFile, executor, parallelism);
+            creator.setCompressionPolicy(compressionPolicy);
+            creator.setManifest(manifest);
+            try {
+                for (FileScanner.ScannedFile entry : entries) {
+                    if (entry.isDirectory()) {
+                        creator.addDirectoryEntry(entry.getFile(), entry.getName(), entry.getLastModified());
+                        continue;
+                    }
+                    byte[] digest = previousArchive == null ? null : getUnchangedDigest(entry, previous, executor);
+                    ZipArchiveEntry previousEntry = digest == null ? null : previousArchive.getEntry(entry.getName());
+                    if (previousEntry != null && previousEntry.getSize() == entry.getSize()) {
+                        creator.addRawEntry(previousArchive, previousEntry, digest);
+                        reusedEntries++;
+                    } else {
+                        creator.addFileEntry(entry.getFile(), entry.getName(), entry.getSize(), entry.getLastModified());
+                        compressedEntries++;
+                    }
+                }
+                creator.finish();
+            } finally {
+                creator.close();
+            }
+            success = true;
+        } finally {
+            executor.shutdownNow();
+            ZipFile.closeQuietly(previousArchive);
+            if (!success) {
+                tempFile.delete();
+            }
+        }
+
+        logger.info("Exported " + zipFile.getName() + ": " + compressedEntries + " files compressed, " + reusedEntries
+                + " files copied from the previous archive");
+
+        state = new ExportState(manifest.getAlgorithm());
+        state.setArchiveSize(tempFile.length());
+        for (FileScanner.ScannedFile entry : entries) {
+            ArchiveManifest.Entry manifestEntry = manifest.getEntry(entry.getName());
+            if (!entry.isDirectory() && manifestEntry != null) {
+                state.add(entry.getName(), entry.getSize(), entry.getLastModified(), manifestEntry.getDigest());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stores the state of the exported files next to the archive. Should be called once the new archive was validated and replaced the
+     * previous one, the next export only compresses files which changed afterwards
+     *
+     * @throws IOException
+     */
+    public void saveState() throws IOException {
+        if (state != null) {
+            state.write(zipFile);
+        }
+    }
+
+    public int getReusedEntries() {
+        return reusedEntries;
+    }
+
+    public int getCompressedEntries() {
+        return compressedEntries;
+    }
+
+    private boolean isUnchanged(List<FileScanner.ScannedFile> entries, ExportState previous) {
+        if (zipFile.length() != previous.getArchiveSize()) {
+            return false;
+        }
+        int files = 0;
+        for (FileScanner.ScannedFile entry : entries) {
+            if (entry.isDirectory()) {
+                continue;
+            }
+            files++;
+            ExportState.FileState fileState = previous.getFile(entry.getName());
+            if (fileState == null || fileState.getSize() != entry.getSize() || fileState.getLastModified() != entry.getLastModified()) {
+                return false;
+            }
+        }
+        return files == previous.getFiles().size();
+    }
+
+    /**
+     * Returns the digest of the file if its content is the same as in the previous export, otherwise null
+     */
+    private byte[] getUnchangedDigest(FileScanner.ScannedFile entry, ExportState previous, ExecutorService executor) throws IOException {
+        ExportState.FileState fileState = previous.getFile(entry.getName());
+        if (fileState == null || fileState.getSize() != entry.getSize()) {
+            return null;
+        }
+        if (fileState.getLastModified() == entry.getLastModified()) {
+            return fileState.getDigest();
+        }
+        // touched, but maybe not modified
+        byte[] current;
+        try {
+            current = Digests.digest(entry.getFile(), manifest.getAlgorithm(), executor);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        return MessageDigest.isEqual(current, fileState.getDigest()) ? current : null;
+    }
+}
@@ -0,0 +1,424 @@
+package de.intranda.goobi.plugins.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the disk bandwidth and the I/O operations per second of the exports, so they don't starve the rest of the server on a shared
+ * storage. Every export opens a {@link Budget} with its own limits and a priority, and all budgets share the global limits of the governor.
+ * Bytes read and bytes written both count against the limits.
+ *
+ * The limits are token buckets holding up to one second of their rate. Interactive exports take their tokens as soon as they need them,
+ * even in advance of the refill, while bulk exports only take tokens that are left over, so they yield to interactive exports whenever the
+ * global limit is reached.
+ *
+ * The budget of an export is attached to the exporting thread and inherited by the threads it starts, so the archive code finds it without
+ * passing it along, see {@link #openInput(File)}, {@link #openChannel(File)}, {@link #openOutput(File)} and {@link #acquire(long)}. Threads
+ * which outlive the export starting them, like the threads of a server or a queue, must not inherit it, see {@link #detached(Runnable)}
+ *
+ */
+public class IoGovernor {
+
+    /**
+     * The scheduling class of an export
+     */
+    public enum Priority {
+        /** e.g. a re-delivery somebody is waiting for */
+        INTERACTIVE,
+        /** e.g. a backfill of the whole collection, using the bandwidth left over */
+        BULK;
+
+        /**
+         * Returns the priority of the given name, ignoring case
+         *
+         * @param name
+         * @return the priority, or null if the name is unknown
+         */
+        public static Priority parse(String name) {
+            try {
+                return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    private static final Budget UNLIMITED = new Budget(null, Priority.INTERACTIVE, 0, 0);
+
+    private static final InheritableThreadLocal<Budget> CURRENT = new InheritableThreadLocal<Budget>();
+
+    private final long bandwidth;
+    private final long iops;
+    private final TokenBucket bytes;
+    private final TokenBucket operations;
+
+    /**
+     * @param bandwidth the bytes per second of all exports together, 0 for unlimited
+     * @param iops the read and write operations per second of all exports together, 0 for unlimited
+     */
+    public IoGovernor(long bandwidth, long iops) {
+        this.bandwidth = bandwidth;
+        this.iops = iops;
+        this.bytes = bandwidth > 0 ? new TokenBucket(bandwidth) : null;
+        this.operations = iops > 0 ? new TokenBucket(iops) : null;
+    }
+
+    public long getBandwidth() {
+        return bandwidth;
+    }
+
+    public long getIops() {
+        return iops;
+    }
+
+    /**
+     * Opens the budget of an export. It has to be attached to the exporting thread and closed when the export is done
+     *
+     * @param priority
+     * @param bandwidth the bytes per second of the export, 0 for unlimited
+     * @param iops the read and write operations per second of the export, 0 for unlimited
+     * @return
+     */
+    public Budget open(Priority priority, long bandwidth, long iops) {
+        return new Budget(this, priority, bandwidth, iops);
+    }
+
+    /**
+     * @return the budget attached to the current thread, or an unlimited budget
+     */
+    public static Budget current() {
+        Budget budget = CURRENT.get();
+        return budget == null ? UNLIMITED : budget;
+    }
+
+    /**
+     * Detaches the budget from the current thread, e.g. while it starts long-lived threads which must not inherit it
+     *
+     * @return the detached budget to attach again afterwards, or null
+     */
+    public static Budget detach() {
+        Budget budget = CURRENT.get();
+        CURRENT.remove();
+        return budget;
+    }
+
+    /**
+     * Wraps the task of a thread which outlives the export starting it, so the thread doesn't keep the budget of that export. Meant for the
+     * thread factories of servers and queues
+     *
+     * @param task
+     * @return
+     */
+    public static Runnable detached(final Runnable task) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                CURRENT.remove();
+                task.run();
+            }
+        };
+    }
+
+    /**
+     * Waits until the budget of the current thread allows an operation of the given size
+     *
+     * @param length the number of bytes read or written
+     * @throws InterruptedIOException
+     */
+    public static void acquire(long length) throws InterruptedIOException {
+        current().acquire(length);
+    }
+
+    /**
+     * Opens the file for reading within the budget of the current thread
+     *
+     * @param file
+     * @return the unbuffered stream
+     * @throws IOException
+     */
+    public static InputStream openInput(File file) throws IOException {
+        return current().limit(new FileInputStream(file));
+    }
+
+    /**
+     * Opens a channel reading the file within the budget of the current thread, e.g. into direct buffers
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static ReadableByteChannel openChannel(File file) throws IOException {
+        return current().limit(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+    }
+
+    /**
+     * Opens the file for writing within the budget of the current thread
+     *
+     * @param file
+     * @return the unbuffered stream
+     * @throws IOException
+     */
+    public static OutputStream openOutput(File file) throws IOException {
+        return current().limit(new FileOutputStream(file));
+    }
+
+    private void acquireShared(long length, Priority priority) throws InterruptedIOException {
+        boolean yield = priority == Priority.BULK;
+        if (operations != null) {
+            operations.acquire(1, yield);
+        }
+        if (bytes != null) {
+            bytes.acquire(length, yield);
+        }
+    }
+
+    /**
+     * The limits and priority of a single export
+     */
+    public static class Budget implements Closeable {
+        private final IoGovernor governor;
+        private final Priority priority;
+        private final TokenBucket bytes;
+        private final TokenBucket operations;
+        private final AtomicLong waitTime = new AtomicLong();
+
+        private Budget(IoGovernor governor, Priority priority, long bandwidth, long iops) {
+            this.governor = governor;
+            this.priority = priority;
+            this.bytes = bandwidth > 0 ? new TokenBucket(bandwidth) : null;
+            this.operations = iops > 0 ? new TokenBucket(iops) : null;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        /**
+         * @return the milliseconds the threads of the export waited for their budget, added up
+         */
+        public long getWaitTime() {
+            return waitTime.get() / 1000000;
+        }
+
+        /**
+         * Makes this the budget of the current thread and of the threads it starts from now on
+         */
+        public void attach() {
+            CURRENT.set(this);
+        }
+
+        /**
+         * Waits until the limits of the export and the global limits allow an operation of the given size
+         *
+         * @param length the number of bytes read or written
+         * @throws InterruptedIOException
+         */
+        public void acquire(long length) throws InterruptedIOException {
+            if (governor == null) {
+                return;
+            }
+            long start = System.nanoTime();
+            if (operations != null) {
+                operations.acquire(1, false);
+            }
+            if (bytes != null) {
+                bytes.acquire(length, false);
+            }
+            governor.acquireShared(length, priority);
+            waitTime.addAndGet(System.nanoTime() - start);
+        }
+
+        /**
+         * Limits reading from the given stream to this budget
+         *
+         * @param in
+         * @return
+         */
+        public InputStream limit(InputStream in) {
+            return governor == null ? in : new LimitedInputStream(in, this);
+        }
+
+        /**
+         * Limits reading from the given channel to this budget
+         *
+         * @param channel
+         * @return
+         */
+        public ReadableByteChannel limit(final ReadableByteChannel channel) {
+            if (governor == null) {
+                return channel;
+            }
+            return new ReadableByteChannel() {
+                @Override
+                public int read(ByteBuffer dst) throws IOException {
+                    int read = channel.read(dst);
+                    if (read > 0) {
+                        acquire(read);
+                    }
+                    return read;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return channel.isOpen();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    channel.close();
+                }
+            };
+        }
+
+        /**
+         * Limits writing to the given stream to this budget
+         *
+         * @param out
+         * @return
+         */
+        public OutputStream limit(OutputStream out) {
+            return governor == null ? out : new LimitedOutputStream(out, this);
+        }
+
+        /**
+         * Detaches the budget from the current thread
+         */
+        @Override
+        public void close() {
+            if (CURRENT.get() == this) {
+                CURRENT.remove();
+            }
+        }
+    }
+
+    /**
+     * A token bucket holding up to one second of its rate
+     */
+    private static class TokenBucket {
+        private final double rate;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+        // threads waiting for tokens they took in advance
+        private int debtors;
+
+        private TokenBucket(long rate) {
+            this.rate = rate;
+            this.tokens = rate;
+        }
+
+        /**
+         * Takes the given number of tokens, waiting until the bucket has paid them back. A caller that doesn't yield goes into debt, a
+         * yielding one waits until the tokens are available and nobody else waits, so it never delays the others
+         */
+        private void acquire(long amount, boolean yield) throws InterruptedIOException {
+            long wait;
+            while ((wait = reserve(amount, yield)) < 0) {
+                sleep(-wait);
+            }
+            if (wait > 0) {
+                try {
+                    sleep(wait);
+                } finally {
+                    synchronized (this) {
+                        debtors--;
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return the nanoseconds to wait after taking the tokens, or the negative nanoseconds to wait before trying again
+         */
+        private synchronized long reserve(long amount, boolean yield) {
+            long now = System.nanoTime();
+            tokens = Math.min(rate, tokens + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+            if (yield) {
+                double needed = Math.min(amount, rate);
+                if (debtors > 0 || tokens < needed) {
+                    return -Math.max(1000000, (long) ((needed - tokens) * 1e9 / rate));
+                }
+            }
+            tokens -= amount;
+            if (tokens >= 0) {
+                return 0;
+            }
+            debtors++;
+            return Math.max(1, (long) (-tokens * 1e9 / rate));
+        }
+
+        private static void sleep(long nanos) throws InterruptedIOException {
+            if (nanos <= 0) {
+                return;
+            }
+            try {
+                Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the I/O budget");
+            }
+        }
+    }
+
+    private static class LimitedInputStream extends FilterInputStream {
+        private final Budget budget;
+
+        private LimitedInputStream(InputStream in, Budget budget) {
+            super(in);
+            this.budget = budget;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                budget.acquire(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                budget.acquire(read);
+            }
+            return read;
+        }
+    }
+
+    private static class LimitedOutputStream extends FilterOutputStream {
+        private final Budget budget;
+
+        private LimitedOutputStream(OutputStream out, Budget budget) {
+            super(out);
+            this.budget = budget;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            budget.acquire(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            budget.acquire(len);
+            out.write(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,1098 @@
+package de.intranda.goobi.plugins.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+
+import org.apache.commons.compress.archivers.zip.Zip64Mode;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.parallel.FileBasedScatterGatherBackingStore;
+import org.apache.commons.compress.parallel.ScatterGatherBackingStore;
+import org.apache.log4j.Logger;
+
+/**
+ * Creates zip archives by compressing the entries on a pool of worker threads.
+ *
+ * Every file is deflated into its own scatter store by the reused {@link Deflater} of a worker thread and the stores are gathered into the
+ * target archive as raw entries in the order they were added. The result is a standard zip file with the same entry order as a sequentially
+ * written one. The files are read by the threads of a {@link ReadAhead} while the worker threads compress the files before them.
+ *
+ * With a {@link ZipJournal} the archive can be resumed after an interruption. Leading entries recorded by the journal whose files did not
+ * change are not compressed again: their headers are regenerated to keep track of the offsets, but the data already in the archive is kept.
+ * Writing continues after the last of these entries.
+ *
+ */
+public class ParallelZipCreator implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(ParallelZipCreator.class);
+
+    /** Entries up to this size are compressed into memory, larger ones into a temporary file next to the archive */
+    private static final long IN_MEMORY_THRESHOLD = 4 * 1024 * 1024;
+
+    /** Amount of data written between two checkpoints of the journal */
+    private static final long CHECKPOINT_INTERVAL = 64 * 1024 * 1024;
+
+    /** Deflaters of the worker threads, reset for every entry instead of allocating the native zlib state again */
+    private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+    };
+
+    private final File zipFile;
+    private final ExecutorService executor;
+    private final boolean ownExecutor;
+    private final int maxPending;
+    private ZipArchiveOutputStream zos;
+    private MessageDigest archiveDigest;
+    private final Deque<Future<CompressedEntry>> pending = new ArrayDeque<Future<CompressedEntry>>();
+    private CompressionPolicy compressionPolicy;
+    private ArchiveManifest manifest;
+    private boolean finished = false;
+    private ZipJournal journal;
+    private CheckpointOutputStream checkpointStream;
+    private int replayIndex = 0;
+    private int replayedEntries = 0;
+    private long lastCheckpoint = 0;
+    private ReadAhead readAhead;
+
+    /**
+     * Creates a new zip archive which gets compressed by its own pool of worker threads
+     *
+     * @param zipFile the archive to create. An existing file gets replaced
+     * @param threads number of worker threads. Values below 1 use one thread per available processor
+     * @throws IOException
+     */
+    public ParallelZipCreator(File zipFile, int threads) throws IOException {
+        this(zipFile, Executors.newFixedThreadPool(getThreadCount(threads)), getThreadCount(threads), true);
+    }
+
+    /**
+     * Creates a new zip archive which gets compressed by the given executor. The executor is not shut down when the archive is closed
+     *
+     * @param zipFile the archive to create. An existing file gets replaced
+     * @param executor the executor to run the compression tasks
+     * @param parallelism the number of threads of the executor, used to limit the number of compressed entries waiting to be written
+     * @throws IOException
+     */
+    public ParallelZipCreator(File zipFile, ExecutorService executor, int parallelism) throws IOException {
+        this(zipFile, executor, getThreadCount(parallelism), false);
+    }
+
+    private ParallelZipCreator(File zipFile, ExecutorService executor, int parallelism, boolean ownExecutor) throws IOException {
+        this.zipFile = zipFile;
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+        this.maxPending = parallelism * 4;
+    }
+
+    /**
+     * Returns the given number of threads, or the number of available processors if the given number is below 1
+     *
+     * @param threads
+     * @return
+     */
+    public static int getThreadCount(int threads) {
+        if (threads < 1) {
+            return Runtime.getRuntime().availableProcessors();
+        }
+        return threads;
+    }
+
+    /**
+     * Adds a file to the archive. Directories are added recursively, using the same entry names as {@link ArchiveUtils#zipFiles(File[], File)}.
+     * The entries are compressed while the directories are still being scanned
+     *
+     * @param file the file or directory to add
+     * @param path the path inside the archive the file is added to, either empty or ending with a separator
+     * @throws IOException
+     */
+    public void addFile(File file, String path) throws IOException {
+        if (file == null) {
+            logger.error("Attempting to add nonexisting file to zip archive. Ignoring entry.");
+            return;
+        }
+        addFiles(FileScanner.read(new File[] { file }, path));
+    }
+
+    /**
+     * Adds files whose attributes were read before, e.g. by {@link FileScanner#listFolder(File, java.io.FilenameFilter)}, under their names.
+     * Directories are added recursively, their content is compressed while it is still being scanned
+     *
+     * @param files the files and directories to add
+     * @throws IOException
+     */
+    public void addFiles(List<FileScanner.ScannedFile> files) throws IOException {
+        FileScanner.scan(files, new FileScanner.Visitor() {
+            @Override
+            public void visit(FileScanner.ScannedFile scanned) throws IOException {
+                if (scanned.isDirectory()) {
+                    addDirectoryEntry(scanned.getFile(), scanned.getName(), scanned.getLastModified());
+                } else {
+                    addFileEntry(scanned.getFile(), scanned.getName(), scanned.getSize(), scanned.getLastModified());
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds a single file to the archive. It gets compressed by one of the worker threads
+     *
+     * @param file the file to add
+     * @param name the name of the entry inside the archive
+     * @throws IOException
+     */
+    public void addFileEntry(File file, String name) throws IOException {
+        addFileEntry(file, name, file.length(), file.lastModified());
+    }
+
+    /**
+     * Adds a single file to the archive whose attributes are already known, e.g. from a {@link FileScanner}
+     *
+     * @param file the file to add
+     * @param name the name of the entry inside the archive
+     * @param size the size of the file
+     * @param lastModified the modification time of the file
+     * @throws IOException
+     */
+    public void addFileEntry(final File file, String name, final long size, final long lastModified) throws IOException {
+        ZipJournal.Entry recorded = nextRecoveredEntry(name, size, lastModified);
+        if (recorded != null && (manifest == null || recorded.getDigest() != null)) {
+            enqueue(CompletableFuture.completedFuture(new CompressedEntry(recorded.toZipEntry(), new SkippedEntryData(recorded
+                    .getCompressedSize()), recorded.getDigest(), lastModified, recorded)));
+            return;
+        }
+        stopReplay();
+        final ZipArchiveEntry entry = new ZipArchiveEntry(name);
+        entry.setTime(lastModified);
+        entry.setMethod(ZipArchiveEntry.DEFLATED);
+        ReadAhead readAhead = getReadAhead();
+        final InputStream prefetched = readAhead == null ? null : readAhead.add(file);
+        submit(new Callable<CompressedEntry>() {
+            @Override
+            public CompressedEntry call() throws Exception {
+                ReadableByteChannel in = open(file, prefetched);
+                if (compressionPolicy == null) {
+                    return compress(file, in, size, entry, Deflater.DEFAULT_COMPRESSION, lastModified);
+                }
+                // the policy samples the first bytes, which are read for the compression anyway
+                BufferPool pool = BufferPool.getShared();
+                byte[] head = pool.acquireArray();
+                try {
+                    int length = readHead(in, head, Math.min(compressionPolicy.getSampleSize(), head.length));
+                    CompressionPolicy.Decision decision = compressionPolicy.decide(entry.getName(), size, head, length);
+                    entry.setMethod(decision.getMethod());
+                    in = new HeadChannel(head, length, in);
+                    CompressedEntry compressed;
+                    if (!decision.isStored() && compressionPolicy.getEntryCache() != null) {
+                        compressed = compressCached(file, in, size, entry, decision.getLevel(), lastModified, compressionPolicy.getEntryCache());
+                    } else {
+                        compressed = compress(file, in, size, entry, decision.getLevel(), lastModified);
+                    }
+                    if (!decision.isStored()) {
+                        compressionPolicy.record(entry.getName(), entry.getSize(), entry.getCompressedSize());
+                    }
+                    return compressed;
+                } finally {
+                    in.close();
+                    pool.release(head);
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds an entry whose content is created by the worker thread compressing it, e.g. a rendered derivative. The content is kept in memory
+     *
+     * @param source
+     * @throws IOException
+     */
+    public void addEntry(final EntrySource source) throws IOException {
+        stopReplay();
+        final ZipArchiveEntry entry = new ZipArchiveEntry(source.getName());
+        entry.setTime(source.getLastModified());
+        entry.setMethod(ZipArchiveEntry.DEFLATED);
+        submit(new Callable<CompressedEntry>() {
+            @Override
+            public CompressedEntry call() throws Exception {
+                byte[] content = source.getContent();
+                int level = Deflater.DEFAULT_COMPRESSION;
+                if (compressionPolicy != null) {
+                    CompressionPolicy.Decision decision = compressionPolicy.decide(entry.getName());
+                    entry.setMethod(decision.getMethod());
+                    level = decision.getLevel();
+                }
+                return compress(Channels.newChannel(new ByteArrayInputStream(content)), content.length, entry, level,
+                        source.getLastModified());
+            }
+        });
+    }
+
+    /**
+     * Adds an entry for a directory without its content
+     *
+     * @param directory the directory to add
+     * @param name the name of the entry inside the archive, ending with a separator
+     * @throws IOException
+     */
+    public void addDirectoryEntry(File directory, String name) throws IOException {
+        addDirectoryEntry(directory, name, directory.lastModified());
+    }
+
+    /**
+     * Adds an entry for a directory whose modification time is already known
+     *
+     * @param directory the directory to add
+     * @param name the name of the entry inside the archive, ending with a separator
+     * @param lastModified the modification time of the directory
+     * @throws IOException
+     */
+    public void addDirectoryEntry(File directory, String name, long lastModified) throws IOException {
+        ZipJournal.Entry recorded = nextRecoveredEntry(name, 0, lastModified);
+        if (recorded != null) {
+            enqueue(CompletableFuture.completedFuture(new CompressedEntry(recorded.toZipEntry(), null, null, lastModified, recorded)));
+            return;
+        }
+        stopReplay();
+        ZipArchiveEntry entry = new ZipArchiveEntry(name);
+        entry.setTime(lastModified);
+        entry.setMethod(ZipArchiveEntry.STORED);
+        entry.setSize(0);
+        entry.setCompressedSize(0);
+        entry.setCrc(0);
+        enqueue(CompletableFuture.completedFuture(new CompressedEntry(entry, null, null, lastModified, null)));
+    }
+
+    /**
+     * Copies an entry of another archive without decompressing it. The source archive must stay open until the archive is finished
+     *
+     * @param source the archive containing the entry
+     * @param sourceEntry the entry to copy
+     * @param digest the digest of the uncompressed content for the manifest, may be null if no manifest is set
+     * @throws IOException
+     */
+    public void addRawEntry(ZipFile source, ZipArchiveEntry sourceEntry, byte[] digest) throws IOException {
+        stopReplay();
+        ZipArchiveEntry entry = new ZipArchiveEntry(sourceEntry);
+        enqueue(CompletableFuture.completedFuture(new CompressedEntry(entry, new RawEntryData(source, sourceEntry), digest, entry.getTime(),
+                null)));
+    }
+
+    /**
+     * Sets the policy deciding per entry between storing and deflating. Without a policy all files are deflated with the default level
+     *
+     * @param compressionPolicy
+     */
+    public void setCompressionPolicy(CompressionPolicy compressionPolicy) {
+        this.compressionPolicy = compressionPolicy;
+    }
+
+    /**
+     * Sets the manifest which receives size, CRC and digest of every file entry while it is compressed, and the digest of the archive when it is
+     * finished. Must be called before the first file is added
+     *
+     * @param manifest
+     */
+    public void setManifest(ArchiveManifest manifest) {
+        this.manifest = manifest;
+    }
+
+    /**
+     * Sets the journal recording the written entries. Entries it recovered from an interrupted export are kept in the archive as long as they
+     * are added in the same order and their files did not change. Must be called before the first file is added. If the archive doesn't
+     * contain the recovered entries as recorded, adding or finishing fails with a {@link ZipJournal.MismatchException}
+     *
+     * @param journal
+     */
+    public void setJournal(ZipJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * @return the number of entries kept from an interrupted export
+     */
+    public int getReplayedEntries() {
+        return replayedEntries;
+    }
+
+    /**
+     * Waits for all outstanding entries, writes them and completes the archive
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        while (!pending.isEmpty()) {
+            writeNext();
+        }
+        finished = true;
+        startWriting();
+        getOutputStream().close();
+        if (manifest != null) {
+            manifest.setArchive(zipFile.length(), archiveDigest.digest());
+        }
+    }
+
+    /**
+     * Closes the archive. If {@link #finish()} was not called before, all outstanding entries are discarded and the archive is incomplete
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!finished) {
+                for (Future<CompressedEntry> future : pending) {
+                    future.cancel(true);
+                    try {
+                        CompressedEntry compressed = future.get();
+                        compressed.close();
+                    } catch (Exception e) {
+                        // failed entries closed their store, cancelled ones close it when their task ends
+                    }
+                }
+                pending.clear();
+                if (checkpointStream != null) {
+                    // keep the complete entries for the next attempt instead of finishing the archive
+                    if (!checkpointStream.isSkipping()) {
+                        checkpointStream.force();
+                        journal.commit();
+                    }
+                    checkpointStream.close();
+                } else if (zos != null) {
+                    zos.close();
+                }
+            }
+        } finally {
+            if (readAhead != null) {
+                readAhead.close();
+            }
+            if (ownExecutor) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Returns the read-ahead of the files, started with the first file. Null if the compression policy disables it
+     */
+    private ReadAhead getReadAhead() {
+        if (readAhead == null) {
+            int readers = compressionPolicy == null ? ReadAhead.DEFAULT_READERS : compressionPolicy.getReadAheadThreads();
+            if (readers > 0) {
+                readAhead = new ReadAhead(readers);
+            }
+        }
+        return readAhead;
+    }
+
+    private ZipArchiveOutputStream getOutputStream() throws IOException {
+        if (zos == null) {
+            if (manifest != null) {
+                // digest the archive while writing it, so copies can be verified without reading the archive again
+                archiveDigest = manifest.createDigest();
+            }
+            if (journal != null) {
+                // the existing data of an interrupted export is kept until the first entry which has to be written again
+                checkpointStream = new CheckpointOutputStream(FileChannel.open(zipFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE), archiveDigest);
+                zos = new ZipArchiveOutputStream(new BufferedOutputStream(IoGovernor.current().limit(checkpointStream)));
+            } else {
+                OutputStream out = IoGovernor.openOutput(zipFile);
+                if (archiveDigest != null) {
+                    out = new DigestOutputStream(out, archiveDigest);
+                }
+                zos = new ZipArchiveOutputStream(new BufferedOutputStream(out));
+            }
+            // all sizes are known before an entry is written, so Zip64 extra fields are only added to entries and archives beyond 4 GB
+            zos.setUseZip64(Zip64Mode.AsNeeded);
+        }
+        return zos;
+    }
+
+    /**
+     * Returns the next entry recovered by the journal if it was created from the given file, otherwise null
+     */
+    private ZipJournal.Entry nextRecoveredEntry(String name, long size, long lastModified) {
+        if (journal == null || replayIndex < 0 || replayIndex >= journal.getRecoveredEntries().size()) {
+            return null;
+        }
+        ZipJournal.Entry recorded = journal.getRecoveredEntries().get(replayIndex);
+        if (!recorded.matches(name, size, lastModified)) {
+            return null;
+        }
+        replayIndex++;
+        return recorded;
+    }
+
+    private void stopReplay() {
+        replayIndex = -1;
+    }
+
+    /**
+     * Ends the replay of recovered entries: the archive is cut after the last replayed entry and all further data gets written
+     */
+    private void startWriting() throws IOException {
+        if (checkpointStream == null && journal != null) {
+            getOutputStream();
+        }
+        if (checkpointStream != null && checkpointStream.isSkipping()) {
+            zos.flush();
+            checkpointStream.startWriting();
+            journal.start(replayedEntries);
+            lastCheckpoint = checkpointStream.getPosition();
+            if (replayedEntries > 0) {
+                logger.info("Resuming " + zipFile.getName() + " after " + replayedEntries + " entries at byte " + lastCheckpoint);
+            }
+        }
+    }
+
+    /**
+     * Runs the task on the executor. An entry completed after the archive was closed is closed by the task itself, so its scatter file
+     * doesn't outlive the archive
+     */
+    private void submit(final Callable<CompressedEntry> task) throws IOException {
+        final CompletableFuture<CompressedEntry> result = new CompletableFuture<CompressedEntry>();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (result.isDone()) {
+                    // discarded before it started
+                    return;
+                }
+                CompressedEntry compressed;
+                try {
+                    compressed = task.call();
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                    return;
+                }
+                if (!result.complete(compressed)) {
+                    try {
+                        compressed.close();
+                    } catch (IOException e) {
+                        logger.warn("Unable to discard entry " + compressed.entry.getName() + " of " + zipFile.getName() + ": " + e.toString());
+                    }
+                }
+            }
+        });
+        enqueue(result);
+    }
+
+    private void enqueue(Future<CompressedEntry> future) throws IOException {
+        pending.addLast(future);
+        // write finished entries as soon as too many are waiting to keep the scatter stores small
+        while (pending.size() > maxPending) {
+            writeNext();
+        }
+    }
+
+    private void writeNext() throws IOException {
+        Future<CompressedEntry> future = pending.removeFirst();
+        CompressedEntry compressed;
+        try {
+            compressed = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while creating " + zipFile.getAbsolutePath());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        try {
+            if (compressed.recovered == null) {
+                startWriting();
+            }
+            if (compressed.data == null) {
+                getOutputStream().addRawArchiveEntry(compressed.entry, new ByteArrayInputStream(new byte[0]));
+            } else {
+                InputStream in = compressed.data.getInputStream();
+                try {
+                    getOutputStream().addRawArchiveEntry(compressed.entry, in);
+                } finally {
+                    in.close();
+                }
+            }
+            if (manifest != null && compressed.digest != null) {
+                manifest.add(compressed.entry.getName(), compressed.entry.getSize(), compressed.entry.getCrc(), compressed.digest);
+            }
+            if (journal != null) {
+                checkpoint(compressed);
+            }
+        } finally {
+            compressed.close();
+        }
+    }
+
+    private void checkpoint(CompressedEntry compressed) throws IOException {
+        zos.flush();
+        long position = checkpointStream.getPosition();
+        if (compressed.recovered != null) {
+            if (position != compressed.recovered.getEndOffset()) {
+                throw new ZipJournal.MismatchException("Entry " + compressed.entry.getName() + " ends at " + position + " instead of "
+                        + compressed.recovered.getEndOffset() + " as recorded in the journal");
+            }
+            replayedEntries++;
+            return;
+        }
+        ZipArchiveEntry entry = compressed.entry;
+        journal.add(new ZipJournal.Entry(entry.getName(), entry.getMethod(), entry.getCrc(), entry.getSize(), entry.getCompressedSize(),
+                compressed.lastModified, compressed.digest, position));
+        if (position - lastCheckpoint >= CHECKPOINT_INTERVAL) {
+            checkpointStream.force();
+            journal.commit();
+            lastCheckpoint = position;
+        }
+    }
+
+    /**
+     * Compresses the file from the given channel, which is closed
+     */
+    private CompressedEntry compress(File file, ReadableByteChannel in, long size, ZipArchiveEntry entry, int level, long lastModified)
+            throws IOException {
+        logger.debug("Compressing file " + file.getAbsolutePath() + " for zipfile " + zipFile.getAbsolutePath());
+        return compress(in, size, entry, level, lastModified);
+    }
+
+    /**
+     * Opens the given prefetched content, or the file itself if it is null. Closing the channel hands unread buffers back to the readers
+     */
+    private static ReadableByteChannel open(File file, InputStream prefetched) throws IOException {
+        return prefetched == null ? IoGovernor.openChannel(file) : Channels.newChannel(prefetched);
+    }
+
+    /**
+     * Reads up to the given number of bytes from the beginning of the content
+     *
+     * @return the number of bytes read
+     */
+    private static int readHead(ReadableByteChannel in, byte[] head, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(head, 0, length);
+        try {
+            while (buffer.hasRemaining() && in.read(buffer) != -1) {
+                // until the head is full or the content ends
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return buffer.position();
+    }
+
+    /**
+     * Copies the deflated data of the file from the cache, or compresses it and adds it to the cache. The file is hashed first to find the
+     * cache entry, the digest for the manifest is computed in the same pass. Files small enough for a memory store are kept while they are
+     * hashed, so a cache miss compresses them without reading them again. Larger files are read again on a miss and hashed while they are
+     * compressed, their data is only cached if it still matches the key
+     */
+    private CompressedEntry compressCached(File file, ReadableByteChannel in, long size, ZipArchiveEntry entry, int level, long lastModified,
+            EntryCache cache) throws IOException {
+        MessageDigest hash = new Xxh64Digest();
+        MessageDigest digest = manifest == null ? null : manifest.createDigest();
+        byte[] content = size <= IN_MEMORY_THRESHOLD ? new byte[(int) size] : null;
+        int kept = 0;
+        BufferPool pool = BufferPool.getShared();
+        ByteBuffer buffer = pool.acquireDirect();
+        try {
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                update(hash, buffer);
+                if (digest != null) {
+                    update(digest, buffer);
+                }
+                if (content != null) {
+                    if (buffer.remaining() > content.length - kept) {
+                        // the file grew since it was scanned, it is read again on a cache miss
+                        content = null;
+                    } else {
+                        int length = buffer.remaining();
+                        buffer.get(content, kept, length);
+                        kept += length;
+                    }
+                }
+                buffer.clear();
+            }
+        } finally {
+            in.close();
+            pool.release(buffer);
+        }
+        byte[] key = hash.digest();
+        EntryCache.Entry cached = cache.get(key, size, level);
+        if (cached != null) {
+            entry.setCrc(cached.getCrc());
+            entry.setSize(cached.getSize());
+            entry.setCompressedSize(cached.getCompressedSize());
+            return new CompressedEntry(entry, new CachedEntryData(cached), digest == null ? null : digest.digest(), lastModified, null);
+        }
+        CompressedEntry compressed;
+        if (content != null) {
+            compressed = compress(Channels.newChannel(new ByteArrayInputStream(content, 0, kept)), kept, entry, level, lastModified);
+        } else {
+            // the prefetched content is used up by hashing
+            MessageDigest compressedHash = new Xxh64Digest();
+            compressed = compress(open(file, null), size, entry, level, lastModified, compressedHash);
+            if (entry.getSize() != size || !MessageDigest.isEqual(compressedHash.digest(), key)) {
+                // the cache would return this data for the content read first
+                logger.warn("File " + file.getAbsolutePath() + " changed while it was compressed, not adding it to the cache");
+                return compressed;
+            }
+        }
+        InputStream data = compressed.data.getInputStream();
+        try {
+            cache.put(key, entry.getSize(), level, entry.getCrc(), data);
+        } finally {
+            data.close();
+        }
+        return compressed;
+    }
+
+    /**
+     * Deflates or stores the content into a new backing store. The content is read into a pooled direct buffer, which is handed to the CRC,
+     * the digest and the deflater of the thread without copying it
+     */
+    private CompressedEntry compress(ReadableByteChannel in, long size, ZipArchiveEntry entry, int level, long lastModified)
+            throws IOException {
+        return compress(in, size, entry, level, lastModified, null);
+    }
+
+    /**
+     * Compresses the content like {@link #compress(ReadableByteChannel, long, ZipArchiveEntry, int, long)} and updates the given hash with
+     * it in the same pass
+     */
+    private CompressedEntry compress(ReadableByteChannel in, long size, ZipArchiveEntry entry, int level, long lastModified, MessageDigest hash)
+            throws IOException {
+        MessageDigest digest = manifest == null ? null : manifest.createDigest();
+        ScatterGatherBackingStore store;
+        try {
+            store = createBackingStore(size);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        boolean complete = false;
+        boolean stored = entry.getMethod() == ZipArchiveEntry.STORED;
+        CRC32 crc = new CRC32();
+        long read = 0;
+        long written = 0;
+        BufferPool pool = BufferPool.getShared();
+        ByteBuffer input = pool.acquireDirect();
+        byte[] output = pool.acquireArray();
+        Deflater deflater = DEFLATERS.get();
+        deflater.setLevel(level);
+        try {
+            try {
+                while (in.read(input) != -1) {
+                    input.flip();
+                    read += input.remaining();
+                    update(crc, input);
+                    if (digest != null) {
+                        update(digest, input);
+                    }
+                    if (hash != null) {
+                        update(hash, input);
+                    }
+                    if (stored) {
+                        while (input.hasRemaining()) {
+                            int length = Math.min(input.remaining(), output.length);
+                            input.get(output, 0, length);
+                            store.writeOut(output, 0, length);
+                            written += length;
+                        }
+                    } else {
+                        deflater.setInput(input);
+                        while (!deflater.needsInput()) {
+                            written += deflate(deflater, output, store);
+                        }
+                    }
+                    input.clear();
+                }
+                if (!stored) {
+                    // the deflater still refers to the cleared buffer, which must look empty when the remaining data is flushed
+                    input.flip();
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        written += deflate(deflater, output, store);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            store.closeForWriting();
+            complete = true;
+        } finally {
+            // drops the reference to the input buffer before it is reused
+            deflater.reset();
+            pool.release(input);
+            pool.release(output);
+            if (!complete) {
+                // deletes the scatter file of a failed or interrupted entry
+                store.close();
+            }
+        }
+        entry.setCrc(crc.getValue());
+        entry.setSize(read);
+        entry.setCompressedSize(written);
+        return new CompressedEntry(entry, new StoredEntryData(store), digest == null ? null : digest.digest(), lastModified, null);
+    }
+
+    private static int deflate(Deflater deflater, byte[] output, ScatterGatherBackingStore store) throws IOException {
+        int length = deflater.deflate(output, 0, output.length);
+        if (length > 0) {
+            store.writeOut(output, 0, length);
+        }
+        return length;
+    }
+
+    /**
+     * Updates the checksum with the remaining content of the buffer, leaving its position unchanged
+     */
+    private static void update(Checksum checksum, ByteBuffer buffer) {
+        int position = buffer.position();
+        checksum.update(buffer);
+        buffer.position(position);
+    }
+
+    private static void update(MessageDigest digest, ByteBuffer buffer) {
+        int position = buffer.position();
+        digest.update(buffer);
+        buffer.position(position);
+    }
+
+    private ScatterGatherBackingStore createBackingStore(long size) throws IOException {
+        if (size <= IN_MEMORY_THRESHOLD) {
+            return new MemoryBackingStore((int) size);
+        }
+        File tempFile = File.createTempFile("." + zipFile.getName(), ".scatter", zipFile.getParentFile());
+        return new GovernedFileBackingStore(tempFile, IoGovernor.current());
+    }
+
+    /**
+     * Returns the bytes read for sampling before the rest of the content
+     */
+    private static class HeadChannel implements ReadableByteChannel {
+        private final byte[] head;
+        private final int length;
+        private final ReadableByteChannel rest;
+        private int position = 0;
+
+        private HeadChannel(byte[] head, int length, ReadableByteChannel rest) {
+            this.head = head;
+            this.length = length;
+            this.rest = rest;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (position < length) {
+                int count = Math.min(dst.remaining(), length - position);
+                dst.put(head, position, count);
+                position += count;
+                return count;
+            }
+            return rest.read(dst);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return rest.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            rest.close();
+        }
+    }
+
+    private static class CompressedEntry {
+        private final ZipArchiveEntry entry;
+        private final EntryData data;
+        private final byte[] digest;
+        private final long lastModified;
+        private final ZipJournal.Entry recovered;
+
+        private CompressedEntry(ZipArchiveEntry entry, EntryData data, byte[] digest, long lastModified, ZipJournal.Entry recovered) {
+            this.entry = entry;
+            this.data = data;
+            this.digest = digest;
+            this.lastModified = lastModified;
+            this.recovered = recovered;
+        }
+
+        private void close() throws IOException {
+            if (data != null) {
+                data.close();
+            }
+        }
+    }
+
+    /**
+     * The compressed data of an entry as it is written into the archive. Closing it releases the data
+     */
+    private interface EntryData extends Closeable {
+        InputStream getInputStream() throws IOException;
+    }
+
+    /**
+     * Provides the data compressed by a worker thread into a scatter store
+     */
+    private static class StoredEntryData implements EntryData {
+        private final ScatterGatherBackingStore store;
+
+        private StoredEntryData(ScatterGatherBackingStore store) {
+            this.store = store;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return store.getInputStream();
+        }
+
+        @Override
+        public void close() throws IOException {
+            store.close();
+        }
+    }
+
+    /**
+     * Provides the compressed data of an entry of an existing archive
+     */
+    private static class RawEntryData implements EntryData {
+        private final ZipFile source;
+        private final ZipArchiveEntry entry;
+
+        private RawEntryData(ZipFile source, ZipArchiveEntry entry) {
+            this.source = source;
+            this.entry = entry;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return source.getRawInputStream(entry);
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    /**
+     * Provides the deflated data of an entry found in the {@link EntryCache}
+     */
+    private static class CachedEntryData implements EntryData {
+        private final EntryCache.Entry cached;
+
+        private CachedEntryData(EntryCache.Entry cached) {
+            this.cached = cached;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return cached.getData();
+        }
+
+        @Override
+        public void close() throws IOException {
+            cached.close();
+        }
+    }
+
+    /**
+     * Stands in for the data of a recovered entry, which is already in the archive and not written again
+     */
+    private static class SkippedEntryData implements EntryData {
+        private final long length;
+
+        private SkippedEntryData(long length) {
+            this.length = length;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return new InputStream() {
+                private long remaining = length;
+
+                @Override
+                public int read() throws IOException {
+                    if (remaining <= 0) {
+                        return -1;
+                    }
+                    remaining--;
+                    return 0;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (remaining <= 0) {
+                        return -1;
+                    }
+                    int count = (int) Math.min(len, remaining);
+                    remaining -= count;
+                    return count;
+                }
+            };
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    /**
+     * Writes the archive into a channel. While skipping, the data is not written because the file already contains it from an interrupted
+     * export; it is only read back to update the digest of the archive
+     */
+    private static class CheckpointOutputStream extends OutputStream {
+        private final FileChannel channel;
+        private final MessageDigest digest;
+        private boolean skipping = true;
+        private long position = 0;
+        private ByteBuffer readBuffer;
+
+        private CheckpointOutputStream(FileChannel channel, MessageDigest digest) {
+            this.channel = channel;
+            this.digest = digest;
+        }
+
+        private boolean isSkipping() {
+            return skipping;
+        }
+
+        private long getPosition() {
+            return position;
+        }
+
+        private void startWriting() throws IOException {
+            skipping = false;
+            channel.truncate(position);
+            channel.position(position);
+        }
+
+        private void force() throws IOException {
+            channel.force(false);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (skipping) {
+                if (digest != null) {
+                    digestExisting(len);
+                }
+                position += len;
+                return;
+            }
+            if (digest != null) {
+                digest.update(b, off, len);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            position += len;
+        }
+
+        private void digestExisting(int len) throws IOException {
+            if (readBuffer == null) {
+                readBuffer = ByteBuffer.allocate(65536);
+            }
+            long from = position;
+            long end = position + len;
+            while (from < end) {
+                readBuffer.clear();
+                readBuffer.limit((int) Math.min(readBuffer.capacity(), end - from));
+                int read = channel.read(readBuffer, from);
+                if (read < 0) {
+                    throw new ZipJournal.MismatchException("Partial archive is shorter than recorded in the journal");
+                }
+                readBuffer.flip();
+                digest.update(readBuffer);
+                from += read;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Keeps the compressed data of large entries in a temporary file. Writing and reading it back are charged to the budget of the export
+     * which created it, as reading back happens on the thread writing the archive
+     */
+    private static class GovernedFileBackingStore extends FileBasedScatterGatherBackingStore {
+        private final IoGovernor.Budget budget;
+
+        private GovernedFileBackingStore(File target, IoGovernor.Budget budget) throws IOException {
+            super(target);
+            this.budget = budget;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return budget.limit(super.getInputStream());
+        }
+
+        @Override
+        public void writeOut(byte[] data, int offset, int length) throws IOException {
+            budget.acquire(length);
+            super.writeOut(data, offset, length);
+        }
+    }
+
+    /**
+     * Keeps the compressed data of small entries on the heap
+     */
+    private static class MemoryBackingStore extends ByteArrayOutputStream implements ScatterGatherBackingStore {
+
+        private MemoryBackingStore(int expectedSize) {
+            super(Math.max(expectedSize, 32));
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+
+        @Override
+        public void writeOut(byte[] data, int offset, int length) throws IOException {
+            write(data, offset, length);
+        }
+
+        @Override
+        public void closeForWriting() throws IOException {
+        }
+    }
+
+}
@@ -0,0 +1,305 @@
+package de.intranda.goobi.plugins.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Reads files ahead of their consumers, so reading from a slow or high latency storage overlaps with compressing and writing the archive.
+ * Dedicated reader threads take the added files in order and read them in large chunks into a bounded number of buffers. Each reader owns
+ * its buffers and stops reading when all of them are waiting to be consumed, so the memory used is capped at readers * buffers * buffer size.
+ *
+ * The files have to be consumed in the order they were added, or at least every file has to be consumed or closed by a consumer which
+ * doesn't wait for a file added later. Otherwise the readers run out of buffers
+ *
+ */
+public class ReadAhead implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(ReadAhead.class);
+
+    public static final int DEFAULT_READERS = 2;
+    public static final int DEFAULT_BUFFERS = 4;
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    private final int buffers;
+    private final int bufferSize;
+    private final ExecutorService executor;
+    private final BlockingQueue<Prefetch> queue = new LinkedBlockingQueue<Prefetch>();
+    private final List<Prefetch> prefetches = new ArrayList<Prefetch>();
+    private volatile boolean closed = false;
+
+    /**
+     * Starts the given number of readers with the default number and size of buffers
+     *
+     * @param readers
+     */
+    public ReadAhead(int readers) {
+        this(readers, DEFAULT_BUFFERS, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param readers the number of reader threads, each reading one file at a time
+     * @param buffers the number of buffers of each reader
+     * @param bufferSize the size of a buffer, i.e. of a single read
+     */
+    public ReadAhead(int readers, int buffers, int bufferSize) {
+        this.buffers = buffers;
+        this.bufferSize = bufferSize;
+        this.executor = Executors.newFixedThreadPool(readers);
+        for (int i = 0; i < readers; i++) {
+            executor.submit(new Reader());
+        }
+    }
+
+    /**
+     * Adds a file to read. The file is read as soon as a reader and a buffer are free
+     *
+     * @param file
+     * @return the content of the file, which must be closed
+     * @throws IOException if the read-ahead is closed
+     */
+    public InputStream add(File file) throws IOException {
+        Prefetch prefetch = new Prefetch(file);
+        synchronized (prefetches) {
+            if (closed) {
+                throw new IOException("Read-ahead is closed");
+            }
+            prefetches.add(prefetch);
+        }
+        queue.add(prefetch);
+        return prefetch;
+    }
+
+    /**
+     * Stops the readers. Files not read completely fail with an exception
+     */
+    @Override
+    public void close() {
+        synchronized (prefetches) {
+            closed = true;
+            for (Prefetch prefetch : prefetches) {
+                prefetch.offer(new Chunk(new InterruptedIOException("Read-ahead of " + prefetch.file.getName() + " was closed")));
+            }
+            prefetches.clear();
+        }
+        executor.shutdownNow();
+    }
+
+    private void done(Prefetch prefetch) {
+        synchronized (prefetches) {
+            prefetches.remove(prefetch);
+        }
+    }
+
+    /**
+     * Reads the files one after the other into its own buffers
+     */
+    private class Reader implements Runnable {
+        private final BlockingQueue<byte[]> free = new ArrayBlockingQueue<byte[]>(buffers);
+        private int allocated = 0;
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    read(queue.take());
+                }
+            } catch (InterruptedException e) {
+                // closed
+            }
+        }
+
+        private void read(Prefetch prefetch) throws InterruptedException {
+            try {
+                InputStream in = IoGovernor.openInput(prefetch.file);
+                try {
+                    while (!prefetch.isClosed()) {
+                        byte[] buffer = takeBuffer();
+                        int length = in.readNBytes(buffer, 0, buffer.length);
+                        if (length <= 0) {
+                            free.add(buffer);
+                            break;
+                        }
+                        prefetch.offer(new Chunk(buffer, length, free));
+                        if (length < buffer.length) {
+                            break;
+                        }
+                    }
+                } finally {
+                    in.close();
+                }
+                prefetch.offer(Chunk.END);
+            } catch (InterruptedIOException e) {
+                throw new InterruptedException();
+            } catch (IOException e) {
+                logger.debug("Unable to read " + prefetch.file.getAbsolutePath() + " ahead: " + e.toString());
+                prefetch.offer(new Chunk(e));
+            } finally {
+                done(prefetch);
+            }
+        }
+
+        private byte[] takeBuffer() throws InterruptedException {
+            byte[] buffer = free.poll();
+            if (buffer == null) {
+                if (allocated < buffers) {
+                    allocated++;
+                    return new byte[bufferSize];
+                }
+                // all buffers wait to be consumed
+                buffer = free.take();
+            }
+            return buffer;
+        }
+    }
+
+    /**
+     * A buffer filled by a reader, the end of a file or a failure
+     */
+    private static class Chunk {
+        private static final Chunk END = new Chunk(null, -1, null);
+
+        private final byte[] buffer;
+        private final int length;
+        private final BlockingQueue<byte[]> owner;
+        private final IOException error;
+
+        private Chunk(byte[] buffer, int length, BlockingQueue<byte[]> owner) {
+            this.buffer = buffer;
+            this.length = length;
+            this.owner = owner;
+            this.error = null;
+        }
+
+        private Chunk(IOException error) {
+            this.buffer = null;
+            this.length = -1;
+            this.owner = null;
+            this.error = error;
+        }
+
+        private void release() {
+            if (owner != null) {
+                owner.add(buffer);
+            }
+        }
+    }
+
+    /**
+     * The content of a file, read from the chunks of its reader
+     */
+    private static class Prefetch extends InputStream {
+        private final File file;
+        private final BlockingQueue<Chunk> chunks = new LinkedBlockingQueue<Chunk>();
+        private Chunk current;
+        private int position;
+        private boolean closed = false;
+
+        private Prefetch(File file) {
+            this.file = file;
+        }
+
+        private synchronized boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * Hands a chunk to the consumer, or back to its reader if the consumer closed the stream
+         */
+        private synchronized void offer(Chunk chunk) {
+            if (closed) {
+                chunk.release();
+            } else {
+                chunks.add(chunk);
+            }
+        }
+
+        /**
+         * @return the current chunk, or null at the end of the file
+         */
+        private Chunk next() throws IOException {
+            if (current != null && position < current.length) {
+                return current;
+            }
+            if (current != null) {
+                if (current.length < 0) {
+                    return null;
+                }
+                current.release();
+                current = null;
+            }
+            try {
+                current = chunks.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading " + file.getName());
+            }
+            position = 0;
+            if (current.error != null) {
+                throw current.error;
+            }
+            return current.length < 0 ? null : current;
+        }
+
+        @Override
+        public int read() throws IOException {
+            Chunk chunk = next();
+            if (chunk == null) {
+                return -1;
+            }
+            return chunk.buffer[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            Chunk chunk = next();
+            if (chunk == null) {
+                return -1;
+            }
+            int length = Math.min(len, chunk.length - position);
+            System.arraycopy(chunk.buffer, position, b, off, length);
+            position += length;
+            return length;
+        }
+
+        @Override
+        public int available() {
+            return current == null || current.length < 0 ? 0 : current.length - position;
+        }
+
+        /**
+         * Returns all buffers of the file to its reader, which stops reading it
+         */
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            if (current != null) {
+                current.release();
+                current = null;
+            }
+            Chunk chunk;
+            while ((chunk = chunks.poll()) != null) {
+                chunk.release();
+            }
+        }
+    }
+}
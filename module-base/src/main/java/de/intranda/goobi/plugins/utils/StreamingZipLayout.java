@@ -0,0 +1,477 @@
+package de.intranda.goobi.plugins.utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Describes a zip archive of uncompressed (STORED) entries which is never written to disk, but generated from the original files whenever it
+ * is read.
+ *
+ * Since the entries are not compressed, the CRC32 of every file is the only thing which has to be computed in advance. With it the position of
+ * every header and every file inside the archive is known, so the archive has a fixed length and any byte range of it can be produced without
+ * generating the bytes before it. Zip64 records are added when the archive or a file exceeds 4 GB.
+ *
+ * The layout is stored as a text file with one line per entry. Before an archive is generated, {@link #isCurrent()} should be used to check
+ * that no file changed since the layout was created.
+ *
+ */
+public class StreamingZipLayout {
+
+    private static final Logger logger = Logger.getLogger(StreamingZipLayout.class);
+
+    public static final String SUFFIX = ".layout";
+
+    private static final String HEADER = "# zip layout";
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_SHORT = 0xFFFF;
+    private static final int UTF8_FLAG = 0x0800;
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private List<Segment> segments;
+    private long length;
+
+    /**
+     * Creates the layout of an archive containing the given files and directories, named like the entries of
+     * {@link ArchiveUtils#zipFiles(File[], File)}. The CRC32 of the files is computed in parallel
+     *
+     * @param sourceFiles
+     * @param threads number of threads reading the files. Values below 1 use one thread per available processor
+     * @return
+     * @throws IOException
+     */
+    public static StreamingZipLayout create(File[] sourceFiles, int threads) throws IOException {
+        return create(FileScanner.read(sourceFiles, ""), threads);
+    }
+
+    /**
+     * Creates the layout of an archive of files whose attributes were read before, e.g. by
+     * {@link FileScanner#listFolder(File, java.io.FilenameFilter)}
+     *
+     * @param sourceFiles files and directories to add under their names
+     * @param threads number of threads reading the files. Values below 1 use one thread per available processor
+     * @return
+     * @throws IOException
+     */
+    public static StreamingZipLayout create(List<FileScanner.ScannedFile> sourceFiles, int threads) throws IOException {
+        final List<Entry> collected = new ArrayList<Entry>();
+        for (FileScanner.ScannedFile scanned : FileScanner.list(sourceFiles)) {
+            collected.add(new Entry(scanned.getFile(), scanned.getName(), scanned.isDirectory(), scanned.getSize(), 0,
+                    scanned.getLastModified()));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(ParallelZipCreator.getThreadCount(threads));
+        try {
+            List<Future<Long>> crcs = new ArrayList<Future<Long>>();
+            for (final Entry entry : collected) {
+                crcs.add(entry.directory ? null : executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws IOException {
+                        return computeCrc(entry.file);
+                    }
+                }));
+            }
+            StreamingZipLayout layout = new StreamingZipLayout();
+            for (int i = 0; i < collected.size(); i++) {
+                Entry entry = collected.get(i);
+                long crc = crcs.get(i) == null ? 0 : crcs.get(i).get();
+                layout.entries.add(new Entry(entry.file, entry.name, entry.directory, entry.size, crc, entry.lastModified));
+            }
+            return layout;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while computing checksums", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public List<Entry> getEntries() {
+        return new ArrayList<Entry>(entries);
+    }
+
+    /**
+     * @return true if all files still have the size and modification time they had when the layout was created
+     */
+    public boolean isCurrent() {
+        for (Entry entry : entries) {
+            if (entry.directory) {
+                continue;
+            }
+            if (!entry.file.isFile() || entry.file.length() != entry.size || entry.file.lastModified() != entry.lastModified) {
+                logger.debug("File " + entry.file.getAbsolutePath() + " changed since the zip layout was created");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the length of the generated archive in bytes
+     */
+    public synchronized long getLength() {
+        layout();
+        return length;
+    }
+
+    /**
+     * Writes a range of the archive into the given channel
+     *
+     * @param out
+     * @param position the first byte to write
+     * @param count the number of bytes to write
+     * @throws IOException if writing fails or a file is shorter than expected
+     */
+    public void transferTo(WritableByteChannel out, long position, long count) throws IOException {
+        List<Segment> segments;
+        synchronized (this) {
+            layout();
+            segments = this.segments;
+        }
+        long end = position + count;
+        for (Segment segment : segments) {
+            if (segment.offset + segment.length <= position) {
+                continue;
+            }
+            if (segment.offset >= end) {
+                break;
+            }
+            long from = Math.max(position, segment.offset) - segment.offset;
+            long to = Math.min(end, segment.offset + segment.length) - segment.offset;
+            if (segment.data != null) {
+                ByteBuffer buffer = ByteBuffer.wrap(segment.data, (int) from, (int) (to - from));
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            } else {
+                transferFile(segment.file, from, to, out);
+            }
+        }
+    }
+
+    /**
+     * Writes the layout into the given file. The file is replaced atomically
+     *
+     * @param layoutFile
+     * @throws IOException
+     */
+    public void write(File layoutFile) throws IOException {
+        layoutFile.getAbsoluteFile().getParentFile().mkdirs();
+        File tempFile = new File(layoutFile.getAbsoluteFile().getParentFile(), layoutFile.getName() + ".tmp");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8));
+        try {
+            writer.write(HEADER + "\n");
+            for (Entry entry : entries) {
+                writer.write((entry.directory ? "d" : "f") + "\t" + entry.size + "\t" + String.format("%08x", entry.crc) + "\t"
+                        + entry.lastModified + "\t" + entry.name + "\t" + entry.file.getAbsolutePath() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        ArchiveUtils.replaceFile(tempFile, layoutFile);
+    }
+
+    /**
+     * Reads a layout written by {@link #write(File)}
+     *
+     * @param layoutFile
+     * @return
+     * @throws IOException if the file is not readable or contains no valid layout
+     */
+    public static StreamingZipLayout read(File layoutFile) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(layoutFile), StandardCharsets.UTF_8));
+        try {
+            if (!HEADER.equals(reader.readLine())) {
+                throw new IOException("Invalid zip layout " + layoutFile.getAbsolutePath());
+            }
+            StreamingZipLayout layout = new StreamingZipLayout();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 6);
+                if (fields.length != 6) {
+                    throw new IOException("Invalid line in zip layout " + layoutFile.getAbsolutePath() + ": " + line);
+                }
+                layout.entries.add(new Entry(new File(fields[5]), fields[4], "d".equals(fields[0]), Long.parseLong(fields[1]), Long.parseLong(
+                        fields[2], 16), Long.parseLong(fields[3])));
+            }
+            return layout;
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid zip layout " + layoutFile.getAbsolutePath(), e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Computes the position of all headers and files
+     */
+    private void layout() {
+        if (segments != null) {
+            return;
+        }
+        List<Segment> result = new ArrayList<Segment>();
+        long[] offsets = new long[entries.size()];
+        long offset = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            offsets[i] = offset;
+            byte[] header = createLocalHeader(entry);
+            result.add(new Segment(offset, header));
+            offset += header.length;
+            if (entry.size > 0) {
+                result.add(new Segment(offset, entry.file, entry.size));
+                offset += entry.size;
+            }
+        }
+
+        ByteArrayOutputStream central = new ByteArrayOutputStream();
+        for (int i = 0; i < entries.size(); i++) {
+            byte[] header = createCentralHeader(entries.get(i), offsets[i]);
+            central.write(header, 0, header.length);
+        }
+        long centralSize = central.size();
+        byte[] end = createEndRecords(offset, centralSize, entries.size());
+        central.write(end, 0, end.length);
+        result.add(new Segment(offset, central.toByteArray()));
+
+        this.length = offset + central.size();
+        this.segments = result;
+    }
+
+    private static byte[] createLocalHeader(Entry entry) {
+        byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        boolean zip64 = entry.size >= ZIP64_MAGIC;
+        ByteBuffer buffer = ByteBuffer.allocate(30 + name.length + (zip64 ? 20 : 0)).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(0x04034b50);
+        buffer.putShort((short) (zip64 ? 45 : 20));
+        buffer.putShort((short) UTF8_FLAG);
+        buffer.putShort((short) 0);
+        buffer.putInt((int) toDosTime(entry.lastModified));
+        buffer.putInt((int) entry.crc);
+        buffer.putInt((int) (zip64 ? ZIP64_MAGIC : entry.size));
+        buffer.putInt((int) (zip64 ? ZIP64_MAGIC : entry.size));
+        buffer.putShort((short) name.length);
+        buffer.putShort((short) (zip64 ? 20 : 0));
+        buffer.put(name);
+        if (zip64) {
+            buffer.putShort((short) 0x0001);
+            buffer.putShort((short) 16);
+            buffer.putLong(entry.size);
+            buffer.putLong(entry.size);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] createCentralHeader(Entry entry, long offset) {
+        byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        boolean zip64Size = entry.size >= ZIP64_MAGIC;
+        boolean zip64Offset = offset >= ZIP64_MAGIC;
+        int extraLength = zip64Size || zip64Offset ? 4 + (zip64Size ? 16 : 0) + (zip64Offset ? 8 : 0) : 0;
+        ByteBuffer buffer = ByteBuffer.allocate(46 + name.length + extraLength).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(0x02014b50);
+        buffer.putShort((short) (extraLength > 0 ? 45 : 20));
+        buffer.putShort((short) (extraLength > 0 ? 45 : 20));
+        buffer.putShort((short) UTF8_FLAG);
+        buffer.putShort((short) 0);
+        buffer.putInt((int) toDosTime(entry.lastModified));
+        buffer.putInt((int) entry.crc);
+        buffer.putInt((int) (zip64Size ? ZIP64_MAGIC : entry.size));
+        buffer.putInt((int) (zip64Size ? ZIP64_MAGIC : entry.size));
+        buffer.putShort((short) name.length);
+        buffer.putShort((short) extraLength);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putInt(entry.directory ? 0x10 : 0);
+        buffer.putInt((int) (zip64Offset ? ZIP64_MAGIC : offset));
+        buffer.put(name);
+        if (extraLength > 0) {
+            buffer.putShort((short) 0x0001);
+            buffer.putShort((short) (extraLength - 4));
+            if (zip64Size) {
+                buffer.putLong(entry.size);
+                buffer.putLong(entry.size);
+            }
+            if (zip64Offset) {
+                buffer.putLong(offset);
+            }
+        }
+        return buffer.array();
+    }
+
+    private static byte[] createEndRecords(long centralOffset, long centralSize, int entryCount) {
+        boolean zip64 = entryCount >= ZIP64_MAGIC_SHORT || centralOffset >= ZIP64_MAGIC || centralSize >= ZIP64_MAGIC;
+        ByteBuffer buffer = ByteBuffer.allocate((zip64 ? 56 + 20 : 0) + 22).order(ByteOrder.LITTLE_ENDIAN);
+        if (zip64) {
+            long zip64EndOffset = centralOffset + centralSize;
+            buffer.putInt(0x06064b50);
+            buffer.putLong(44);
+            buffer.putShort((short) 45);
+            buffer.putShort((short) 45);
+            buffer.putInt(0);
+            buffer.putInt(0);
+            buffer.putLong(entryCount);
+            buffer.putLong(entryCount);
+            buffer.putLong(centralSize);
+            buffer.putLong(centralOffset);
+
+            buffer.putInt(0x07064b50);
+            buffer.putInt(0);
+            buffer.putLong(zip64EndOffset);
+            buffer.putInt(1);
+        }
+        buffer.putInt(0x06054b50);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) (zip64 ? ZIP64_MAGIC_SHORT : entryCount));
+        buffer.putShort((short) (zip64 ? ZIP64_MAGIC_SHORT : entryCount));
+        buffer.putInt((int) (zip64 ? ZIP64_MAGIC : centralSize));
+        buffer.putInt((int) (zip64 ? ZIP64_MAGIC : centralOffset));
+        buffer.putShort((short) 0);
+        return buffer.array();
+    }
+
+    /**
+     * Converts a Java time into the MS-DOS date (high 16 bits) and time (low 16 bits) used by zip headers
+     */
+    private static long toDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return ((year - 1980L) << 25) | ((calendar.get(Calendar.MONTH) + 1) << 21) | (calendar.get(Calendar.DAY_OF_MONTH) << 16)
+                | (calendar.get(Calendar.HOUR_OF_DAY) << 11) | (calendar.get(Calendar.MINUTE) << 5) | (calendar.get(Calendar.SECOND) >> 1);
+    }
+
+    private static long computeCrc(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        BufferPool pool = BufferPool.getShared();
+        ByteBuffer buffer = pool.acquireDirect();
+        try {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            channel.close();
+            pool.release(buffer);
+        }
+        return crc.getValue();
+    }
+
+    private static void transferFile(File file, long from, long to, WritableByteChannel out) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            while (from < to) {
+                long transferred = channel.transferTo(from, to - from, out);
+                if (transferred <= 0 && from >= channel.size()) {
+                    throw new IOException("File " + file.getAbsolutePath() + " is shorter than expected");
+                }
+                from += transferred;
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * A file or directory of the archive
+     */
+    public static class Entry {
+        private final File file;
+        private final String name;
+        private final boolean directory;
+        private final long size;
+        private final long crc;
+        private final long lastModified;
+
+        public Entry(File file, String name, boolean directory, long size, long crc, long lastModified) {
+            this.file = file;
+            this.name = name;
+            this.directory = directory;
+            this.size = size;
+            this.crc = crc;
+            this.lastModified = lastModified;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    /**
+     * A part of the archive, either generated bytes or a range of a file
+     */
+    private static class Segment {
+        private final long offset;
+        private final long length;
+        private final byte[] data;
+        private final File file;
+
+        private Segment(long offset, byte[] data) {
+            this.offset = offset;
+            this.length = data.length;
+            this.data = data;
+            this.file = null;
+        }
+
+        private Segment(long offset, File file, long length) {
+            this.offset = offset;
+            this.length = length;
+            this.data = null;
+            this.file = file;
+        }
+    }
+}
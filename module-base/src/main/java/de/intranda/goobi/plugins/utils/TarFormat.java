@@ -0,0 +1,94 @@
+package de.intranda.goobi.plugins.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Uncompressed and gzip compressed tar archives. The gzip compressed archives are written in parallel blocks with a {@link BlockGzipIndex},
+ * so they are validated and extracted in parallel as well
+ *
+ */
+class TarFormat implements ArchiveFormat {
+
+    private final String name;
+
+    /**
+     * @param name {@link ArchiveFormats#TAR} or {@link ArchiveFormats#TAR_GZ}
+     */
+    TarFormat(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getExtension() {
+        return "." + name;
+    }
+
+    @Override
+    public void writeFiles(List<FileScanner.ScannedFile> files, File archive, int threads, CompressionPolicy policy, ArchiveManifest manifest)
+            throws IOException {
+        archive.getParentFile().mkdirs();
+        File tempFile = ArchiveFormats.getTempFile(archive);
+        try {
+            ArchiveUtils.tarFiles(files, tempFile, manifest, threads);
+        } catch (IOException e) {
+            delete(tempFile);
+            throw e;
+        }
+        replace(tempFile, archive);
+    }
+
+    @Override
+    public void writeEntries(List<EntrySource> entries, File archive, int threads, CompressionPolicy policy, ArchiveManifest manifest)
+            throws IOException {
+        archive.getParentFile().mkdirs();
+        File tempFile = ArchiveFormats.getTempFile(archive);
+        try {
+            ArchiveUtils.tarEntries(entries, tempFile, manifest, threads);
+        } catch (IOException e) {
+            delete(tempFile);
+            throw e;
+        }
+        replace(tempFile, archive);
+    }
+
+    /**
+     * Deletes an incomplete archive and its index, the previous archive is kept
+     */
+    private static void delete(File tempFile) {
+        tempFile.delete();
+        BlockGzipIndex.getIndexFile(tempFile).delete();
+    }
+
+    /**
+     * Moves the written archive and its index to their final names
+     */
+    private static void replace(File tempFile, File archive) throws IOException {
+        ArchiveUtils.replaceFile(tempFile, archive);
+        File tempIndex = BlockGzipIndex.getIndexFile(tempFile);
+        if (tempIndex.isFile()) {
+            ArchiveUtils.replaceFile(tempIndex, BlockGzipIndex.getIndexFile(archive));
+        }
+    }
+
+    @Override
+    public boolean validate(File archive, ArchiveManifest manifest, int threads) {
+        return ArchiveUtils.validateTar(archive, manifest, threads);
+    }
+
+    @Override
+    public boolean validate(File archive, File origFilesParent, int supposedFiles, int threads) {
+        return ArchiveUtils.validateTar(archive, true, origFilesParent, supposedFiles, threads);
+    }
+
+    @Override
+    public List<File> extract(File archive, File destDir, int threads) throws IOException {
+        return ArchiveUtils.untarFile(archive, destDir, threads);
+    }
+}
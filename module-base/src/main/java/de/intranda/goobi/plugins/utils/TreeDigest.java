@@ -0,0 +1,116 @@
+package de.intranda.goobi.plugins.utils;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A two level hash tree over another algorithm: the data is split into chunks of {@link #CHUNK_SIZE} bytes, the digest is the digest of the
+ * concatenated digests of the chunks. Empty data is a single empty chunk.
+ *
+ * The chunks of a file can be hashed in parallel, see {@link Digests#digest(java.io.File, String, java.util.concurrent.ExecutorService)},
+ * but the result is the same when the data is hashed as a stream, e.g. while it is zipped. The algorithm names end with {@link #SUFFIX},
+ * e.g. SHA-256-TREE.
+ *
+ */
+class TreeDigest extends MessageDigest {
+
+    static final String SUFFIX = "-TREE";
+
+    static final int CHUNK_SIZE = 8 * 1024 * 1024;
+
+    private final MessageDigest chunkDigest;
+    private final MessageDigest rootDigest;
+    private int chunkFill;
+    private boolean hasChunks;
+
+    TreeDigest(String algorithm) throws NoSuchAlgorithmException {
+        super(algorithm);
+        String chunkAlgorithm = getChunkAlgorithm(algorithm);
+        this.chunkDigest = Digests.getInstance(chunkAlgorithm);
+        this.rootDigest = Digests.getInstance(chunkAlgorithm);
+    }
+
+    /**
+     * @param algorithm the name of a tree algorithm
+     * @return the algorithm of its chunks
+     */
+    static String getChunkAlgorithm(String algorithm) {
+        return algorithm.substring(0, algorithm.length() - SUFFIX.length());
+    }
+
+    /**
+     * Adds the digest of a chunk which was hashed separately. The chunks have to be added in order
+     *
+     * @param digest
+     */
+    void addChunkDigest(byte[] digest) {
+        rootDigest.update(digest);
+        hasChunks = true;
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return rootDigest.getDigestLength();
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        chunkDigest.update(input);
+        if (++chunkFill == CHUNK_SIZE) {
+            finishChunk();
+        }
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        while (len > 0) {
+            int count = Math.min(len, CHUNK_SIZE - chunkFill);
+            chunkDigest.update(input, offset, count);
+            chunkFill += count;
+            offset += count;
+            len -= count;
+            if (chunkFill == CHUNK_SIZE) {
+                finishChunk();
+            }
+        }
+    }
+
+    @Override
+    protected void engineUpdate(ByteBuffer input) {
+        while (input.hasRemaining()) {
+            int count = Math.min(input.remaining(), CHUNK_SIZE - chunkFill);
+            ByteBuffer chunk = input.slice();
+            chunk.limit(count);
+            chunkDigest.update(chunk);
+            input.position(input.position() + count);
+            chunkFill += count;
+            if (chunkFill == CHUNK_SIZE) {
+                finishChunk();
+            }
+        }
+    }
+
+    private void finishChunk() {
+        addChunkDigest(chunkDigest.digest());
+        chunkFill = 0;
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        if (chunkFill > 0 || !hasChunks) {
+            finishChunk();
+        }
+        byte[] digest = rootDigest.digest();
+        engineReset();
+        return digest;
+    }
+
+    @Override
+    protected void engineReset() {
+        chunkDigest.reset();
+        rootDigest.reset();
+        chunkFill = 0;
+        hasChunks = false;
+    }
+}
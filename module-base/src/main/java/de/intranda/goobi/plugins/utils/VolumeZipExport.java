@@ -0,0 +1,340 @@
+package de.intranda.goobi.plugins.utils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Splits an export into several independent zip archives ("volumes") of a maximal size, which are built at the same time.
+ *
+ * The files are distributed in their usual order, a volume is closed when the next file would exceed the maximal size. The limit applies to
+ * the uncompressed sizes of the files: a volume usually stays below it, but its zip headers are not counted and a single file larger than
+ * the limit gets a volume of its own which exceeds it. All volumes share one pool of compression threads. Like {@link ArchiveUtils#zipFiles(File[], File, int, CompressionPolicy, ArchiveManifest)}
+ * every volume is written to a temporary file with a {@link ZipJournal}. The volumes stay in their temporary files until the caller validated
+ * all of them, so a failed export leaves the volumes of the previous export untouched.
+ *
+ */
+public class VolumeZipExport {
+
+    private static final Logger logger = Logger.getLogger(VolumeZipExport.class);
+
+    private static final String INDEX_HEADER = "# volumes";
+
+    private final File zipFile;
+    private final long maxVolumeSize;
+    private final int threads;
+    private final String algorithm;
+    private CompressionPolicy compressionPolicy;
+    private int concurrentVolumes = 2;
+
+    /**
+     * @param zipFile the archive to split, the volumes are named after it and created in the same folder
+     * @param maxVolumeSize the maximal size of a volume in bytes
+     * @param threads number of compression threads shared by all volumes. Values below 1 use one thread per available processor
+     * @param algorithm the digest algorithm of the manifests of the volumes
+     */
+    public VolumeZipExport(File zipFile, long maxVolumeSize, int threads, String algorithm) {
+        this.zipFile = zipFile;
+        this.maxVolumeSize = maxVolumeSize;
+        this.threads = threads;
+        this.algorithm = algorithm;
+    }
+
+    public void setCompressionPolicy(CompressionPolicy compressionPolicy) {
+        this.compressionPolicy = compressionPolicy;
+    }
+
+    /**
+     * Sets the maximal number of volumes written at the same time. Defaults to 2
+     *
+     * @param concurrentVolumes
+     */
+    public void setConcurrentVolumes(int concurrentVolumes) {
+        this.concurrentVolumes = Math.max(concurrentVolumes, 1);
+    }
+
+    /**
+     * Returns the name of a volume of the given archive
+     *
+     * @param archiveName
+     * @param number the number of the volume, starting with 1
+     * @return
+     */
+    public static String getVolumeName(String archiveName, int number) {
+        return getBaseName(archiveName) + "_part" + String.format("%03d", number) + ".zip";
+    }
+
+    /**
+     * Returns the name of the index listing the volumes of the given archive
+     *
+     * @param archiveName
+     * @return
+     */
+    public static String getIndexName(String archiveName) {
+        return getBaseName(archiveName) + ".volumes.txt";
+    }
+
+    /**
+     * Creates the volumes in their temporary files
+     *
+     * @param sourceFiles files and directories to export
+     * @return the created volumes in order
+     * @throws IOException
+     */
+    public List<Volume> export(File[] sourceFiles) throws IOException {
+        return export(FileScanner.read(sourceFiles, ""));
+    }
+
+    /**
+     * Creates the volumes of files whose attributes were read before, e.g. by {@link FileScanner#listFolder(File, java.io.FilenameFilter)}, in
+     * their temporary files
+     *
+     * @param sourceFiles files and directories to export under their names
+     * @return the created volumes in order
+     * @throws IOException
+     */
+    public List<Volume> export(List<FileScanner.ScannedFile> sourceFiles) throws IOException {
+        List<List<FileScanner.ScannedFile>> groups = split(sourceFiles);
+        zipFile.getParentFile().mkdirs();
+
+        List<Volume> volumes = new ArrayList<Volume>();
+        for (int i = 0; i < groups.size(); i++) {
+            volumes.add(new Volume(new File(zipFile.getParentFile(), getVolumeName(zipFile.getName(), i + 1)), new ArchiveManifest(algorithm),
+                    groups.get(i).size()));
+        }
+        logger.info("Splitting " + zipFile.getName() + " into " + volumes.size() + " volumes");
+
+        int compressionThreads = ParallelZipCreator.getThreadCount(threads);
+        final ExecutorService compressor = Executors.newFixedThreadPool(compressionThreads);
+        ExecutorService writers = Executors.newFixedThreadPool(Math.min(concurrentVolumes, volumes.size()));
+        final int parallelism = Math.max(compressionThreads / Math.min(concurrentVolumes, volumes.size()), 1);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < volumes.size(); i++) {
+                final Volume volume = volumes.get(i);
+                final List<FileScanner.ScannedFile> entries = groups.get(i);
+                futures.add(writers.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        writeVolume(volume, entries, compressor, parallelism);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while creating volumes of " + zipFile.getAbsolutePath(), e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            writers.shutdownNow();
+            compressor.shutdownNow();
+        }
+        return volumes;
+    }
+
+    /**
+     * Deletes the temporary files of volumes which are not published
+     *
+     * @param volumes
+     */
+    public static void discard(List<Volume> volumes) {
+        for (Volume volume : volumes) {
+            volume.getTempFile().delete();
+        }
+    }
+
+    /**
+     * Writes an index listing name, size, number of entries and digest of all volumes. An existing index is replaced atomically
+     *
+     * @param volumes
+     * @param indexFile
+     * @throws IOException
+     */
+    public static void writeIndex(List<Volume> volumes, File indexFile) throws IOException {
+        File tempFile = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8));
+        try {
+            writer.write(INDEX_HEADER + "\t" + (volumes.isEmpty() ? "" : volumes.get(0).getManifest().getAlgorithm()) + "\n");
+            for (Volume volume : volumes) {
+                writer.write(volume.getFile().getName() + "\t" + volume.getManifest().getArchiveSize() + "\t" + volume.getEntries() + "\t"
+                        + ArchiveUtils.convertChecksumToHex(volume.getManifest().getArchiveDigest()) + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        ArchiveUtils.replaceFile(tempFile, indexFile);
+    }
+
+    /**
+     * Deletes the volumes of the given archive starting with the given number, together with their manifests
+     *
+     * @param folder
+     * @param archiveName
+     * @param firstNumber
+     */
+    public static void deleteVolumes(File folder, String archiveName, int firstNumber) {
+        for (int number = firstNumber;; number++) {
+            final String volumeName = getVolumeName(archiveName, number);
+            File[] files = folder.listFiles();
+            boolean found = false;
+            if (files != null) {
+                for (File file : files) {
+                    if (file.getName().startsWith(volumeName)) {
+                        found = true;
+                        file.delete();
+                    }
+                }
+            }
+            if (!found) {
+                return;
+            }
+            logger.debug("Deleted obsolete volume " + volumeName);
+        }
+    }
+
+    private void writeVolume(Volume volume, List<FileScanner.ScannedFile> entries, ExecutorService compressor, int parallelism)
+            throws IOException {
+        File tempFile = volume.getTempFile();
+        ArchiveUtils.deleteStaleBuffers(tempFile);
+        ZipJournal journal;
+        try {
+            journal = writeVolume(volume, entries, tempFile, compressor, parallelism);
+        } catch (ZipJournal.MismatchException e) {
+            logger.warn(e.getMessage() + ", creating " + volume.getFile().getName() + " from scratch");
+            ZipJournal.discard(tempFile);
+            volume.getManifest().clear();
+            journal = writeVolume(volume, entries, tempFile, compressor, parallelism);
+        }
+
+        journal.delete();
+        logger.debug("Created volume " + volume.getFile().getName() + " with " + entries.size() + " entries");
+    }
+
+    /**
+     * Writes the volume into the temporary file, keeping the entries its journal recovered
+     *
+     * @return the closed journal, to be deleted when the volume is complete
+     */
+    private ZipJournal writeVolume(Volume volume, List<FileScanner.ScannedFile> entries, File tempFile, ExecutorService compressor,
+            int parallelism) throws IOException {
+        ZipJournal journal = ZipJournal.open(ZipJournal.getJournalFile(tempFile), tempFile, algorithm);
+        ParallelZipCreator creator = new ParallelZipCreator(tempFile, compressor, parallelism);
+        creator.setCompressionPolicy(compressionPolicy);
+        creator.setManifest(volume.getManifest());
+        creator.setJournal(journal);
+        try {
+            for (FileScanner.ScannedFile entry : entries) {
+                if (entry.isDirectory()) {
+                    creator.addDirectoryEntry(entry.getFile(), entry.getName(), entry.getLastModified());
+                } else {
+                    creator.addFileEntry(entry.getFile(), entry.getName(), entry.getSize(), entry.getLastModified());
+                }
+            }
+            creator.finish();
+        } finally {
+            try {
+                creator.close();
+            } finally {
+                journal.close();
+            }
+        }
+        return journal;
+    }
+
+    /**
+     * Distributes the files to the volumes, keeping their order. Directory entries are added to the volume of the file following them
+     */
+    private List<List<FileScanner.ScannedFile>> split(List<FileScanner.ScannedFile> sourceFiles) throws IOException {
+        List<FileScanner.ScannedFile> entries = FileScanner.list(sourceFiles);
+        List<List<FileScanner.ScannedFile>> groups = new ArrayList<List<FileScanner.ScannedFile>>();
+        List<FileScanner.ScannedFile> current = new ArrayList<FileScanner.ScannedFile>();
+        long currentSize = 0;
+        boolean currentHasFiles = false;
+        for (FileScanner.ScannedFile entry : entries) {
+            if (!entry.isDirectory() && currentHasFiles && currentSize + entry.getSize() > maxVolumeSize) {
+                groups.add(current);
+                current = new ArrayList<FileScanner.ScannedFile>();
+                currentSize = 0;
+                currentHasFiles = false;
+            }
+            current.add(entry);
+            if (!entry.isDirectory()) {
+                currentSize += entry.getSize();
+                currentHasFiles = true;
+            }
+        }
+        if (!current.isEmpty()) {
+            groups.add(current);
+        }
+        return groups;
+    }
+
+    private static String getBaseName(String archiveName) {
+        return archiveName.endsWith(".zip") ? archiveName.substring(0, archiveName.length() - ".zip".length()) : archiveName;
+    }
+
+    /**
+     * A single volume of the export
+     */
+    public static class Volume {
+        private final File file;
+        private final File tempFile;
+        private final ArchiveManifest manifest;
+        private final int entries;
+
+        private Volume(File file, ArchiveManifest manifest, int entries) {
+            this.file = file;
+            this.tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+            this.manifest = manifest;
+            this.entries = entries;
+        }
+
+        /**
+         * @return the final name of the volume
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @return the file the volume was written to. It replaces {@link #getFile()} once all volumes were validated
+         */
+        public File getTempFile() {
+            return tempFile;
+        }
+
+        /**
+         * @return the manifest of the volume, filled while it was written
+         */
+        public ArchiveManifest getManifest() {
+            return manifest;
+        }
+
+        /**
+         * @return the number of files and directories in the volume
+         */
+        public int getEntries() {
+            return entries;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package de.intranda.goobi.plugins.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Zip archives, written by a {@link ParallelZipCreator}
+ *
+ */
+class ZipFormat implements ArchiveFormat {
+
+    @Override
+    public String getName() {
+        return ArchiveFormats.ZIP;
+    }
+
+    @Override
+    public String getExtension() {
+        return ".zip";
+    }
+
+    @Override
+    public void writeFiles(List<FileScanner.ScannedFile> files, File archive, int threads, CompressionPolicy policy, ArchiveManifest manifest)
+            throws IOException {
+        ArchiveUtils.zipFiles(files, archive, threads, policy, manifest);
+    }
+
+    @Override
+    public void writeEntries(List<EntrySource> entries, File archive, int threads, CompressionPolicy policy, ArchiveManifest manifest)
+            throws IOException {
+        ArchiveUtils.zipEntries(entries, archive, threads, policy, manifest);
+    }
+
+    @Override
+    public boolean validate(File archive, ArchiveManifest manifest, int threads) {
+        ZipVerifier verifier = new ZipVerifier(archive);
+        verifier.setThreads(threads);
+        verifier.setManifest(manifest);
+        return verifier.verify(ZipVerifier.Level.MANIFEST);
+    }
+
+    @Override
+    public boolean validate(File archive, File origFilesParent, int supposedFiles, int threads) {
+        ZipVerifier verifier = new ZipVerifier(archive);
+        verifier.setThreads(threads);
+        verifier.setOriginals(origFilesParent);
+        verifier.setExpectedEntries(supposedFiles);
+        return verifier.verify(ZipVerifier.Level.FULL);
+    }
+
+    @Override
+    public List<File> extract(File archive, File destDir, int threads) throws IOException {
+        return ArchiveUtils.unzipFile(archive, destDir, threads);
+    }
+}
@@ -0,0 +1,290 @@
+package de.intranda.goobi.plugins.utils;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.log4j.Logger;
+
+/**
+ * Records the entries of a zip archive while it is written, so an interrupted export can continue after the last complete entry.
+ *
+ * Every line describes one entry and the position in the archive where it ends. Lines are only added at checkpoints, after the archive was
+ * forced to disk, so every recorded entry is complete even after a crash of the machine.
+ *
+ */
+public class ZipJournal implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(ZipJournal.class);
+
+    private static final String HEADER = "# zip journal";
+
+    private final File journalFile;
+    private final String algorithm;
+    private final List<Entry> recovered;
+    private final List<Entry> uncommitted = new ArrayList<Entry>();
+    private FileOutputStream out;
+    private Writer writer;
+
+    private ZipJournal(File journalFile, String algorithm, List<Entry> recovered) {
+        this.journalFile = journalFile;
+        this.algorithm = algorithm;
+        this.recovered = recovered;
+    }
+
+    /**
+     * Returns the file the journal of the given archive is stored in
+     *
+     * @param archive
+     * @return
+     */
+    public static File getJournalFile(File archive) {
+        return new File(archive.getParentFile(), archive.getName() + ".journal");
+    }
+
+    /**
+     * Opens the journal of a partially written archive. The entries recorded by an interrupted export are only recovered if the archive
+     * still contains all of them and they were recorded with the same digest algorithm
+     *
+     * @param journalFile
+     * @param partialArchive the archive the journal describes
+     * @param algorithm the digest algorithm of the entry digests, null if no digests are recorded
+     * @return
+     */
+    public static ZipJournal open(File journalFile, File partialArchive, String algorithm) {
+        List<Entry> entries = new ArrayList<Entry>();
+        if (journalFile.isFile() && partialArchive.isFile()) {
+            entries = read(journalFile, algorithm);
+            if (!entries.isEmpty() && entries.get(entries.size() - 1).getEndOffset() > partialArchive.length()) {
+                logger.warn("Journal " + journalFile.getName() + " describes more data than the partial archive contains, ignoring it");
+                entries.clear();
+            }
+        }
+        if (!entries.isEmpty()) {
+            logger.info("Recovered " + entries.size() + " complete entries of " + partialArchive.getName() + " from an interrupted export");
+        }
+        return new ZipJournal(journalFile, algorithm, entries);
+    }
+
+    /**
+     * @return the entries recorded by an interrupted export, in archive order
+     */
+    public List<Entry> getRecoveredEntries() {
+        return recovered;
+    }
+
+    /**
+     * Starts recording. The journal keeps the given number of recovered entries, all further recovered entries are dropped
+     *
+     * @param keep
+     * @throws IOException
+     */
+    public void start(int keep) throws IOException {
+        File tempFile = new File(journalFile.getParentFile(), journalFile.getName() + ".tmp");
+        Writer tempWriter = new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8);
+        try {
+            tempWriter.write(HEADER + "\t" + (algorithm == null ? "-" : algorithm) + "\n");
+            for (int i = 0; i < keep; i++) {
+                tempWriter.write(format(recovered.get(i)));
+            }
+        } finally {
+            tempWriter.close();
+        }
+        ArchiveUtils.replaceFile(tempFile, journalFile);
+        out = new FileOutputStream(journalFile, true);
+        writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Adds a written entry. It is recorded with the next {@link #commit()}
+     *
+     * @param entry
+     */
+    public void add(Entry entry) {
+        uncommitted.add(entry);
+    }
+
+    /**
+     * Records all added entries. The archive must be forced to disk before
+     *
+     * @throws IOException
+     */
+    public void commit() throws IOException {
+        if (writer == null || uncommitted.isEmpty()) {
+            return;
+        }
+        for (Entry entry : uncommitted) {
+            writer.write(format(entry));
+        }
+        writer.flush();
+        out.getFD().sync();
+        uncommitted.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    /**
+     * Closes and removes the journal, once the archive is complete
+     *
+     * @throws IOException
+     */
+    public void delete() throws IOException {
+        close();
+        Files.deleteIfExists(journalFile.toPath());
+    }
+
+    /**
+     * Deletes a partial archive and its journal, so the archive is written again from the start
+     *
+     * @param partialArchive
+     * @throws IOException
+     */
+    public static void discard(File partialArchive) throws IOException {
+        Files.deleteIfExists(getJournalFile(partialArchive).toPath());
+        Files.deleteIfExists(partialArchive.toPath());
+    }
+
+    private static String format(Entry entry) {
+        return entry.getEndOffset() + "\t" + entry.getMethod() + "\t" + String.format("%08x", entry.getCrc()) + "\t" + entry.getSize() + "\t"
+                + entry.getCompressedSize() + "\t" + entry.getLastModified() + "\t" + (entry.getDigest() == null ? "-" : ArchiveUtils
+                        .convertChecksumToHex(entry.getDigest())) + "\t" + entry.getName() + "\n";
+    }
+
+    private static List<Entry> read(File journalFile, String algorithm) {
+        List<Entry> entries = new ArrayList<Entry>();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), StandardCharsets.UTF_8));
+            try {
+                String header = reader.readLine();
+                if (header == null || !header.equals(HEADER + "\t" + (algorithm == null ? "-" : algorithm))) {
+                    return entries;
+                }
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", 8);
+                    if (fields.length != 8) {
+                        // the last line may be incomplete
+                        break;
+                    }
+                    entries.add(new Entry(fields[7], Integer.parseInt(fields[1]), Long.parseLong(fields[2], 16), Long.parseLong(fields[3]), Long
+                            .parseLong(fields[4]), Long.parseLong(fields[5]), "-".equals(fields[6]) ? null : ArchiveUtils.convertHexToChecksum(
+                                    fields[6]), Long.parseLong(fields[0])));
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Journal " + journalFile.getAbsolutePath() + " is not readable, keeping " + entries.size() + " entries", e);
+        }
+        return entries;
+    }
+
+    /**
+     * Thrown if the partial archive doesn't contain the entries the way the journal recorded them, e.g. because a header is written
+     * differently now. Nothing of the partial archive can be kept then
+     */
+    public static class MismatchException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public MismatchException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A complete entry of the archive
+     */
+    public static class Entry {
+        private final String name;
+        private final int method;
+        private final long crc;
+        private final long size;
+        private final long compressedSize;
+        private final long lastModified;
+        private final byte[] digest;
+        private final long endOffset;
+
+        public Entry(String name, int method, long crc, long size, long compressedSize, long lastModified, byte[] digest, long endOffset) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.lastModified = lastModified;
+            this.digest = digest;
+            this.endOffset = endOffset;
+        }
+
+        /**
+         * @param name the name of the entry to add
+         * @param size the size of the file to add
+         * @param lastModified the modification time of the file to add
+         * @return true if this entry was created from the same file
+         */
+        public boolean matches(String name, long size, long lastModified) {
+            return this.name.equals(name) && this.size == size && this.lastModified == lastModified;
+        }
+
+        /**
+         * @return a zip entry with the same header as the recorded one
+         */
+        public ZipArchiveEntry toZipEntry() {
+            ZipArchiveEntry entry = new ZipArchiveEntry(name);
+            entry.setTime(lastModified);
+            entry.setMethod(method);
+            entry.setCrc(crc);
+            entry.setSize(size);
+            entry.setCompressedSize(compressedSize);
+            return entry;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public byte[] getDigest() {
+            return digest;
+        }
+
+        public long getEndOffset() {
+            return endOffset;
+        }
+    }
+}
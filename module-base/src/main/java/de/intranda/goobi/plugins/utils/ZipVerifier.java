@@ -0,0 +1,357 @@
+package de.intranda.goobi.plugins.utils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.log4j.Logger;
+
+/**
+ * Verifies zip archives at different levels of thoroughness. Every level includes the levels before it:
+ * <ul>
+ * <li>STRUCTURE: reads the central directory and the local header of every entry, without reading the data. Finds truncated and damaged
+ * archives and missing entries in seconds</li>
+ * <li>CRC: decompresses every entry and compares it with the CRC32 and size of the central directory</li>
+ * <li>MANIFEST: also compares every entry with the digest of the {@link ArchiveManifest} captured while the archive was written</li>
+ * <li>FULL: also compares every entry byte by byte with its original file</li>
+ * </ul>
+ * The entries are decompressed by several threads, each reading a different range of the archive with its own {@link ZipFile}
+ *
+ */
+public class ZipVerifier {
+
+    private static final Logger logger = Logger.getLogger(ZipVerifier.class);
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+
+    /**
+     * The thoroughness of the verification
+     */
+    public enum Level {
+        STRUCTURE,
+        CRC,
+        MANIFEST,
+        FULL;
+
+        /**
+         * Returns the level of the given name, ignoring case
+         *
+         * @param name
+         * @return the level, or null if the name is unknown
+         */
+        public static Level parse(String name) {
+            try {
+                return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    private final File zipFile;
+    private int threads = 0;
+    private ArchiveManifest manifest;
+    private File origFilesParent;
+    private int expectedEntries = -1;
+
+    /**
+     * @param zipFile the archive to verify
+     */
+    public ZipVerifier(File zipFile) {
+        this.zipFile = zipFile;
+    }
+
+    /**
+     * @param threads number of verifying threads. Values below 1 use one thread per available processor
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Sets the manifest the entries are compared with. With a manifest, the archive must contain exactly the files of the manifest
+     *
+     * @param manifest
+     */
+    public void setManifest(ArchiveManifest manifest) {
+        this.manifest = manifest;
+    }
+
+    /**
+     * Sets the folder containing the original files, needed for {@link Level#FULL}
+     *
+     * @param origFilesParent
+     */
+    public void setOriginals(File origFilesParent) {
+        this.origFilesParent = origFilesParent;
+    }
+
+    /**
+     * Sets the number of entries, files and directories, the archive has to contain
+     *
+     * @param expectedEntries
+     */
+    public void setExpectedEntries(int expectedEntries) {
+        this.expectedEntries = expectedEntries;
+    }
+
+    /**
+     * Verifies the archive at the given level. Problems are logged at debug level
+     *
+     * @param level
+     * @return true if the archive is valid
+     */
+    public boolean verify(Level level) {
+        if (level == Level.MANIFEST && manifest == null) {
+            throw new IllegalStateException("Verifying " + zipFile.getName() + " against its manifest needs a manifest");
+        }
+        if (level == Level.FULL && origFilesParent == null) {
+            throw new IllegalStateException("Verifying " + zipFile.getName() + " against the original files needs their folder");
+        }
+        try {
+            List<ZipArchiveEntry> entries;
+            ZipFile zip = new ZipFile(zipFile);
+            try {
+                entries = Collections.list(zip.getEntriesInPhysicalOrder());
+            } finally {
+                zip.close();
+            }
+            if (!verifyStructure(entries)) {
+                return false;
+            }
+            if (level == Level.STRUCTURE) {
+                return true;
+            }
+            return verifyContent(entries, level);
+        } catch (IOException e) {
+            logger.debug("Found corrupted archive " + zipFile.getName() + ": " + e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Compares the local headers with the central directory and the entries with the manifest
+     */
+    private boolean verifyStructure(List<ZipArchiveEntry> entries) throws IOException {
+        if (expectedEntries >= 0 && entries.size() != expectedEntries) {
+            logger.debug("Archive " + zipFile.getName() + " contains " + entries.size() + " of " + expectedEntries + " expected entries");
+            return false;
+        }
+        Set<String> files = new HashSet<String>();
+        FileChannel channel = FileChannel.open(zipFile.toPath(), StandardOpenOption.READ);
+        try {
+            long archiveSize = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < entries.size(); i++) {
+                ZipArchiveEntry entry = entries.get(i);
+                long offset = entry.getLocalHeaderOffset();
+                long next = i + 1 < entries.size() ? entries.get(i + 1).getLocalHeaderOffset() : archiveSize;
+                header.clear();
+                IoGovernor.acquire(LOCAL_HEADER_SIZE);
+                readFully(channel, header, offset);
+                byte[] rawName = entry.getRawName();
+                int nameLength = header.getShort(26) & 0xffff;
+                int extraLength = header.getShort(28) & 0xffff;
+                if (header.getInt(0) != LOCAL_HEADER_SIGNATURE || nameLength != rawName.length
+                        || (header.getShort(8) & 0xffff) != entry.getMethod()) {
+                    logger.debug("Found corrupted local header of entry " + entry.getName() + " in archive " + zipFile.getName());
+                    return false;
+                }
+                ByteBuffer name = ByteBuffer.allocate(nameLength);
+                readFully(channel, name, offset + LOCAL_HEADER_SIZE);
+                if (!Arrays.equals(name.array(), rawName)) {
+                    logger.debug("Local header of entry " + entry.getName() + " names a different file in archive " + zipFile.getName());
+                    return false;
+                }
+                long dataEnd = offset + LOCAL_HEADER_SIZE + nameLength + extraLength + entry.getCompressedSize();
+                if (dataEnd > next) {
+                    logger.debug("Data of entry " + entry.getName() + " overlaps the next entry in archive " + zipFile.getName());
+                    return false;
+                }
+                if (!entry.isDirectory()) {
+                    if (manifest != null && manifest.getEntry(entry.getName()) == null) {
+                        logger.debug("Found unexpected archive entry " + entry.getName());
+                        return false;
+                    }
+                    files.add(entry.getName());
+                }
+            }
+        } finally {
+            channel.close();
+        }
+        if (manifest != null && files.size() != manifest.size()) {
+            logger.debug("Archive " + zipFile.getName() + " contains " + files.size() + " of " + manifest.size() + " expected files");
+            return false;
+        }
+        return true;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of archive");
+            }
+        }
+    }
+
+    /**
+     * Decompresses the entries in ranges of about the same compressed size, each range on its own thread and reader
+     */
+    private boolean verifyContent(List<ZipArchiveEntry> entries, final Level level) throws IOException {
+        List<List<ZipArchiveEntry>> ranges = split(entries, ParallelZipCreator.getThreadCount(threads));
+        ExecutorService executor = Executors.newFixedThreadPool(ranges.size());
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (final List<ZipArchiveEntry> range : ranges) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws IOException {
+                        return verifyRange(range, level);
+                    }
+                }));
+            }
+            boolean valid = true;
+            for (Future<Boolean> result : results) {
+                valid &= result.get();
+            }
+            return valid;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while verifying " + zipFile.getName());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static List<List<ZipArchiveEntry>> split(List<ZipArchiveEntry> entries, int parts) {
+        long total = 0;
+        for (ZipArchiveEntry entry : entries) {
+            total += entry.getCompressedSize();
+        }
+        long partSize = Math.max(1, total / parts);
+        List<List<ZipArchiveEntry>> ranges = new ArrayList<List<ZipArchiveEntry>>();
+        List<ZipArchiveEntry> current = new ArrayList<ZipArchiveEntry>();
+        long currentSize = 0;
+        for (ZipArchiveEntry entry : entries) {
+            if (entry.isDirectory()) {
+                continue;
+            }
+            current.add(entry);
+            currentSize += entry.getCompressedSize();
+            if (currentSize >= partSize && ranges.size() < parts - 1) {
+                ranges.add(current);
+                current = new ArrayList<ZipArchiveEntry>();
+                currentSize = 0;
+            }
+        }
+        if (!current.isEmpty() || ranges.isEmpty()) {
+            ranges.add(current);
+        }
+        return ranges;
+    }
+
+    private boolean verifyRange(List<ZipArchiveEntry> range, Level level) throws IOException {
+        BufferPool pool = BufferPool.getShared();
+        byte[] buffer = pool.acquireArray();
+        byte[] original = level == Level.FULL ? pool.acquireArray() : null;
+        try {
+            return verifyRange(range, level, buffer, original);
+        } finally {
+            pool.release(buffer);
+            if (original != null) {
+                pool.release(original);
+            }
+        }
+    }
+
+    private boolean verifyRange(List<ZipArchiveEntry> range, Level level, byte[] buffer, byte[] original) throws IOException {
+        ZipFile zip = new ZipFile(zipFile);
+        try {
+            for (ZipArchiveEntry entry : range) {
+                logger.debug("Testing file " + entry.getName() + " from archive " + zipFile.getName());
+                MessageDigest digest = level.compareTo(Level.MANIFEST) >= 0 && manifest != null ? manifest.createDigest() : null;
+                InputStream orig = null;
+                if (level == Level.FULL) {
+                    // the originals were scanned when the archive was written, so they are opened without checking them first
+                    try {
+                        orig = IoGovernor.openInput(new File(origFilesParent, entry.getName()));
+                    } catch (FileNotFoundException e) {
+                        logger.debug("Unable to find orig file for entry " + entry.getName());
+                        return false;
+                    }
+                }
+                // entries are read at their offsets, so their compressed data is charged at once
+                IoGovernor.acquire(entry.getCompressedSize());
+                InputStream in = zip.getInputStream(entry);
+                try {
+                    CRC32 crc = new CRC32();
+                    long size = 0;
+                    int read;
+                    while ((read = in.readNBytes(buffer, 0, buffer.length)) > 0) {
+                        crc.update(buffer, 0, read);
+                        if (digest != null) {
+                            digest.update(buffer, 0, read);
+                        }
+                        if (orig != null && (orig.readNBytes(original, 0, read) != read
+                                || !Arrays.equals(buffer, 0, read, original, 0, read))) {
+                            logger.debug("Found corrupted archive entry " + entry.getName() + ": Content differs from the original file");
+                            return false;
+                        }
+                        size += read;
+                    }
+                    if (orig != null && orig.read() != -1) {
+                        logger.debug("Found corrupted archive entry " + entry.getName() + ": Original file is longer");
+                        return false;
+                    }
+                    if (size != entry.getSize() || crc.getValue() != entry.getCrc()) {
+                        logger.debug("Found corrupted archive entry " + entry.getName() + ": CRC doesn't match");
+                        return false;
+                    }
+                    if (digest != null) {
+                        ArchiveManifest.Entry expected = manifest.getEntry(entry.getName());
+                        if (size != expected.getSize() || !MessageDigest.isEqual(digest.digest(), expected.getDigest())) {
+                            logger.debug("Found corrupted archive entry " + entry.getName() + ": Checksums don't match");
+                            return false;
+                        }
+                    }
+                } finally {
+                    in.close();
+                    if (orig != null) {
+                        orig.close();
+                    }
+                }
+            }
+        } finally {
+            zip.close();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,36 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class ZipDeliveryServerTest {
+
+    private static final long LENGTH = 1000;
+
+    @Test
+    public void testSingleRanges() {
+        assertArrayEquals(new long[] { 0, 99 }, ZipDeliveryServer.parseRange("bytes=0-99", LENGTH));
+        assertArrayEquals(new long[] { 500, 999 }, ZipDeliveryServer.parseRange("bytes=500-", LENGTH));
+        assertArrayEquals(new long[] { 900, 999 }, ZipDeliveryServer.parseRange("bytes=-100", LENGTH));
+        // the end and the suffix are limited to the archive
+        assertArrayEquals(new long[] { 990, 999 }, ZipDeliveryServer.parseRange("bytes=990-5000", LENGTH));
+        assertArrayEquals(new long[] { 0, 999 }, ZipDeliveryServer.parseRange("bytes=-5000", LENGTH));
+    }
+
+    @Test
+    public void testUnsatisfiableRanges() {
+        assertNull(ZipDeliveryServer.parseRange("bytes=1000-", LENGTH));
+        assertNull(ZipDeliveryServer.parseRange("bytes=500-400", LENGTH));
+        assertNull(ZipDeliveryServer.parseRange("bytes=-0", LENGTH));
+    }
+
+    @Test
+    public void testIgnoredRanges() {
+        assertArrayEquals(new long[0], ZipDeliveryServer.parseRange("items=0-99", LENGTH));
+        assertArrayEquals(new long[0], ZipDeliveryServer.parseRange("bytes=0-99,200-299", LENGTH));
+        assertArrayEquals(new long[0], ZipDeliveryServer.parseRange("bytes=100", LENGTH));
+        assertArrayEquals(new long[0], ZipDeliveryServer.parseRange("bytes=a-b", LENGTH));
+    }
+}
@@ -0,0 +1,72 @@
+package de.intranda.goobi.plugins.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ArchiveManifestTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        File archive = new File(folder.getRoot(), "export.zip");
+        ArchiveManifest manifest = new ArchiveManifest("SHA-256");
+        manifest.add("images/00000001.tif", 1234, 0x0badcafeL, digest(manifest, "first"));
+        // names may contain blanks
+        manifest.add("images/page two.tif", 0, 0, digest(manifest, ""));
+        manifest.setArchive(5678, digest(manifest, "archive"));
+        manifest.write(archive);
+
+        ArchiveManifest read = ArchiveManifest.read(archive);
+        assertEquals("SHA-256", read.getAlgorithm());
+        assertEquals(5678, read.getArchiveSize());
+        assertArrayEquals(manifest.getArchiveDigest(), read.getArchiveDigest());
+        List<ArchiveManifest.Entry> entries = read.getEntries();
+        assertEquals(2, entries.size());
+        for (ArchiveManifest.Entry entry : manifest.getEntries()) {
+            ArchiveManifest.Entry readEntry = read.getEntry(entry.getName());
+            assertEquals(entry.getName(), entry.getSize(), readEntry.getSize());
+            assertEquals(entry.getName(), entry.getCrc(), readEntry.getCrc());
+            assertArrayEquals(entry.getName(), entry.getDigest(), readEntry.getDigest());
+        }
+        assertEquals("images/00000001.tif", entries.get(0).getName());
+    }
+
+    @Test
+    public void testMissingManifest() throws Exception {
+        assertNull(ArchiveManifest.read(new File(folder.getRoot(), "export.zip")));
+    }
+
+    @Test
+    public void testMismatchingFiles() throws Exception {
+        File archive = new File(folder.getRoot(), "export.zip");
+        ArchiveManifest manifest = new ArchiveManifest("MD5");
+        manifest.add("a.tif", 1, 1, digest(manifest, "a"));
+        manifest.write(archive);
+        File payload = new File(folder.getRoot(), archive.getName() + ArchiveManifest.getManifestSuffix("MD5"));
+        Files.write(payload.toPath(), "00  b.tif\n".getBytes(StandardCharsets.UTF_8));
+        try {
+            ArchiveManifest.read(archive);
+            fail("Read manifest whose files don't match");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static byte[] digest(ArchiveManifest manifest, String content) throws IOException {
+        return manifest.createDigest().digest(content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,123 @@
+package de.intranda.goobi.plugins.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BlockGzipIndexTest {
+
+    private static final int BLOCK_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private byte[] data;
+    private File archive;
+
+    @Before
+    public void setUp() throws IOException {
+        data = new byte[10 * BLOCK_SIZE + 123];
+        Random random = new Random(5);
+        for (int i = 0; i < data.length; i++) {
+            // compressible, but not trivially
+            data[i] = (byte) ('a' + random.nextInt(8));
+        }
+        archive = new File(folder.getRoot(), "export.tar.gz");
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            BlockGzipOutputStream out = new BlockGzipOutputStream(new FileOutputStream(archive), executor, 3, BLOCK_SIZE,
+                    Deflater.DEFAULT_COMPRESSION);
+            try {
+                for (int entry = 0; entry < 5; entry++) {
+                    out.markEntry("entry" + entry);
+                    int start = entry * data.length / 5;
+                    out.write(data, start, (entry + 1) * data.length / 5 - start);
+                }
+            } finally {
+                out.close();
+            }
+            out.getIndex().write(archive);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testWholeStreamIsGzip() throws Exception {
+        InputStream in = new GZIPInputStream(new FileInputStream(archive));
+        try {
+            assertArrayEquals(data, in.readAllBytes());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testBlocksAreIndependentlyReadable() throws Exception {
+        BlockGzipIndex index = BlockGzipIndex.read(archive);
+        assertNotNull(index);
+        assertEquals(archive.length(), index.getCompressedSize());
+        for (long offset : new long[] { 0, BLOCK_SIZE - 1, BLOCK_SIZE, 5 * BLOCK_SIZE + 17, data.length - 1 }) {
+            BlockGzipIndex.Block block = index.getBlock(offset);
+            assertTrue(block.getUncompressedOffset() <= offset && offset - block.getUncompressedOffset() < BLOCK_SIZE);
+            RandomAccessFile file = new RandomAccessFile(archive, "r");
+            try {
+                file.seek(block.getCompressedOffset());
+                InputStream in = new GZIPInputStream(new FileInputStream(file.getFD()));
+                long skip = offset - block.getUncompressedOffset();
+                while (skip > 0) {
+                    skip -= in.skip(skip);
+                }
+                assertEquals("byte " + offset, data[(int) offset], (byte) in.read());
+            } finally {
+                file.close();
+            }
+        }
+    }
+
+    @Test
+    public void testEntriesAndRanges() throws Exception {
+        BlockGzipIndex index = BlockGzipIndex.read(archive);
+        List<BlockGzipIndex.Entry> entries = index.getEntries();
+        assertEquals(5, entries.size());
+        for (int entry = 0; entry < 5; entry++) {
+            assertEquals("entry" + entry, entries.get(entry).getName());
+            assertEquals(entry * data.length / 5, entries.get(entry).getOffset());
+        }
+        List<List<BlockGzipIndex.Entry>> ranges = index.split(2);
+        assertEquals(2, ranges.size());
+        assertEquals(5, ranges.get(0).size() + ranges.get(1).size());
+        assertEquals("entry0", ranges.get(0).get(0).getName());
+    }
+
+    @Test
+    public void testIndexOfChangedArchiveIsIgnored() throws Exception {
+        RandomAccessFile file = new RandomAccessFile(archive, "rw");
+        try {
+            file.setLength(file.length() + 1);
+        } finally {
+            file.close();
+        }
+        assertNull(BlockGzipIndex.read(archive));
+    }
+}
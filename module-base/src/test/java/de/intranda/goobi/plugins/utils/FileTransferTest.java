@@ -0,0 +1,72 @@
+package de.intranda.goobi.plugins.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileTransferTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File source;
+    private byte[] content;
+    private File dest;
+    private File part;
+
+    @Before
+    public void setUp() throws IOException {
+        content = new byte[3 * 1024 * 1024 + 17];
+        new Random(11).nextBytes(content);
+        source = new File(folder.newFolder("source"), "export.zip");
+        Files.write(source.toPath(), content);
+        dest = new File(folder.getRoot(), "dest/export.zip");
+        dest.getParentFile().mkdirs();
+        // the partial copy an interrupted transfer leaves behind
+        part = new File(dest.getParentFile(), "." + dest.getName() + ".part");
+    }
+
+    @Test
+    public void testResumePartialCopy() throws Exception {
+        Files.write(part.toPath(), Arrays.copyOf(content, 1024 * 1024));
+        byte[] digest = transfer().copy(source, dest);
+        assertArrayEquals(content, Files.readAllBytes(dest.toPath()));
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(content), digest);
+        assertFalse(part.exists());
+    }
+
+    @Test
+    public void testDiscardMismatchingPart() throws Exception {
+        byte[] partContent = Arrays.copyOf(content, 1024 * 1024);
+        partContent[1000] ^= 1;
+        Files.write(part.toPath(), partContent);
+        byte[] digest = transfer().copy(source, dest);
+        assertArrayEquals(content, Files.readAllBytes(dest.toPath()));
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(content), digest);
+    }
+
+    @Test
+    public void testDiscardLongerPart() throws Exception {
+        byte[] partContent = Arrays.copyOf(content, content.length + 100);
+        Files.write(part.toPath(), partContent);
+        transfer().copy(source, dest);
+        assertArrayEquals(content, Files.readAllBytes(dest.toPath()));
+    }
+
+    private static FileTransfer transfer() {
+        FileTransfer transfer = new FileTransfer();
+        transfer.setDigestAlgorithm("SHA-256");
+        return transfer;
+    }
+}
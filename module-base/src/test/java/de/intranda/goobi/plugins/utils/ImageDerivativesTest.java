@@ -0,0 +1,73 @@
+package de.intranda.goobi.plugins.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ImageDerivativesTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File createImage(String name, int size) throws IOException {
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                image.setRGB(x, y, (x * 31 + y * 17 + name.hashCode()) & 0xFFFFFF);
+            }
+        }
+        File file = new File(folder.getRoot(), name);
+        String format = name.substring(name.lastIndexOf('.') + 1);
+        assertTrue(ImageIO.write(image, format, file));
+        return file;
+    }
+
+    @Test
+    public void testMastersWithSameBaseName() throws Exception {
+        File[] masters = { createImage("a.png", 20), createImage("a.bmp", 20), createImage("b.png", 20) };
+        List<String> names = new ArrayList<String>();
+        for (EntrySource entry : new ImageDerivatives(10, 0.8f, "jpg").createEntries(masters)) {
+            names.add(entry.getName());
+        }
+        assertEquals(3, names.size());
+        assertEquals("a.png.jpg", names.get(0));
+        assertEquals("a.bmp.jpg", names.get(1));
+        assertEquals("b.jpg", names.get(2));
+    }
+
+    @Test
+    public void testCacheIsLimited() throws Exception {
+        File cacheFolder = folder.newFolder("cache");
+        ImageDerivatives derivatives = new ImageDerivatives(0, 0.9f, "png");
+        // room for about two derivatives
+        long derivativeSize = derivatives.render(createImage("first.png", 64)).length;
+        CacheFolder cache = new CacheFolder(cacheFolder, derivativeSize * 5 / 2, "");
+        derivatives.setCache(cache);
+
+        for (int i = 0; i < 6; i++) {
+            derivatives.render(createImage(i + ".png", 64));
+        }
+        assertEquals(6, derivatives.getRendered() - 1);
+        long size = 0;
+        int files = 0;
+        for (FileScanner.ScannedFile cached : FileScanner.list(new File[] { cacheFolder }, "")) {
+            if (!cached.isDirectory()) {
+                size += cached.getSize();
+                files++;
+            }
+        }
+        assertTrue("cache holds " + size + " bytes", size <= cache.getMaxSize());
+        assertTrue(files > 0 && files < 6);
+    }
+}
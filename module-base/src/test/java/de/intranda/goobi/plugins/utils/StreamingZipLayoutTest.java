@@ -0,0 +1,255 @@
+package de.intranda.goobi.plugins.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StreamingZipLayoutTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File images;
+
+    @Before
+    public void setUp() throws IOException {
+        images = folder.newFolder("images");
+        File thumbs = new File(images, "thumbs");
+        thumbs.mkdir();
+        Random random = new Random(7);
+        for (int i = 0; i < 6; i++) {
+            byte[] content = new byte[random.nextInt(40000)];
+            random.nextBytes(content);
+            Files.write(new File(i % 2 == 0 ? images : thumbs, String.format("%08d.tif", i)).toPath(), content);
+        }
+        Files.write(new File(images, "empty.txt").toPath(), new byte[0]);
+    }
+
+    @Test
+    public void testStreamedArchiveIsReadable() throws Exception {
+        StreamingZipLayout layout = StreamingZipLayout.create(new File[] { images }, 2);
+        File zipFile = stream(layout);
+        assertEquals(layout.getLength(), zipFile.length());
+
+        ZipFile zip = new ZipFile(zipFile);
+        try {
+            assertEquals(layout.getEntries().size(), zip.size());
+            for (StreamingZipLayout.Entry entry : layout.getEntries()) {
+                ZipEntry zipEntry = zip.getEntry(entry.getName());
+                assertNotNull(entry.getName(), zipEntry);
+                assertEquals(entry.getName(), entry.isDirectory(), zipEntry.isDirectory());
+                if (!entry.isDirectory()) {
+                    assertEquals(entry.getName(), entry.getSize(), zipEntry.getSize());
+                    assertEquals(entry.getName(), crc(entry.getFile()), zipEntry.getCrc());
+                    assertArrayEquals(entry.getName(), Files.readAllBytes(entry.getFile().toPath()), read(zip.getInputStream(zipEntry)));
+                }
+            }
+        } finally {
+            zip.close();
+        }
+
+        // reading the local headers checks sizes and checksums of every entry
+        ZipInputStream in = new ZipInputStream(new FileInputStream(zipFile));
+        try {
+            int count = 0;
+            while (in.getNextEntry() != null) {
+                read(in);
+                count++;
+            }
+            assertEquals(layout.getEntries().size(), count);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testRangesMatchArchive() throws Exception {
+        StreamingZipLayout layout = StreamingZipLayout.create(new File[] { images }, 1);
+        byte[] archive = Files.readAllBytes(stream(layout).toPath());
+
+        Random random = new Random(3);
+        ByteArrayOutputStream pieces = new ByteArrayOutputStream();
+        WritableByteChannel out = Channels.newChannel(pieces);
+        long position = 0;
+        while (position < layout.getLength()) {
+            long count = Math.min(1 + random.nextInt(5000), layout.getLength() - position);
+            layout.transferTo(out, position, count);
+            position += count;
+        }
+        assertArrayEquals(archive, pieces.toByteArray());
+    }
+
+    @Test
+    public void testLayoutRoundTrip() throws Exception {
+        StreamingZipLayout layout = StreamingZipLayout.create(new File[] { images }, 1);
+        File layoutFile = new File(folder.getRoot(), "export" + StreamingZipLayout.SUFFIX);
+        layout.write(layoutFile);
+        StreamingZipLayout read = StreamingZipLayout.read(layoutFile);
+        assertTrue(read.isCurrent());
+        assertEquals(layout.getLength(), read.getLength());
+        assertArrayEquals(Files.readAllBytes(stream(layout).toPath()), Files.readAllBytes(stream(read).toPath()));
+    }
+
+    /**
+     * A file larger than 4 GB needs Zip64 sizes, the file behind it a Zip64 offset and the central directory the Zip64 end records. The
+     * archive is read through a channel on the layout, so neither the image nor the archive takes space on disk
+     */
+    @Test
+    public void testZip64() throws Exception {
+        File large = new File(images, "a-large.tif");
+        RandomAccessFile file = new RandomAccessFile(large, "rw");
+        try {
+            file.setLength(0xFFFFFFFFL + 1000);
+        } finally {
+            file.close();
+        }
+        File small = new File(images, "b-small.tif");
+        Files.write(small.toPath(), "behind the large file".getBytes("UTF-8"));
+
+        StreamingZipLayout layout = StreamingZipLayout.create(new File[] { large, small }, 2);
+        assertTrue(layout.getLength() > 0xFFFFFFFFL);
+
+        org.apache.commons.compress.archivers.zip.ZipFile zip = new org.apache.commons.compress.archivers.zip.ZipFile(new LayoutChannel(layout));
+        try {
+            ZipArchiveEntry largeEntry = zip.getEntry("a-large.tif");
+            assertNotNull(largeEntry);
+            assertEquals(large.length(), largeEntry.getSize());
+            assertEquals(layout.getEntries().get(0).getCrc(), largeEntry.getCrc());
+            ZipArchiveEntry smallEntry = zip.getEntry("b-small.tif");
+            assertNotNull(smallEntry);
+            assertArrayEquals(Files.readAllBytes(small.toPath()), read(zip.getInputStream(smallEntry)));
+        } finally {
+            zip.close();
+        }
+    }
+
+    private File stream(StreamingZipLayout layout) throws IOException {
+        File zipFile = File.createTempFile("stream", ".zip", folder.getRoot());
+        FileChannel channel = FileChannel.open(zipFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            layout.transferTo(channel, 0, layout.getLength());
+        } finally {
+            channel.close();
+        }
+        return zipFile;
+    }
+
+    private static long crc(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(Files.readAllBytes(file.toPath()));
+        return crc.getValue();
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads the archive of a layout like a file
+     */
+    private static class LayoutChannel implements SeekableByteChannel {
+        private final StreamingZipLayout layout;
+        private long position;
+        private boolean open = true;
+
+        private LayoutChannel(StreamingZipLayout layout) {
+            this.layout = layout;
+        }
+
+        @Override
+        public int read(final ByteBuffer dst) throws IOException {
+            if (position >= layout.getLength()) {
+                return -1;
+            }
+            int count = (int) Math.min(dst.remaining(), layout.getLength() - position);
+            layout.transferTo(new WritableByteChannel() {
+                @Override
+                public int write(ByteBuffer src) {
+                    int length = src.remaining();
+                    dst.put(src);
+                    return length;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return true;
+                }
+
+                @Override
+                public void close() {
+                }
+            }, position, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long position() {
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) {
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() {
+            return layout.getLength();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package de.intranda.goobi.plugins.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TarFormatTest {
+
+    private static final int FILES = 5;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File images;
+    private File[] files;
+
+    @Before
+    public void setUp() throws IOException {
+        images = folder.newFolder("images");
+        Random random = new Random(11);
+        files = new File[FILES];
+        for (int i = 0; i < FILES; i++) {
+            byte[] content = new byte[1000 + random.nextInt(30000)];
+            random.nextBytes(content);
+            files[i] = new File(images, String.format("%08d.tif", i));
+            Files.write(files[i].toPath(), content);
+        }
+    }
+
+    @Test
+    public void testValidateCountsEntries() throws Exception {
+        for (String name : new String[] { ArchiveFormats.TAR, ArchiveFormats.TAR_GZ }) {
+            ArchiveFormat format = ArchiveFormats.getInstance(name);
+            File archive = new File(folder.getRoot(), "export" + format.getExtension());
+            format.writeFiles(FileScanner.read(files, ""), archive, 2, null, new ArchiveManifest("SHA-256"));
+
+            assertTrue(name, format.validate(archive, images, FILES, 2));
+            assertFalse(name + " with a missing entry", format.validate(archive, images, FILES + 1, 2));
+        }
+    }
+
+    @Test
+    public void testValidateFailsWithoutOriginal() throws Exception {
+        ArchiveFormat format = ArchiveFormats.getInstance(ArchiveFormats.TAR);
+        File archive = new File(folder.getRoot(), "export" + format.getExtension());
+        format.writeFiles(FileScanner.read(files, ""), archive, 1, null, new ArchiveManifest("SHA-256"));
+
+        assertTrue(files[2].delete());
+        assertFalse(format.validate(archive, images, FILES, 1));
+    }
+
+    @Test
+    public void testFileDeletedAfterScanFailsArchive() throws Exception {
+        for (String name : new String[] { ArchiveFormats.TAR, ArchiveFormats.TAR_GZ }) {
+            ArchiveFormat format = ArchiveFormats.getInstance(name);
+            File archive = new File(folder.getRoot(), "export" + format.getExtension());
+            List<FileScanner.ScannedFile> scanned = FileScanner.read(files, "");
+            File deleted = new File(folder.getRoot(), "deleted.tif");
+            Files.move(files[3].toPath(), deleted.toPath());
+            try {
+                format.writeFiles(scanned, archive, 2, null, new ArchiveManifest("SHA-256"));
+                fail(name + " archive written without " + files[3].getName());
+            } catch (IOException e) {
+                // expected
+            } finally {
+                Files.move(deleted.toPath(), files[3].toPath());
+            }
+            assertFalse(name, archive.exists());
+            assertFalse(name, ArchiveFormats.getTempFile(archive).exists());
+        }
+    }
+
+    @Test
+    public void testDeleteOtherFormats() throws Exception {
+        ArchiveFormat tar = ArchiveFormats.getInstance(ArchiveFormats.TAR_GZ);
+        File oldArchive = new File(folder.getRoot(), "export" + tar.getExtension());
+        ArchiveManifest manifest = new ArchiveManifest("SHA-256");
+        tar.writeFiles(FileScanner.read(files, ""), oldArchive, 2, null, manifest);
+        manifest.write(oldArchive);
+
+        ArchiveFormat zip = ArchiveFormats.getInstance(ArchiveFormats.ZIP);
+        File archive = new File(folder.getRoot(), "export" + zip.getExtension());
+        zip.writeFiles(FileScanner.read(files, ""), archive, 2, null, new ArchiveManifest("SHA-256"));
+        ArchiveFormats.deleteOtherFormats(archive, zip);
+
+        assertTrue(archive.isFile());
+        assertFalse(oldArchive.exists());
+        assertFalse(BlockGzipIndex.getIndexFile(oldArchive).exists());
+        assertFalse(new File(folder.getRoot(), oldArchive.getName() + ".bag-info.txt").exists());
+        assertFalse(new File(folder.getRoot(), oldArchive.getName() + ArchiveManifest.getManifestSuffix("SHA-256")).exists());
+    }
+
+    @Test
+    public void testDeleteAllFormats() throws Exception {
+        ArchiveFormat zip = ArchiveFormats.getInstance(ArchiveFormats.ZIP);
+        File archive = new File(folder.getRoot(), "export" + zip.getExtension());
+        ArchiveManifest manifest = new ArchiveManifest("SHA-256");
+        zip.writeFiles(FileScanner.read(files, ""), archive, 2, null, manifest);
+        manifest.write(archive);
+
+        ArchiveFormats.deleteAllFormats(archive, zip, VolumeZipExport.getIndexName(archive.getName()));
+
+        assertFalse(archive.exists());
+        assertFalse(new File(folder.getRoot(), archive.getName() + ".bag-info.txt").exists());
+        assertFalse(new File(folder.getRoot(), archive.getName() + ArchiveManifest.getManifestSuffix("SHA-256")).exists());
+    }
+
+    /**
+     * Writes a tar archive as created by tar -C folder -cf archive . which starts with the entry ./
+     */
+    private File writeTar(String... names) throws IOException {
+        File archive = new File(folder.getRoot(), "dot.tar");
+        TarArchiveOutputStream out = new TarArchiveOutputStream(new FileOutputStream(archive));
+        try {
+            for (String name : names) {
+                TarArchiveEntry entry = new TarArchiveEntry(name);
+                byte[] content = name.getBytes(StandardCharsets.UTF_8);
+                if (!name.endsWith("/")) {
+                    entry.setSize(content.length);
+                }
+                out.putArchiveEntry(entry);
+                if (!name.endsWith("/")) {
+                    out.write(content);
+                }
+                out.closeArchiveEntry();
+            }
+        } finally {
+            out.close();
+        }
+        return archive;
+    }
+
+    @Test
+    public void testExtractSkipsCurrentFolder() throws Exception {
+        File archive = writeTar("./", "./00000001.tif", "./thumbs/", "./thumbs/00000001.jpg");
+        File destDir = folder.newFolder("extracted");
+        List<File> extracted = ArchiveFormats.getInstance(ArchiveFormats.TAR).extract(archive, destDir, 1);
+        assertEquals(2, extracted.size());
+        assertArrayEquals("./thumbs/00000001.jpg".getBytes(StandardCharsets.UTF_8), Files.readAllBytes(new File(destDir,
+                "thumbs/00000001.jpg").toPath()));
+    }
+
+    @Test(expected = IOException.class)
+    public void testExtractRefusesEntriesOutsideDestination() throws Exception {
+        File archive = writeTar("./", "../outside.tif");
+        ArchiveFormats.getInstance(ArchiveFormats.TAR).extract(archive, folder.newFolder("extracted"), 1);
+    }
+}
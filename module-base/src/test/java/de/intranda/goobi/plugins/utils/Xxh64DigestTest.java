@@ -0,0 +1,66 @@
+package de.intranda.goobi.plugins.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import org.junit.Test;
+
+public class Xxh64DigestTest {
+
+    @Test
+    public void testVectors() {
+        assertEquals("ef46db3751d8e999", hash(new byte[0]));
+        assertEquals("d24ec4f1a98c6e5b", hash("a".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals("44bc2cf5ad770999", hash("abc".getBytes(StandardCharsets.US_ASCII)));
+        // more than one stripe of 32 bytes
+        assertEquals("fbcea83c8a378bf1", hash("Nobody inspects the spammish repetition".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals("e146cb31b65bc21a", hash(sequence()));
+    }
+
+    @Test
+    public void testPiecewiseUpdates() {
+        byte[] data = sequence();
+        for (int piece : new int[] { 1, 7, 31, 32, 33, 100 }) {
+            MessageDigest digest = new Xxh64Digest();
+            for (int offset = 0; offset < data.length; offset += piece) {
+                int length = Math.min(piece, data.length - offset);
+                if (length == 1) {
+                    digest.update(data[offset]);
+                } else if (piece % 2 == 0) {
+                    digest.update(ByteBuffer.wrap(data, offset, length));
+                } else {
+                    digest.update(data, offset, length);
+                }
+            }
+            assertEquals("pieces of " + piece, "e146cb31b65bc21a", ArchiveUtils.convertChecksumToHex(digest.digest()));
+        }
+        // the digest is reset after digest()
+        MessageDigest digest = new Xxh64Digest();
+        digest.update(data);
+        digest.digest();
+        assertEquals("ef46db3751d8e999", ArchiveUtils.convertChecksumToHex(digest.digest()));
+    }
+
+    /**
+     * Four times the bytes 0 to 255 followed by "xyz", 1027 bytes with a tail of every length
+     */
+    private static byte[] sequence() {
+        byte[] data = new byte[1027];
+        for (int i = 0; i < 1024; i++) {
+            data[i] = (byte) i;
+        }
+        data[1024] = 'x';
+        data[1025] = 'y';
+        data[1026] = 'z';
+        return data;
+    }
+
+    private static String hash(byte[] data) {
+        MessageDigest digest = new Xxh64Digest();
+        digest.update(data);
+        return ArchiveUtils.convertChecksumToHex(digest.digest());
+    }
+}
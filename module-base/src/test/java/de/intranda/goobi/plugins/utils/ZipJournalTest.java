@@ -0,0 +1,118 @@
+package de.intranda.goobi.plugins.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ZipJournalTest {
+
+    private static final int FILES = 12;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File images;
+    private File zipFile;
+    private File tempFile;
+
+    @Before
+    public void setUp() throws IOException {
+        images = folder.newFolder("images");
+        Random random = new Random(42);
+        for (int i = 0; i < FILES; i++) {
+            byte[] content = new byte[20000 + random.nextInt(50000)];
+            for (int j = 0; j < content.length; j++) {
+                content[j] = (byte) (random.nextInt(8) + j % 5);
+            }
+            Files.write(new File(images, String.format("%08d.tif", i)).toPath(), content);
+        }
+        zipFile = new File(folder.getRoot(), "export.zip");
+        // the name used by ArchiveUtils.zipFiles
+        tempFile = new File(folder.getRoot(), "export.zip.tmp");
+    }
+
+    /**
+     * Writes a part of the archive and closes it without finishing, as an export does when it is interrupted
+     */
+    private int interruptExport() throws IOException {
+        ZipJournal journal = ZipJournal.open(ZipJournal.getJournalFile(tempFile), tempFile, "SHA-256");
+        ParallelZipCreator creator = new ParallelZipCreator(tempFile, 1);
+        creator.setManifest(new ArchiveManifest("SHA-256"));
+        creator.setJournal(journal);
+        creator.addFile(images, "");
+        creator.close();
+        journal.close();
+
+        List<ZipJournal.Entry> recovered = ZipJournal.open(ZipJournal.getJournalFile(tempFile), tempFile, "SHA-256").getRecoveredEntries();
+        assertFalse("interrupted export recorded no entries", recovered.isEmpty());
+        assertTrue("interrupted export recorded all entries", recovered.size() < FILES + 1);
+        return recovered.size();
+    }
+
+    @Test
+    public void testResumeInterruptedExport() throws Exception {
+        int recovered = interruptExport();
+
+        ArchiveManifest manifest = new ArchiveManifest("SHA-256");
+        ZipJournal journal = ZipJournal.open(ZipJournal.getJournalFile(tempFile), tempFile, "SHA-256");
+        ParallelZipCreator creator = new ParallelZipCreator(tempFile, 2);
+        creator.setManifest(manifest);
+        creator.setJournal(journal);
+        creator.addFile(images, "");
+        creator.finish();
+        creator.close();
+        journal.delete();
+
+        assertEquals(recovered, creator.getReplayedEntries());
+        assertEquals(FILES, manifest.size());
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(tempFile.toPath())), manifest.getArchiveDigest());
+        assertValid(tempFile, manifest);
+    }
+
+    @Test
+    public void testRebuildArchiveIfJournalDoesNotMatch() throws IOException {
+        interruptExport();
+        // the first entry is recorded to end one byte later than it does
+        File journalFile = ZipJournal.getJournalFile(tempFile);
+        List<String> lines = Files.readAllLines(journalFile.toPath(), StandardCharsets.UTF_8);
+        String[] fields = lines.get(1).split("\t", 2);
+        lines.set(1, (Long.parseLong(fields[0]) + 1) + "\t" + fields[1]);
+        Files.write(journalFile.toPath(), lines, StandardCharsets.UTF_8);
+
+        ArchiveManifest manifest = new ArchiveManifest("SHA-256");
+        ArchiveUtils.zipFiles(new File[] { images }, zipFile, 2, null, manifest);
+
+        assertEquals(FILES, manifest.size());
+        assertValid(zipFile, manifest);
+        assertFalse(tempFile.exists());
+        assertFalse(journalFile.exists());
+
+        // the next export is not affected by the discarded journal
+        ArchiveManifest next = new ArchiveManifest("SHA-256");
+        ArchiveUtils.zipFiles(new File[] { images }, zipFile, 2, null, next);
+        assertValid(zipFile, next);
+    }
+
+    private void assertValid(File archive, ArchiveManifest manifest) {
+        ZipVerifier verifier = new ZipVerifier(archive);
+        verifier.setManifest(manifest);
+        verifier.setOriginals(folder.getRoot());
+        // the folder and its files
+        verifier.setExpectedEntries(FILES + 1);
+        assertTrue(verifier.verify(ZipVerifier.Level.FULL));
+    }
+}
@@ -0,0 +1,154 @@
+package de.intranda.goobi.plugins.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.intranda.goobi.plugins.utils.ArchiveUtils;
+import de.intranda.goobi.plugins.utils.Digests;
+
+/**
+ * Checksums a large file, with {@link ArchiveUtils#createChecksum(File)}, with {@link Digests#digest(File, String, ExecutorService)} and with
+ * the supported algorithms read through streams and channels of different buffer sizes
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ChecksumBenchmark {
+
+    private File file;
+
+    @Setup(Level.Trial)
+    public void createCorpus() throws IOException {
+        file = Corpus.HUGE_FILES.getFiles()[0];
+    }
+
+    @State(Scope.Benchmark)
+    public static class Algorithm {
+
+        @Param({ "MD5", "SHA-1", "SHA-256", "CRC32", "Adler32", "CRC32C", "XXH64", "SHA-256-TREE" })
+        public String algorithm;
+
+        @Param({ "1024", "8192", "65536", "1048576" })
+        public int bufferSize;
+
+        private Object createChecksum() throws NoSuchAlgorithmException {
+            if ("CRC32".equals(algorithm)) {
+                return new CRC32();
+            } else if ("Adler32".equals(algorithm)) {
+                return new Adler32();
+            }
+            return Digests.getInstance(algorithm);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class FileDigest {
+
+        @Param({ "MD5", "SHA-256", "CRC32C", "XXH64", "SHA-256-TREE", "XXH64-TREE" })
+        public String algorithm;
+
+        /** hashes the chunks of the tree algorithms */
+        private ExecutorService executor;
+
+        @Setup(Level.Trial)
+        public void createExecutor() {
+            executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        }
+
+        @TearDown(Level.Trial)
+        public void shutdownExecutor() {
+            executor.shutdownNow();
+        }
+    }
+
+    @Benchmark
+    public byte[] createChecksum() throws NoSuchAlgorithmException, IOException {
+        return ArchiveUtils.createChecksum(file);
+    }
+
+    @Benchmark
+    public byte[] digest(FileDigest digest) throws NoSuchAlgorithmException, IOException {
+        return Digests.digest(file, digest.algorithm, digest.executor);
+    }
+
+    @Benchmark
+    public Object stream(Algorithm algorithm) throws NoSuchAlgorithmException, IOException {
+        Object checksum = algorithm.createChecksum();
+        byte[] buffer = new byte[algorithm.bufferSize];
+        InputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (checksum instanceof MessageDigest) {
+                    ((MessageDigest) checksum).update(buffer, 0, read);
+                } else {
+                    ((Checksum) checksum).update(buffer, 0, read);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return result(checksum);
+    }
+
+    @Benchmark
+    public Object channel(Algorithm algorithm) throws NoSuchAlgorithmException, IOException {
+        Object checksum = algorithm.createChecksum();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(algorithm.bufferSize);
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                if (checksum instanceof MessageDigest) {
+                    ((MessageDigest) checksum).update(buffer);
+                } else if (checksum instanceof CRC32) {
+                    ((CRC32) checksum).update(buffer);
+                } else {
+                    ((Adler32) checksum).update(buffer);
+                }
+                buffer.clear();
+            }
+        } finally {
+            channel.close();
+        }
+        return result(checksum);
+    }
+
+    private static Object result(Object checksum) {
+        if (checksum instanceof MessageDigest) {
+            return ((MessageDigest) checksum).digest();
+        }
+        return ((Checksum) checksum).getValue();
+    }
+}
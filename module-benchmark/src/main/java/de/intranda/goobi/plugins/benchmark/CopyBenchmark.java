@@ -0,0 +1,102 @@
+package de.intranda.goobi.plugins.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.intranda.goobi.plugins.utils.ArchiveUtils;
+import de.intranda.goobi.plugins.utils.FileTransfer;
+
+/**
+ * Copies a large file with {@link ArchiveUtils#copyFile(File, File)}, with {@link FileTransfer} hashing the data and, for comparison, with
+ * {@link Files#copy} and a plain stream copy of different buffer sizes
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CopyBenchmark {
+
+    private File source;
+    private File target;
+
+    @Setup(Level.Trial)
+    public void createCorpus() throws IOException {
+        source = Corpus.HUGE_FILES.getFiles()[0];
+        target = Corpus.createOutputFile("copy-benchmark", ".tif");
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteCopy() {
+        target.delete();
+    }
+
+    @State(Scope.Benchmark)
+    public static class Buffer {
+
+        @Param({ "1024", "65536", "1048576" })
+        public int bufferSize;
+    }
+
+    @Benchmark
+    public File copyFile() throws IOException {
+        ArchiveUtils.copyFile(source, target);
+        return target;
+    }
+
+    @Benchmark
+    public byte[] transferWithDigest() throws IOException {
+        FileTransfer transfer = new FileTransfer();
+        transfer.setDigestAlgorithm("SHA-256");
+        return transfer.copy(source, target);
+    }
+
+    @Benchmark
+    public File filesCopy() throws IOException {
+        Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return target;
+    }
+
+    @Benchmark
+    public File streamCopy(Buffer buffer) throws IOException {
+        byte[] bytes = new byte[buffer.bufferSize];
+        InputStream in = new FileInputStream(source);
+        try {
+            OutputStream out = new FileOutputStream(target);
+            try {
+                int read;
+                while ((read = in.read(bytes)) != -1) {
+                    out.write(bytes, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        return target;
+    }
+}
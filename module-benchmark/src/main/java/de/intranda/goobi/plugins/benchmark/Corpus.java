@@ -0,0 +1,170 @@
+package de.intranda.goobi.plugins.benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Synthetic test data for the benchmarks. Every corpus is generated once with a fixed seed into
+ * <code>${benchmark.corpus.dir}/&lt;corpus&gt;</code> (default: a folder in java.io.tmpdir) and reused by later runs.
+ *
+ * The file sizes can be scaled with the system property <code>benchmark.corpus.scale</code>, e.g. 0.1 for a quick run.
+ *
+ */
+public enum Corpus {
+
+    /** uncompressed scans: a TIFF header followed by noise, which deflate cannot shrink */
+    TIFF(40, 8 * 1024 * 1024),
+
+    /** scans of mostly white pages with a little noise, which deflate shrinks to about a third */
+    COMPRESSIBLE(40, 8 * 1024 * 1024),
+
+    /** thousands of small text files in subfolders, like OCR results */
+    SMALL_FILES(5000, 4 * 1024),
+
+    /** a few very large scans, like maps or newspaper volumes */
+    HUGE_FILES(2, 512 * 1024 * 1024);
+
+    private static final int ROW_LENGTH = 4096;
+    private static final int SMALL_FILES_PER_FOLDER = 100;
+
+    private final int count;
+    private final long size;
+
+    private Corpus(int count, long size) {
+        this.count = count;
+        this.size = size;
+    }
+
+    /**
+     * Returns the files and folders of the corpus, generating it if necessary
+     *
+     * @return
+     * @throws IOException
+     */
+    public synchronized File[] getFiles() throws IOException {
+        File folder = getFolder();
+        File marker = new File(folder.getParentFile(), name() + ".complete");
+        if (!marker.isFile()) {
+            generate(folder);
+            if (!marker.createNewFile() && !marker.isFile()) {
+                throw new IOException("Unable to create " + marker.getAbsolutePath());
+            }
+        }
+        File[] files = folder.listFiles();
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * @return the folder containing the corpus
+     */
+    public File getFolder() {
+        return new File(getBaseFolder(), name() + "-" + getScaledSize());
+    }
+
+    /**
+     * Creates a new file in the output folder of the benchmarks, <code>${benchmark.output.dir}</code> or java.io.tmpdir
+     *
+     * @param prefix
+     * @param suffix
+     * @return
+     * @throws IOException
+     */
+    public static File createOutputFile(String prefix, String suffix) throws IOException {
+        File outputFolder = new File(System.getProperty("benchmark.output.dir", System.getProperty("java.io.tmpdir")));
+        outputFolder.mkdirs();
+        File file = File.createTempFile(prefix, suffix, outputFolder);
+        file.delete();
+        return file;
+    }
+
+    private static File getBaseFolder() {
+        return new File(System.getProperty("benchmark.corpus.dir", new File(System.getProperty("java.io.tmpdir"), "image-export-benchmark")
+                .getAbsolutePath()));
+    }
+
+    private long getScaledSize() {
+        double scale = Double.parseDouble(System.getProperty("benchmark.corpus.scale", "1"));
+        return Math.max((long) (size * scale), 1);
+    }
+
+    private void generate(File folder) throws IOException {
+        folder.mkdirs();
+        Random random = new Random(ordinal());
+        long scaledSize = getScaledSize();
+        for (int i = 0; i < count; i++) {
+            switch (this) {
+                case TIFF:
+                case HUGE_FILES:
+                    writeNoiseTiff(new File(folder, String.format("%08d.tif", i + 1)), scaledSize, random);
+                    break;
+                case COMPRESSIBLE:
+                    writePageTiff(new File(folder, String.format("%08d.tif", i + 1)), scaledSize, random);
+                    break;
+                case SMALL_FILES:
+                    File subfolder = new File(folder, String.format("%04d", i / SMALL_FILES_PER_FOLDER));
+                    subfolder.mkdirs();
+                    writeText(new File(subfolder, String.format("%08d.xml", i + 1)), scaledSize, random);
+                    break;
+            }
+        }
+    }
+
+    static void writeNoiseTiff(File file, long size, Random random) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            writeTiffHeader(out);
+            byte[] row = new byte[ROW_LENGTH];
+            for (long written = 8; written < size; written += row.length) {
+                random.nextBytes(row);
+                out.write(row, 0, (int) Math.min(row.length, size - written));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    static void writePageTiff(File file, long size, Random random) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            writeTiffHeader(out);
+            byte[] row = new byte[ROW_LENGTH];
+            long rowNumber = 0;
+            for (long written = 8; written < size; written += row.length) {
+                // paper with slight noise, every few rows a line of "text"
+                boolean text = rowNumber++ % 24 < 6;
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = (byte) (text && random.nextInt(4) == 0 ? random.nextInt(64) : 248 + random.nextInt(8));
+                }
+                out.write(row, 0, (int) Math.min(row.length, size - written));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeText(File file, long size, Random random) throws IOException {
+        StringBuilder text = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<page>\n");
+        while (text.length() < size - 8) {
+            text.append("  <word id=\"w").append(random.nextInt(100000)).append("\" x=\"").append(random.nextInt(5000)).append("\" y=\"")
+                    .append(random.nextInt(7000)).append("\">").append(Long.toString(random.nextLong() & Long.MAX_VALUE, 36)).append("</word>\n");
+        }
+        text.append("</page>\n");
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeTiffHeader(OutputStream out) throws IOException {
+        out.write(new byte[] { 'I', 'I', 42, 0, 8, 0, 0, 0 });
+    }
+}
@@ -0,0 +1,116 @@
+package de.intranda.goobi.plugins.benchmark;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.when;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.goobi.beans.Process;
+import org.goobi.beans.Processproperty;
+import org.goobi.beans.Step;
+import org.mockito.MockedStatic;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import de.sub.goobi.config.ConfigPlugins;
+import de.sub.goobi.helper.Helper;
+import de.sub.goobi.persistence.managers.ProcessManager;
+
+/**
+ * Replaces the parts of Goobi workflow used by the plugin, so it can run without application server and database. The plugin configuration
+ * is taken from the given {@link XMLConfiguration}, saving a process only waits for the configured latency.
+ *
+ * The static mocks of Mockito only apply to the thread which created them, so every thread running the plugin has to open its own instance
+ * and close it when done.
+ *
+ */
+class FakeGoobi implements Closeable {
+
+    private final MockedStatic<ConfigPlugins> configPlugins;
+    private final MockedStatic<ProcessManager> processManager;
+    private final MockedStatic<Helper> helper;
+
+    /**
+     * @param config the plugin configuration
+     * @param saveLatency milliseconds a simulated database save takes
+     * @param saves counts the saved processes
+     */
+    FakeGoobi(XMLConfiguration config, final long saveLatency, final AtomicInteger saves) {
+        final XMLConfiguration threadConfig = (XMLConfiguration) config.clone();
+        configPlugins = mockStatic(ConfigPlugins.class, new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                if ("getPluginConfig".equals(invocation.getMethod().getName())) {
+                    return threadConfig;
+                }
+                return Mockito.RETURNS_DEFAULTS.answer(invocation);
+            }
+        });
+        processManager = mockStatic(ProcessManager.class, new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                if ("saveProcess".equals(invocation.getMethod().getName())) {
+                    Thread.sleep(saveLatency);
+                    saves.incrementAndGet();
+                    return null;
+                }
+                return Mockito.RETURNS_DEFAULTS.answer(invocation);
+            }
+        });
+        helper = mockStatic(Helper.class);
+    }
+
+    /**
+     * Creates a process whose images are stored in the given folder
+     *
+     * @param id
+     * @param title
+     * @param imageFolder
+     * @return
+     * @throws Exception
+     */
+    static Process createProcess(int id, String title, File imageFolder) throws Exception {
+        Process process = mock(Process.class);
+        List<Processproperty> properties = new ArrayList<Processproperty>();
+        when(process.getId()).thenReturn(id);
+        when(process.getTitel()).thenReturn(title);
+        when(process.getWikifield()).thenReturn("");
+        when(process.getImagesTifDirectory(false)).thenReturn(imageFolder.getAbsolutePath() + File.separator);
+        when(process.getEigenschaften()).thenReturn(properties);
+        when(process.getEigenschaftenList()).thenReturn(properties);
+        return process;
+    }
+
+    /**
+     * Creates the export step of the given process
+     *
+     * @param process
+     * @return
+     */
+    static Step createStep(Process process) {
+        Step step = mock(Step.class);
+        when(step.getProzess()).thenReturn(process);
+        when(step.getTitel()).thenReturn("Image export");
+        return step;
+    }
+
+    @Override
+    public void close() {
+        try {
+            configPlugins.close();
+        } finally {
+            try {
+                processManager.close();
+            } finally {
+                helper.close();
+            }
+        }
+    }
+}
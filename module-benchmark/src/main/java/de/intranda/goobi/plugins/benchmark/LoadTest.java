@@ -0,0 +1,336 @@
+package de.intranda.goobi.plugins.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.XMLConfiguration;
+import org.goobi.beans.Process;
+
+import de.intranda.goobi.plugins.ImageDeliveryPlugin;
+import dubious.sub.goobi.helper.encryption.MD5;
+
+/**
+ * Load test of the whole export step. Generates the image folders of many processes and runs {@link ImageDeliveryPlugin#execute()} for them
+ * concurrently, with Goobi workflow replaced by {@link FakeGoobi}. Listing, zipping, validation, copying and saving the properties are all
+ * included in the measured time.
+ *
+ * Reports the throughput in MB/s and processes per hour, the percentiles of the time per process and the peak heap use, and writes them as
+ * JSON to <code>loadtest.result</code>. The test is configured with system properties:
+ * <ul>
+ * <li>loadtest.dir: folder for the generated processes and the exported archives</li>
+ * <li>loadtest.processes, loadtest.threads: number of processes and of processes exported at the same time</li>
+ * <li>loadtest.minPages, loadtest.maxPages, loadtest.pageSize: the range of pages per process and the average size of a page in bytes</li>
+ * <li>loadtest.config: plugin configuration to test, the plugin defaults are used if missing</li>
+ * <li>loadtest.saveLatency: milliseconds a simulated database save of a process takes</li>
+ * <li>loadtest.warmup: number of processes exported once before the measurement</li>
+ * <li>loadtest.keepArchives: keep the exported archives instead of deleting them after each process</li>
+ * </ul>
+ *
+ */
+public class LoadTest {
+
+    private static final long MB = 1024 * 1024;
+
+    private final File folder = new File(System.getProperty("loadtest.dir", new File(System.getProperty("java.io.tmpdir"),
+            "image-export-loadtest").getAbsolutePath()));
+    private final int processes = Integer.getInteger("loadtest.processes", 200);
+    private final int threads = Integer.getInteger("loadtest.threads", 4);
+    private final int minPages = Integer.getInteger("loadtest.minPages", 20);
+    private final int maxPages = Integer.getInteger("loadtest.maxPages", 400);
+    private final long pageSize = Long.getLong("loadtest.pageSize", 2 * MB);
+    private final long saveLatency = Long.getLong("loadtest.saveLatency", 20);
+    private final int warmup = Integer.getInteger("loadtest.warmup", 0);
+    private final boolean keepArchives = Boolean.getBoolean("loadtest.keepArchives");
+    private final File resultFile = new File(System.getProperty("loadtest.result", "loadtest-result.json"));
+
+    private final AtomicInteger saves = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        new LoadTest().run();
+    }
+
+    private void run() throws Exception {
+        XMLConfiguration config = createConfiguration();
+        File exportFolder = new File(config.getString("destinationFolder"));
+        exportFolder.mkdirs();
+
+        System.out.println("Generating " + processes + " processes in " + folder.getAbsolutePath());
+        List<File> imageFolders = generate();
+
+        if (warmup > 0) {
+            System.out.println("Warming up with " + Math.min(warmup, processes) + " processes");
+            export(config, exportFolder, imageFolders.subList(0, Math.min(warmup, processes)));
+        }
+
+        System.out.println("Exporting " + processes + " processes with " + threads + " threads");
+        saves.set(0);
+        HeapSampler heapSampler = new HeapSampler();
+        heapSampler.start();
+        long start = System.nanoTime();
+        List<Sample> samples = export(config, exportFolder, imageFolders);
+        long duration = System.nanoTime() - start;
+        heapSampler.interrupt();
+        heapSampler.join();
+
+        report(samples, duration, heapSampler.getPeak());
+    }
+
+    /**
+     * Loads the plugin configuration and redirects the export into the test folder. Exports always run on the calling thread, the export
+     * queue would hide their duration
+     */
+    private XMLConfiguration createConfiguration() throws ConfigurationException {
+        String configFile = System.getProperty("loadtest.config");
+        XMLConfiguration config = configFile == null ? new XMLConfiguration() : new XMLConfiguration(configFile);
+        config.setProperty("destinationFolder", new File(folder, "export").getAbsolutePath() + File.separator);
+        config.setProperty("async.enabled", false);
+        return config;
+    }
+
+    /**
+     * Generates the image folders of all processes which don't exist yet. Every process is a book of uncompressible colour scans or of
+     * compressible greyscale pages, with a random number of pages of slightly different sizes
+     */
+    private List<File> generate() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<File>> futures = new ArrayList<Future<File>>();
+        try {
+            for (int i = 1; i <= processes; i++) {
+                final int id = i;
+                futures.add(executor.submit(new Callable<File>() {
+                    @Override
+                    public File call() throws IOException {
+                        return generateProcess(id);
+                    }
+                }));
+            }
+            List<File> imageFolders = new ArrayList<File>();
+            for (Future<File> future : futures) {
+                imageFolders.add(future.get());
+            }
+            return imageFolders;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private File generateProcess(int id) throws IOException {
+        String title = getTitle(id);
+        File imageFolder = new File(folder, "processes" + File.separator + title + File.separator + "images" + File.separator + title + "_tif");
+        File marker = new File(folder, "processes" + File.separator + title + ".complete");
+        if (marker.isFile()) {
+            return imageFolder;
+        }
+        imageFolder.mkdirs();
+        Random random = new Random(id);
+        int pages = minPages + random.nextInt(Math.max(maxPages - minPages, 0) + 1);
+        boolean colour = random.nextBoolean();
+        for (int page = 1; page <= pages; page++) {
+            File file = new File(imageFolder, String.format("%08d.tif", page));
+            long size = Math.max(pageSize * (75 + random.nextInt(51)) / 100, 8);
+            if (colour) {
+                Corpus.writeNoiseTiff(file, size, random);
+            } else {
+                Corpus.writePageTiff(file, size, random);
+            }
+        }
+        if (!marker.createNewFile() && !marker.isFile()) {
+            throw new IOException("Unable to create " + marker.getAbsolutePath());
+        }
+        return imageFolder;
+    }
+
+    /**
+     * Exports the processes with the configured number of threads, each of them using its own {@link FakeGoobi}
+     */
+    private List<Sample> export(final XMLConfiguration config, final File exportFolder, List<File> imageFolders) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        FakeGoobi goobi = new FakeGoobi(config, saveLatency, saves);
+                        try {
+                            runnable.run();
+                        } finally {
+                            goobi.close();
+                        }
+                    }
+                }, "loadtest-" + counter.incrementAndGet());
+            }
+        });
+        List<Future<Sample>> futures = new ArrayList<Future<Sample>>();
+        try {
+            for (int i = 0; i < imageFolders.size(); i++) {
+                final int id = i + 1;
+                final File imageFolder = imageFolders.get(i);
+                futures.add(executor.submit(new Callable<Sample>() {
+                    @Override
+                    public Sample call() throws Exception {
+                        return exportProcess(id, imageFolder, exportFolder);
+                    }
+                }));
+            }
+            List<Sample> samples = new ArrayList<Sample>();
+            for (Future<Sample> future : futures) {
+                samples.add(future.get());
+            }
+            return samples;
+        } catch (ExecutionException e) {
+            throw new IOException("Load test failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Sample exportProcess(int id, File imageFolder, File exportFolder) throws Exception {
+        String title = getTitle(id);
+        Process process = FakeGoobi.createProcess(id, title, imageFolder);
+        long bytes = 0;
+        File[] images = imageFolder.listFiles();
+        for (File image : images) {
+            bytes += image.length();
+        }
+
+        ImageDeliveryPlugin plugin = new ImageDeliveryPlugin();
+        plugin.initialize(FakeGoobi.createStep(process), "");
+        long start = System.nanoTime();
+        boolean success = plugin.execute();
+        long duration = System.nanoTime() - start;
+        if (!success) {
+            System.out.println("Export of " + title + " failed");
+        }
+
+        if (!keepArchives) {
+            String archivePrefix = new MD5(title).getMD5() + "_" + title + ".";
+            File[] exported = exportFolder.listFiles();
+            for (File file : exported) {
+                if (file.getName().startsWith(archivePrefix)) {
+                    file.delete();
+                }
+            }
+        }
+        return new Sample(bytes, duration, success);
+    }
+
+    private void report(List<Sample> samples, long duration, long peakHeap) throws IOException {
+        long bytes = 0;
+        int successful = 0;
+        long[] latencies = new long[samples.size()];
+        for (int i = 0; i < samples.size(); i++) {
+            Sample sample = samples.get(i);
+            bytes += sample.bytes;
+            latencies[i] = sample.duration;
+            if (sample.success) {
+                successful++;
+            }
+        }
+        Arrays.sort(latencies);
+        double seconds = duration / 1e9;
+        double mbPerSecond = bytes / (double) MB / seconds;
+        double processesPerHour = samples.size() / seconds * 3600;
+        long maxHeap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getMax();
+
+        System.out.println();
+        System.out.println(String.format(Locale.ENGLISH, "Processes:   %d (%d successful, %d failed), %d saved", samples.size(), successful,
+                samples.size() - successful, saves.get()));
+        System.out.println(String.format(Locale.ENGLISH, "Images:      %.1f MB", bytes / (double) MB));
+        System.out.println(String.format(Locale.ENGLISH, "Duration:    %.1f s with %d threads", seconds, threads));
+        System.out.println(String.format(Locale.ENGLISH, "Throughput:  %.1f MB/s, %.0f processes/hour", mbPerSecond, processesPerHour));
+        System.out.println(String.format(Locale.ENGLISH, "Per process: p50 %d ms, p90 %d ms, p95 %d ms, p99 %d ms, max %d ms", percentile(latencies,
+                50), percentile(latencies, 90), percentile(latencies, 95), percentile(latencies, 99), percentile(latencies, 100)));
+        System.out.println(String.format(Locale.ENGLISH, "Peak heap:   %d MB of %d MB", peakHeap / MB, maxHeap / MB));
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(resultFile), StandardCharsets.UTF_8);
+        try {
+            writer.write(String.format(Locale.ENGLISH, "{\n  \"processes\": %d,\n  \"successful\": %d,\n  \"threads\": %d,\n  \"bytes\": %d,\n"
+                    + "  \"seconds\": %.3f,\n  \"mbPerSecond\": %.3f,\n  \"processesPerHour\": %.1f,\n"
+                    + "  \"latencyMillis\": { \"p50\": %d, \"p90\": %d, \"p95\": %d, \"p99\": %d, \"max\": %d },\n"
+                    + "  \"peakHeapBytes\": %d,\n  \"maxHeapBytes\": %d\n}\n", samples.size(), successful, threads, bytes, seconds, mbPerSecond,
+                    processesPerHour, percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 95), percentile(latencies, 99),
+                    percentile(latencies, 100), peakHeap, maxHeap));
+        } finally {
+            writer.close();
+        }
+        System.out.println("Results written to " + resultFile.getAbsolutePath());
+    }
+
+    /**
+     * Returns the given percentile of the sorted durations in milliseconds, using the nearest rank
+     */
+    private static long percentile(long[] sorted, int percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.min(Math.max(rank, 1), sorted.length) - 1] / 1000000;
+    }
+
+    private static String getTitle(int id) {
+        return String.format("loadtest_%06d", id);
+    }
+
+    /**
+     * Samples the used heap until interrupted
+     */
+    private static class HeapSampler extends Thread {
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private final AtomicLong peak = new AtomicLong();
+
+        private HeapSampler() {
+            super("loadtest-heap");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                peak.set(Math.max(peak.get(), memory.getHeapMemoryUsage().getUsed()));
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private long getPeak() {
+            return Math.max(peak.get(), memory.getHeapMemoryUsage().getUsed());
+        }
+    }
+
+    private static class Sample {
+        private final long bytes;
+        private final long duration;
+        private final boolean success;
+
+        private Sample(long bytes, long duration, boolean success) {
+            this.bytes = bytes;
+            this.duration = duration;
+            this.success = success;
+        }
+    }
+}
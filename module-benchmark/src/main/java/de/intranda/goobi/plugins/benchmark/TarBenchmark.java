@@ -0,0 +1,77 @@
+package de.intranda.goobi.plugins.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.intranda.goobi.plugins.utils.ArchiveManifest;
+import de.intranda.goobi.plugins.utils.ArchiveUtils;
+import de.intranda.goobi.plugins.utils.BlockGzipIndex;
+
+/**
+ * Creates plain and gzip compressed tar archives of the corpora, the gzip compressed ones with one and with all available processors
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TarBenchmark {
+
+    @Param({ "TIFF", "COMPRESSIBLE", "SMALL_FILES", "HUGE_FILES" })
+    public Corpus corpus;
+
+    @Param({ ".tar", ".tar.gz" })
+    public String format;
+
+    /** compression threads of .tar.gz, 0 uses all available processors */
+    @Param({ "1", "0" })
+    public int threads;
+
+    private HashMap<File, String> fileMap;
+    private File tarFile;
+
+    @Setup(Level.Trial)
+    public void createCorpus() throws IOException {
+        fileMap = new HashMap<File, String>();
+        for (File file : corpus.getFiles()) {
+            fileMap.put(file, file.getName());
+        }
+        tarFile = Corpus.createOutputFile("tar-benchmark", format);
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteArchive() {
+        tarFile.delete();
+        BlockGzipIndex.getIndexFile(tarFile).delete();
+    }
+
+    @Benchmark
+    public byte[] tar() throws IOException {
+        return ArchiveUtils.tarFiles(fileMap, tarFile, null, threads);
+    }
+
+    @Benchmark
+    public ArchiveManifest tarWithManifest() throws IOException {
+        ArchiveManifest manifest = new ArchiveManifest("SHA-256");
+        ArchiveUtils.tarFiles(fileMap, tarFile, manifest, threads);
+        return manifest;
+    }
+}
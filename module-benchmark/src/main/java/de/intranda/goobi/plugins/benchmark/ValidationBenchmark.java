@@ -0,0 +1,104 @@
+package de.intranda.goobi.plugins.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.intranda.goobi.plugins.utils.ArchiveManifest;
+import de.intranda.goobi.plugins.utils.ArchiveUtils;
+
+/**
+ * Validates zip and tar archives of the corpora, once against the manifest written with them and once in the paranoid mode comparing the
+ * extracted files with the originals
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ValidationBenchmark {
+
+    @Param({ "TIFF", "COMPRESSIBLE", "SMALL_FILES", "HUGE_FILES" })
+    public Corpus corpus;
+
+    private File[] sourceFiles;
+    private int entries;
+    private File zipFile;
+    private ArchiveManifest zipManifest;
+    private File tarFile;
+    private ArchiveManifest tarManifest;
+
+    @Setup(Level.Trial)
+    public void createArchives() throws IOException {
+        sourceFiles = corpus.getFiles();
+        entries = countEntries(sourceFiles);
+        zipFile = Corpus.createOutputFile("validation-benchmark", ".zip");
+        zipManifest = new ArchiveManifest("SHA-256");
+        ArchiveUtils.zipFiles(sourceFiles, zipFile, 0, null, zipManifest);
+
+        HashMap<File, String> fileMap = new HashMap<File, String>();
+        for (File file : sourceFiles) {
+            fileMap.put(file, file.getName());
+        }
+        tarFile = Corpus.createOutputFile("validation-benchmark", ".tar.gz");
+        tarManifest = new ArchiveManifest("SHA-256");
+        ArchiveUtils.tarFiles(fileMap, tarFile, tarManifest);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteArchives() {
+        zipFile.delete();
+        tarFile.delete();
+    }
+
+    @Benchmark
+    public boolean validateZip() {
+        return ArchiveUtils.validateZip(zipFile, zipManifest);
+    }
+
+    @Benchmark
+    public boolean validateZipParanoid() {
+        return ArchiveUtils.validateZip(zipFile, true, corpus.getFolder(), entries);
+    }
+
+    @Benchmark
+    public boolean validateTar() {
+        return ArchiveUtils.validateTar(tarFile, tarManifest);
+    }
+
+    @Benchmark
+    public boolean validateTarParanoid() {
+        return ArchiveUtils.validateTar(tarFile, true, corpus.getFolder());
+    }
+
+    /**
+     * Counts files and directories, which are both entries of the zip archive
+     */
+    private static int countEntries(File[] files) {
+        int count = 0;
+        for (File file : files) {
+            count++;
+            if (file.isDirectory()) {
+                count += countEntries(file.listFiles());
+            }
+        }
+        return count;
+    }
+}
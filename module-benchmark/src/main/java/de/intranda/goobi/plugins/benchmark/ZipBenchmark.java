@@ -0,0 +1,107 @@
+package de.intranda.goobi.plugins.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.intranda.goobi.plugins.utils.ArchiveManifest;
+import de.intranda.goobi.plugins.utils.ArchiveUtils;
+import de.intranda.goobi.plugins.utils.CompressionPolicy;
+
+/**
+ * Creates zip archives of the corpora with the sequential and the parallel writer, with a fixed compression level and with the adaptive
+ * {@link CompressionPolicy}
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ZipBenchmark {
+
+    @Param({ "TIFF", "COMPRESSIBLE", "SMALL_FILES", "HUGE_FILES" })
+    public Corpus corpus;
+
+    @Param({ "1", "6", "9" })
+    public int level;
+
+    /** compression threads of the parallel writer, 0 uses one per processor */
+    @Param({ "0" })
+    public int threads;
+
+    private File[] sourceFiles;
+    private File zipFile;
+
+    @Setup(Level.Trial)
+    public void createCorpus() throws IOException {
+        sourceFiles = corpus.getFiles();
+        zipFile = Corpus.createOutputFile("zip-benchmark", ".zip");
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteArchive() {
+        zipFile.delete();
+    }
+
+    @Benchmark
+    public byte[] sequential() throws IOException {
+        return ArchiveUtils.zipFiles(sourceFiles, zipFile, new FixedLevelPolicy(level));
+    }
+
+    @Benchmark
+    public File parallel() throws IOException {
+        ArchiveUtils.zipFiles(sourceFiles, zipFile, threads, new FixedLevelPolicy(level));
+        return zipFile;
+    }
+
+    @Benchmark
+    public File parallelAdaptive() throws IOException {
+        CompressionPolicy policy = new CompressionPolicy();
+        policy.setLevel(level);
+        ArchiveUtils.zipFiles(sourceFiles, zipFile, threads, policy);
+        return zipFile;
+    }
+
+    @Benchmark
+    public ArchiveManifest parallelWithManifest() throws IOException {
+        ArchiveManifest manifest = new ArchiveManifest("SHA-256");
+        ArchiveUtils.zipFiles(sourceFiles, zipFile, threads, new FixedLevelPolicy(level), manifest);
+        return manifest;
+    }
+
+    /**
+     * Deflates every file with the same level, like the writers without a policy
+     */
+    static class FixedLevelPolicy extends CompressionPolicy {
+
+        FixedLevelPolicy(int level) {
+            setLevel(level);
+        }
+
+        @Override
+        public Decision decide(String name, long size, byte[] head, int length) {
+            if (getLevel() == Deflater.NO_COMPRESSION) {
+                return new Decision(ZipEntry.STORED, Deflater.NO_COMPRESSION);
+            }
+            return new Decision(ZipEntry.DEFLATED, getLevel());
+        }
+    }
+}